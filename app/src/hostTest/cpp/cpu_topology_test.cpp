@@ -0,0 +1,149 @@
+// Host test for cpu_topology: builds fake sysfs trees in a temporary
+// directory and checks what read_cpu_cores and the core pickers make of
+// them. Built and run by `./gradlew :app:testDebugUnitTest -PhostTests`
+// (target cpu_topology_test in src/main/cpp/CMakeLists.txt).
+
+#include "cpu_topology.h"
+
+#include <cstdio>
+#include <cstdlib>
+#include <filesystem>
+#include <string>
+#include <sys/stat.h>
+#include <vector>
+
+static int failures = 0;
+static std::vector<std::string> trees;
+
+#define EXPECT_EQ(expected, actual)                                            \
+  do {                                                                         \
+    if ((expected) != (actual)) {                                              \
+      fprintf(stderr, "%s:%d: %s: expected %s == %s\n", __FILE__, __LINE__,    \
+              __func__, #expected, #actual);                                   \
+      failures++;                                                              \
+    }                                                                          \
+  } while (0)
+
+// A fresh fake /sys/devices/system/cpu
+static std::string make_tree() {
+  char tmpl[] = "/tmp/cpu_topology_XXXXXX";
+  char *dir = mkdtemp(tmpl);
+  if (!dir) {
+    perror("mkdtemp");
+    exit(2);
+  }
+  trees.push_back(dir);
+  return dir;
+}
+
+static void write_file(const std::string &path, const std::string &text) {
+  FILE *f = fopen(path.c_str(), "w");
+  if (!f) {
+    perror(path.c_str());
+    exit(2);
+  }
+  fputs(text.c_str(), f);
+  fclose(f);
+}
+
+// cpuN with the given capacity and max frequency; <= 0 leaves the file out
+static void add_cpu(const std::string &root, int cpu, long capacity, long max_freq) {
+  std::string dir = root + "/cpu" + std::to_string(cpu);
+  mkdir(dir.c_str(), 0755);
+  if (capacity > 0)
+    write_file(dir + "/cpu_capacity", std::to_string(capacity) + "\n");
+  if (max_freq > 0) {
+    mkdir((dir + "/cpufreq").c_str(), 0755);
+    write_file(dir + "/cpufreq/cpuinfo_max_freq", std::to_string(max_freq) + "\n");
+  }
+}
+
+static std::vector<int> ids(const std::vector<cpu_core> &cores) {
+  std::vector<int> out;
+  for (const auto &core : cores)
+    out.push_back(core.id);
+  return out;
+}
+
+static void test_homogeneous() {
+  std::string root = make_tree();
+  write_file(root + "/online", "0-3\n");
+  for (int cpu = 0; cpu < 4; cpu++)
+    add_cpu(root, cpu, 1024, 2000000);
+
+  std::vector<cpu_core> cores = read_cpu_cores(root);
+  EXPECT_EQ((std::vector<int>{0, 1, 2, 3}), ids(cores));
+  EXPECT_EQ(1024L, cores[0].capacity);
+  // One cluster: every core counts as both
+  EXPECT_EQ((std::vector<int>{0, 1, 2, 3}), performance_cores(cores));
+  EXPECT_EQ((std::vector<int>{0, 1, 2, 3}), prime_cores(cores));
+}
+
+static void test_three_clusters() {
+  std::string root = make_tree();
+  write_file(root + "/online", "0-7\n");
+  for (int cpu = 0; cpu < 4; cpu++)
+    add_cpu(root, cpu, 325, 1800000);
+  for (int cpu = 4; cpu < 7; cpu++)
+    add_cpu(root, cpu, 870, 2500000);
+  add_cpu(root, 7, 1024, 3200000);
+
+  std::vector<cpu_core> cores = read_cpu_cores(root);
+  EXPECT_EQ(8u, cores.size());
+  EXPECT_EQ((std::vector<int>{4, 5, 6, 7}), performance_cores(cores));
+  EXPECT_EQ((std::vector<int>{7}), prime_cores(cores));
+}
+
+static void test_max_freq_fallback() {
+  std::string root = make_tree();
+  write_file(root + "/online", "0-5\n");
+  for (int cpu = 0; cpu < 4; cpu++)
+    add_cpu(root, cpu, 0, 1800000);
+  for (int cpu = 4; cpu < 6; cpu++)
+    add_cpu(root, cpu, 0, 2400000);
+
+  std::vector<cpu_core> cores = read_cpu_cores(root);
+  EXPECT_EQ(1800000L, cores[0].capacity);
+  EXPECT_EQ(2400000L, cores[5].capacity);
+  EXPECT_EQ((std::vector<int>{4, 5}), performance_cores(cores));
+  EXPECT_EQ((std::vector<int>{4, 5}), prime_cores(cores));
+}
+
+static void test_online_list() {
+  std::string root = make_tree();
+  for (int cpu = 0; cpu < 8; cpu++)
+    add_cpu(root, cpu, cpu < 4 ? 400 : 1024, 0);
+  // cpu4, 5 and 7 are offline
+  write_file(root + "/online", "0-3,6\n");
+
+  std::vector<cpu_core> cores = read_cpu_cores(root);
+  EXPECT_EQ((std::vector<int>{0, 1, 2, 3, 6}), ids(cores));
+  EXPECT_EQ((std::vector<int>{6}), performance_cores(cores));
+}
+
+static void test_no_online_file() {
+  std::string root = make_tree();
+  for (int cpu = 0; cpu < 3; cpu++)
+    add_cpu(root, cpu, 0, 0);
+
+  std::vector<cpu_core> cores = read_cpu_cores(root);
+  EXPECT_EQ((std::vector<int>{0, 1, 2}), ids(cores));
+  // No capacities at all: keep every core
+  EXPECT_EQ((std::vector<int>{0, 1, 2}), performance_cores(cores));
+}
+
+int main() {
+  test_homogeneous();
+  test_three_clusters();
+  test_max_freq_fallback();
+  test_online_list();
+  test_no_online_file();
+  for (const auto &tree : trees)
+    std::filesystem::remove_all(tree);
+  if (failures > 0) {
+    fprintf(stderr, "%d failure(s)\n", failures);
+    return 1;
+  }
+  printf("cpu_topology_test: all passed\n");
+  return 0;
+}
@@ -0,0 +1,54 @@
+package com.abettergemini.assistant;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import kotlin.coroutines.EmptyCoroutineContext;
+import kotlinx.coroutines.BuildersKt;
+
+import static org.junit.Assert.*;
+
+/**
+ * Prefill and decode throughput, and time to first token, of the host build
+ * on the test fixture. Prints llama-bench style numbers for CI to track;
+ * only sanity is asserted, since shared runners are noisy.
+ */
+public class LlamaCppBackendHostBenchmark {
+    private static LlamaCppBackend backend;
+
+    @BeforeClass
+    public static void setUp() {
+        backend = LlamaCppBackendHostTest.load();
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        if (backend != null) backend.close();
+    }
+
+    @Test
+    public void benchmarkPrefillAndDecode() throws Exception {
+        BenchmarkResult r = BuildersKt.runBlocking(EmptyCoroutineContext.INSTANCE,
+                (scope, continuation) -> backend.benchmark(256, 64, 3, "stories260K", 0, continuation));
+        assertNotNull(r);
+        assertTrue(r.promptTokensPerSecond() > 0);
+        assertTrue(r.generationTokensPerSecond() > 0);
+        System.out.println(r.summary());
+    }
+
+    @Test
+    public void benchmarkFirstToken() throws Exception {
+        long total = 0;
+        int runs = 5;
+        for (int i = 0; i < runs; i++) {
+            LlamaCppBackendHostTest.Result r = new LlamaCppBackendHostTest.Result();
+            // A different prompt each run, so nothing comes from the cache
+            backend.generateResponse(i + " little birds sang in the tall green tree", r);
+            r.await();
+            assertNull(r.error);
+            total += r.stats.firstTokenMs;
+        }
+        System.out.printf("Time to first token: %.1f ms%n", total / (double) runs);
+    }
+}
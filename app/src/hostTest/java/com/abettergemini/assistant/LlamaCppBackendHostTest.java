@@ -0,0 +1,157 @@
+package com.abettergemini.assistant;
+
+import android.content.ContextWrapper;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import kotlinx.coroutines.Dispatchers;
+import kotlinx.coroutines.ExecutorsKt;
+import kotlinx.coroutines.test.TestDispatchers;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Drives the real JNI bridge, built for the host, through LlamaCppBackend
+ * with a tiny GGUF. Run with {@code ./gradlew :app:testDebugUnitTest -PhostTests}.
+ */
+public class LlamaCppBackendHostTest {
+    private static final GenerationParams PARAMS = new GenerationParams(0.7f, 40, 0.9f, 64, 1.3f, 42, 48, 30_000L);
+    private static LlamaCppBackend backend;
+
+    /** What a ResponseCallback received, once the request has finished. */
+    static class Result implements InferenceBackend.ResponseCallback {
+        final CountDownLatch done = new CountDownLatch(1);
+        final List<String> partials = new ArrayList<>();
+        String response;
+        Throwable error;
+        GenerationStats stats;
+
+        @Override public void onPartial(String partialResponse) { partials.add(partialResponse); }
+        @Override public void onStats(GenerationStats stats) { this.stats = stats; }
+        @Override public void onSuccess(String response, long generationTimeMs) {
+            this.response = response;
+            done.countDown();
+        }
+        @Override public void onError(Throwable t) {
+            error = t;
+            done.countDown();
+        }
+
+        Result await() throws InterruptedException {
+            assertTrue("request didn't finish", done.await(60, TimeUnit.SECONDS));
+            return this;
+        }
+    }
+
+    static LlamaCppBackend load() {
+        String fixture = System.getProperty("llama.fixture", "");
+        assumeTrue("GGUF fixture missing; run with -PhostTests", new File(fixture).isFile());
+        // Callbacks are posted to Main; there is no Looper on the host
+        TestDispatchers.setMain(Dispatchers.INSTANCE, ExecutorsKt.from(Executors.newSingleThreadExecutor()));
+        LlamaCppBackend llama = new LlamaCppBackend(new ContextWrapper(null));
+        assertTrue(llama.loadModel(fixture, 512, 2, PARAMS, ModelConfig.KvCacheType.F16, false, new String[0]));
+        return llama;
+    }
+
+    @BeforeClass
+    public static void setUp() {
+        backend = load();
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        if (backend != null) backend.close();
+    }
+
+    private static Result generate(String prompt) throws InterruptedException {
+        Result result = new Result();
+        backend.generateResponse(prompt, result);
+        return result.await();
+    }
+
+    @Test
+    public void testStreamsTheWholeReply() throws Exception {
+        Result r = generate("Once upon a time");
+        assertNull(r.error);
+        assertFalse(r.partials.isEmpty());
+        assertEquals(r.response, r.partials.get(r.partials.size() - 1));
+        assertTrue(r.stats.generatedTokens > 0 && r.stats.generatedTokens <= PARAMS.getMaxTokens());
+    }
+
+    @Test
+    public void testReusesCachedPrefix() throws Exception {
+        String prompt = "Lily had a red ball. She liked to play with it in the park every day.";
+        Result first = generate(prompt);
+        Result second = generate(prompt);
+        assertNull(second.error);
+        // Same seed and prompt: same reply, with the prompt served from the KV cache
+        assertEquals(first.response, second.response);
+        assertTrue(second.stats.reusedTokens >= second.stats.promptTokens - 1);
+    }
+
+    @Test
+    public void testConcurrentRequestsAreBatched() throws Exception {
+        Result a = new Result();
+        Result b = new Result();
+        backend.generateResponse("Tom saw a big dog", a);
+        backend.generateResponse("The sun was hot", b);
+        // Decoded together in one batch per step; both finish with text
+        assertNull(a.await().error);
+        assertNull(b.await().error);
+        assertFalse(a.response.isEmpty());
+        assertFalse(b.response.isEmpty());
+    }
+
+    @Test
+    public void testCancelEndsTheRequest() throws Exception {
+        Result r = new Result();
+        GenerationHandle handle = backend.generateResponse("Once upon a time there was a little", r);
+        handle.cancel();
+        r.await();
+        assertTrue(r.error instanceof CancellationException);
+        // The slot is free again
+        assertNull(generate("Once upon a time").error);
+    }
+
+    @Test
+    public void testPerRequestStopsAndDeadline() throws Exception {
+        String prompt = "Tom and Lily went to the park to play";
+        Result full = generate(prompt);
+        assertNull(full.error);
+        String stop = full.response.substring(full.response.length() / 2).trim().split(" ")[0];
+        assumeTrue("reply too short to pick a stop from", stop.length() > 1);
+
+        // Same seed and prompt: the same reply, cut before the request's own stop
+        Result stopped = new Result();
+        backend.generateResponse(prompt, null, false, new String[]{stop}, null, stopped);
+        assertNull(stopped.await().error);
+        assertEquals(full.response.substring(0, full.response.indexOf(stop)), stopped.response);
+
+        // A deadline far below the model's 30 s ends it in the queue or mid-reply
+        Result late = new Result();
+        backend.generateResponse(prompt, null, false, null, 1L, late);
+        late.await();
+        if (late.error != null) {
+            assertTrue(late.error.getMessage().startsWith("Timed out"));
+        } else {
+            assertTrue(late.stats.hitDeadline);
+        }
+    }
+
+    @Test
+    public void testCountsTokensLikeThePrompt() {
+        assertTrue(backend.countTokens("Once upon a time") > 0);
+        assertEquals(0, backend.countTokens(""));
+    }
+}
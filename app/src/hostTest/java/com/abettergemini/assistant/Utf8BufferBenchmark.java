@@ -0,0 +1,57 @@
+package com.abettergemini.assistant;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Rough JVM-side cost of getting a large prompt (screen context sized) into
+ * a direct buffer: the reused Utf8Buffer, a fresh direct buffer per request,
+ * and a CharsetEncoder writing straight into a reused buffer. Prints
+ * timings; only correctness is asserted so it stays stable on CI. Runs
+ * with the host benchmarks (-PhostTests), not every unit test run.
+ */
+public class Utf8BufferBenchmark {
+    private static final int ITERATIONS = 200;
+
+    @Test
+    public void benchmarkLargePromptEncoding() {
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 64 * 1024) {
+            sb.append("Order #1234 total 42,50 € — delivered 📦 to 東京. ");
+        }
+        String prompt = sb.toString();
+        int expected = prompt.getBytes(StandardCharsets.UTF_8).length;
+
+        Utf8Buffer reused = new Utf8Buffer(16 * 1024, true);
+        long reusedNs = time(() -> assertEquals(expected, reused.encode(prompt)));
+        long freshNs = time(() -> {
+            byte[] bytes = prompt.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+            direct.put(bytes);
+            assertEquals(expected, direct.position());
+        });
+        ByteBuffer target = ByteBuffer.allocateDirect(expected);
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        long encoderNs = time(() -> {
+            target.clear();
+            encoder.reset();
+            encoder.encode(CharBuffer.wrap(prompt), target, true);
+            assertEquals(expected, target.position());
+        });
+
+        System.out.printf("Encode %d chars (%d bytes): reused %.1f us, fresh %.1f us, encoder %.1f us%n",
+                prompt.length(), expected, reusedNs / 1000.0, freshNs / 1000.0, encoderNs / 1000.0);
+    }
+
+    private static long time(Runnable op) {
+        for (int i = 0; i < ITERATIONS; i++) op.run(); // warm-up
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) op.run();
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+}
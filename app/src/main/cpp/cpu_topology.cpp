@@ -0,0 +1,105 @@
+#include "cpu_topology.h"
+
+#include <algorithm>
+#include <cstdio>
+#include <cstdlib>
+#include <unistd.h>
+
+static long read_long(const std::string &path) {
+  FILE *f = fopen(path.c_str(), "r");
+  if (!f)
+    return -1;
+  long value = -1;
+  if (fscanf(f, "%ld", &value) != 1)
+    value = -1;
+  fclose(f);
+  return value;
+}
+
+// Parses a kernel cpu list such as "0-3,6,8-9".
+static std::vector<int> parse_cpu_list(const std::string &list) {
+  std::vector<int> cpus;
+  const char *p = list.c_str();
+  while (*p) {
+    char *end;
+    long first = strtol(p, &end, 10);
+    if (end == p)
+      break;
+    long last = first;
+    p = end;
+    if (*p == '-') {
+      last = strtol(p + 1, &end, 10);
+      p = end;
+    }
+    for (long cpu = first; cpu <= last; cpu++)
+      cpus.push_back((int)cpu);
+    while (*p == ',' || *p == '\n' || *p == ' ')
+      p++;
+  }
+  return cpus;
+}
+
+static std::vector<int> online_cpus(const std::string &cpu_dir) {
+  FILE *f = fopen((cpu_dir + "/online").c_str(), "r");
+  if (f) {
+    char buf[256] = {};
+    size_t n = fread(buf, 1, sizeof(buf) - 1, f);
+    fclose(f);
+    std::vector<int> cpus = parse_cpu_list(std::string(buf, n));
+    if (!cpus.empty())
+      return cpus;
+  }
+  // No online list: take every cpuN directory that exists
+  std::vector<int> cpus;
+  for (int cpu = 0; cpu < 1024; cpu++) {
+    std::string dir = cpu_dir + "/cpu" + std::to_string(cpu);
+    if (access(dir.c_str(), F_OK) != 0)
+      break;
+    cpus.push_back(cpu);
+  }
+  return cpus;
+}
+
+std::vector<cpu_core> read_cpu_cores(const std::string &cpu_dir) {
+  std::vector<cpu_core> cores;
+  for (int cpu : online_cpus(cpu_dir)) {
+    std::string dir = cpu_dir + "/cpu" + std::to_string(cpu);
+    long capacity = read_long(dir + "/cpu_capacity");
+    if (capacity <= 0)
+      capacity = read_long(dir + "/cpufreq/cpuinfo_max_freq");
+    cores.push_back({cpu, capacity});
+  }
+  return cores;
+}
+
+std::vector<int> performance_cores(const std::vector<cpu_core> &cores) {
+  long slowest = -1;
+  long fastest = -1;
+  for (const auto &core : cores) {
+    if (core.capacity <= 0)
+      continue;
+    slowest = slowest < 0 ? core.capacity : std::min(slowest, core.capacity);
+    fastest = std::max(fastest, core.capacity);
+  }
+
+  std::vector<int> ids;
+  for (const auto &core : cores) {
+    // Unknown capacity or a single cluster: keep the core
+    if (core.capacity <= 0 || slowest == fastest || core.capacity > slowest)
+      ids.push_back(core.id);
+  }
+  return ids;
+}
+
+std::vector<int> prime_cores(const std::vector<cpu_core> &cores) {
+  long fastest = -1;
+  for (const auto &core : cores)
+    fastest = std::max(fastest, core.capacity);
+
+  std::vector<int> ids;
+  for (const auto &core : cores) {
+    if (core.capacity == fastest)
+      ids.push_back(core.id);
+  }
+  return ids;
+}
@@ -0,0 +1,21 @@
+#pragma once
+
+#include <string>
+#include <vector>
+
+// One online CPU as described by sysfs.
+struct cpu_core {
+  int id;
+  long capacity; // cpu_capacity, or cpuinfo_max_freq where capacity is absent
+};
+
+// Reads the online cores under `cpu_dir` (normally /sys/devices/system/cpu).
+// Taking the directory as a parameter lets a fake tree stand in on a host.
+std::vector<cpu_core> read_cpu_cores(const std::string &cpu_dir);
+
+// Cores worth running inference on: every core except the slowest cluster.
+// On a homogeneous CPU (or when sysfs gives no capacities) that is all cores.
+std::vector<int> performance_cores(const std::vector<cpu_core> &cores);
+
+// Cores of the fastest cluster only.
+std::vector<int> prime_cores(const std::vector<cpu_core> &cores);
@@ -0,0 +1,31 @@
+#pragma once
+
+// Stand-in for the NDK's <android/log.h> in host builds (see CMakeLists.txt):
+// log lines go to stderr, where the JVM test runner captures them.
+
+#include <cstdarg>
+#include <cstdio>
+
+enum android_LogPriority {
+  ANDROID_LOG_UNKNOWN = 0,
+  ANDROID_LOG_DEFAULT,
+  ANDROID_LOG_VERBOSE,
+  ANDROID_LOG_DEBUG,
+  ANDROID_LOG_INFO,
+  ANDROID_LOG_WARN,
+  ANDROID_LOG_ERROR,
+  ANDROID_LOG_FATAL,
+  ANDROID_LOG_SILENT,
+};
+
+static inline int __android_log_print(int prio, const char *tag,
+                                      const char *fmt, ...) {
+  static const char levels[] = "??VDIWEF?";
+  va_list args;
+  va_start(args, fmt);
+  fprintf(stderr, "%c/%s: ", levels[prio & 7], tag);
+  int n = vfprintf(stderr, fmt, args);
+  fputc('\n', stderr);
+  va_end(args);
+  return n;
+}
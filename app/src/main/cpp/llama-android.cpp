@@ -1,38 +1,1225 @@
+#include <algorithm>
 #include <android/log.h>
 #include <chrono>
+#include <cmath>
+#include <cstdlib>
+#include <cstdio>
+#include <cstring>
+#include <fcntl.h>
 #include <jni.h>
+#include <mutex>
+#include <sched.h>
 #include <string>
+#include <sys/mman.h>
+#include <sys/resource.h>
+#include <sys/stat.h>
 #include <thread>
+#include <unistd.h>
+#include <unordered_set>
 #include <vector>
 
 // llama.cpp headers
+#include "ggml-cpu.h"
 #include "llama.h"
+#include "mtmd-helper.h"
+#include "mtmd.h"
+
+#include "cpu_topology.h"
 
 #define TAG "LlamaCppJNI"
 #define LOGI(...) __android_log_print(ANDROID_LOG_INFO, TAG, __VA_ARGS__)
 #define LOGE(...) __android_log_print(ANDROID_LOG_ERROR, TAG, __VA_ARGS__)
 
+// Number of sequences that can generate concurrently in one context
+static const int MAX_SLOTS = 4;
+// Prompt prefixes (system turn as laid out by the chat template) whose
+// tokens are kept, one per persona in recent use
+static const size_t MAX_PREFIXES = 4;
+// Encoded images kept for re-asks about the same screen. A 448px Qwen2-VL
+// image is ~256 embeddings of 1536 floats, about 1.5 MB each.
+static const size_t MAX_CACHED_IMAGES = 8;
+static const char *SYSFS_CPU_DIR = "/sys/devices/system/cpu";
+
 // Inline batch helpers (these were in common.h but common isn't built as a
 // shared lib)
+// Every token belongs to exactly one sequence here, so the helper takes a
+// single seq id rather than building a vector per token.
 static void batch_add(llama_batch &batch, llama_token id, llama_pos pos,
-                      const std::vector<llama_seq_id> &seq_ids, bool logits) {
+                      llama_seq_id seq_id, bool logits) {
   batch.token[batch.n_tokens] = id;
   batch.pos[batch.n_tokens] = pos;
-  batch.n_seq_id[batch.n_tokens] = seq_ids.size();
-  for (size_t i = 0; i < seq_ids.size(); ++i) {
-    batch.seq_id[batch.n_tokens][i] = seq_ids[i];
-  }
+  batch.n_seq_id[batch.n_tokens] = 1;
+  batch.seq_id[batch.n_tokens][0] = seq_id;
   batch.logits[batch.n_tokens] = logits;
   batch.n_tokens++;
 }
 
 static void batch_clear(llama_batch &batch) { batch.n_tokens = 0; }
 
+// Length of the longest prefix of `s` that ends on a complete UTF-8 sequence.
+// Token pieces can split a multi-byte character, so streamed text is only
+// flushed up to this point and the tail waits for the next piece.
+static size_t utf8_complete_len(const std::string &s) {
+  size_t n = s.size();
+  for (size_t i = 1; i <= 4 && i <= n; ++i) {
+    unsigned char c = s[n - i];
+    if ((c & 0xC0) == 0x80)
+      continue; // continuation byte, keep walking back to the lead byte
+    size_t need = (c & 0x80) == 0x00   ? 1
+                  : (c & 0xE0) == 0xC0 ? 2
+                  : (c & 0xF0) == 0xE0 ? 3
+                  : (c & 0xF8) == 0xF0 ? 4
+                                       : 1;
+    return i >= need ? n : n - i;
+  }
+  return n;
+}
+
+// Reads standard UTF-8 text from a direct ByteBuffer Kotlin reuses across
+// calls. GetStringUTFChars would hand over modified UTF-8, which encodes
+// characters outside the BMP (emoji) as surrogate pairs the tokenizer
+// doesn't understand, and copies the string twice on the way.
+static bool direct_utf8(JNIEnv *env, jobject buffer, jint length,
+                        const char **data) {
+  *data = buffer ? (const char *)env->GetDirectBufferAddress(buffer) : nullptr;
+  return *data && length >= 0 && length <= env->GetDirectBufferCapacity(buffer);
+}
+
+// Reports how much of a slot's prompt is in the cache after a prefill chunk.
+static void emit_progress(JNIEnv *env, jobject listener, jmethodID onProgress,
+                          size_t done, size_t total) {
+  if (!listener || !onProgress)
+    return;
+  env->CallVoidMethod(listener, onProgress, (jint)done, (jint)total);
+  if (env->ExceptionCheck()) {
+    LOGE("GenerationListener threw, continuing generation");
+    env->ExceptionClear();
+  }
+}
+
+static size_t common_prefix_len(const std::vector<llama_token> &a,
+                                const std::vector<llama_token> &b) {
+  size_t n = 0;
+  while (n < a.size() && n < b.size() && a[n] == b[n])
+    n++;
+  return n;
+}
+
+static std::vector<llama_token> tokenize(const llama_vocab *vocab,
+                                         const char *text, int len) {
+  std::vector<llama_token> tokens(len + 16);
+  int n = llama_tokenize(vocab, text, len, tokens.data(), tokens.size(), true,
+                         true);
+  tokens.resize(n < 0 ? 0 : n);
+  return tokens;
+}
+
+using steady_time = std::chrono::steady_clock::time_point;
+
+static double ms_since(steady_time t) {
+  return std::chrono::duration<double, std::milli>(
+             std::chrono::steady_clock::now() - t)
+      .count();
+}
+
+// Pins the calling thread to `mask` for the lifetime of the object and
+// restores its previous affinity afterwards (the caller is a pooled JVM thread).
+struct scoped_affinity {
+  cpu_set_t saved;
+  bool active = false;
+
+  explicit scoped_affinity(const cpu_set_t &mask) {
+    if (CPU_COUNT(&mask) == 0)
+      return;
+    if (sched_getaffinity(0, sizeof(saved), &saved) == 0 &&
+        sched_setaffinity(0, sizeof(mask), &mask) == 0)
+      active = true;
+  }
+  ~scoped_affinity() {
+    if (active)
+      sched_setaffinity(0, sizeof(saved), &saved);
+  }
+};
+
+static ggml_threadpool *create_pinned_pool(const std::vector<int> &cores,
+                                           int n_threads) {
+  ggml_threadpool_params params = ggml_threadpool_params_default(n_threads);
+  for (int core : cores) {
+    if (core < GGML_MAX_N_THREADS)
+      params.cpumask[core] = true;
+  }
+  // Threads may move between the performance cores but never onto the
+  // little ones
+  params.strict_cpu = false;
+  return ggml_threadpool_new(&params);
+}
+
+// K/V cache layout a context was created with, after any fallback.
+struct kv_layout {
+  ggml_type type_k = GGML_TYPE_F16;
+  ggml_type type_v = GGML_TYPE_F16;
+  bool flash_attn = false;
+  uint32_t n_ctx = 0;
+  size_t bytes = 0; // K and V across all layers for n_ctx cells
+};
+
+// Per-head K or V width from the GGUF metadata ("<arch>.attention.key_length"
+// or "value_length"); most architectures omit it and use n_embd / n_head.
+static int64_t model_head_dim(const llama_model *model, const char *key) {
+  char arch[64] = {};
+  char value[32] = {};
+  if (llama_model_meta_val_str(model, "general.architecture", arch,
+                               sizeof(arch)) > 0) {
+    std::string name = std::string(arch) + ".attention." + key;
+    if (llama_model_meta_val_str(model, name.c_str(), value, sizeof(value)) > 0)
+      return atoll(value);
+  }
+  int32_t n_head = llama_model_n_head(model);
+  return n_head > 0 ? llama_model_n_embd(model) / n_head : 0;
+}
+
+// Quantized cache rows hold whole blocks, so the head width has to be a
+// multiple of the block size. Recurrent state isn't a K/V cache at all.
+static bool kv_type_fits(const llama_model *model, ggml_type type) {
+  if (type == GGML_TYPE_F16)
+    return true;
+  if (llama_model_is_recurrent(model) || llama_model_is_hybrid(model))
+    return false;
+  int64_t block = ggml_blck_size(type);
+  int64_t head_k = model_head_dim(model, "key_length");
+  int64_t head_v = model_head_dim(model, "value_length");
+  return head_k > 0 && head_v > 0 && head_k % block == 0 && head_v % block == 0;
+}
+
+static size_t kv_bytes(const llama_model *model, ggml_type type_k,
+                       ggml_type type_v, uint32_t n_ctx) {
+  int64_t n_head_kv = llama_model_n_head_kv(model);
+  size_t per_cell =
+      ggml_row_size(type_k, model_head_dim(model, "key_length") * n_head_kv) +
+      ggml_row_size(type_v, model_head_dim(model, "value_length") * n_head_kv);
+  return per_cell * llama_model_n_layer(model) * n_ctx;
+}
+
+// Sampling settings, set from Kotlin's GenerationParams for each model.
+struct sampling_params {
+  float temperature = 0.7f;
+  int32_t top_k = 40;
+  float top_p = 0.9f;
+  int32_t penalty_last_n = 64;
+  float penalty_repeat = 1.3f;
+  uint32_t seed = 42;
+};
+
+// One sequence of the shared context. A slot keeps its KV entries after its
+// request finishes, so the next request with the same prefix (system prompt,
+// earlier turns) can pick it up and only decode what differs.
+struct llama_slot {
+  llama_seq_id seq_id = 0;
+  int64_t request_id = 0; // 0 while the slot is free
+  bool finished = false;  // done, result not yet taken by Kotlin
+
+  std::vector<llama_token> cached; // tokens whose K/V sit in this sequence
+  std::vector<llama_token> prompt;
+  size_t n_prompt_done = 0;  // prompt tokens already in the cache
+  llama_token pending = -1;  // sampled but not yet decoded
+  int32_t i_batch = -1;      // logits row in the current batch, -1 if none
+  size_t n_batch_tokens = 0; // tokens this slot added to the current batch
+
+  bool has_media = false; // cached holds image positions (LLAMA_TOKEN_NULL)
+  int n_generated = 0;
+  int max_tokens = 0;
+  double deadline_ms = 0; // from t_start; 0 for none
+  bool hit_deadline = false;
+  std::vector<std::string> stops; // generation ends before any of these
+  std::string text;
+  size_t n_emitted = 0;
+  // Kept for the life of the context and reset per request; rebuilt only
+  // when the session's sampling params change.
+  llama_sampler *smpl = nullptr;
+  uint32_t smpl_version = 0;
+  // The same chain behind a grammar, for requests whose output is
+  // constrained (tool calls); kept and rebuilt the same way.
+  llama_sampler *grammar_smpl = nullptr;
+  uint32_t grammar_version = 0;
+  std::string grammar;
+  bool constrained = false; // this request samples from grammar_smpl
+  jobject listener = nullptr; // global ref
+  jmethodID on_token = nullptr;
+  jmethodID on_progress = nullptr;
+  // Direct ByteBuffer the listener reads streamed UTF-8 from
+  char *out_buf = nullptr;
+  size_t out_cap = 0;
+
+  size_t n_reused = 0;
+  steady_time t_start;
+  double t_first_token_ms = 0;
+  double t_total_ms = 0;
+  int n_drafted = 0;  // speculative tokens proposed for this request
+  int n_accepted = 0; // ... and confirmed by the target model
+
+  bool active() const { return request_id != 0 && !finished; }
+};
+
+// Copies a decoded chunk into the slot's output buffer and tells the Kotlin
+// GenerationListener how many bytes to read. Chunks larger than the buffer go
+// over in several upcalls, each cut on a character boundary.
+static void emit_token(JNIEnv *env, llama_slot &slot, const char *chunk,
+                       size_t len) {
+  if (!slot.listener || !slot.on_token || !slot.out_buf)
+    return;
+  while (len > 0) {
+    size_t n = std::min(len, slot.out_cap);
+    while (n < len && n > 0 && ((unsigned char)chunk[n] & 0xC0) == 0x80)
+      n--; // don't end the upcall inside a multi-byte character
+    if (n == 0)
+      n = std::min(len, slot.out_cap);
+    memcpy(slot.out_buf, chunk, n);
+    env->CallVoidMethod(slot.listener, slot.on_token, (jint)n);
+    if (env->ExceptionCheck()) {
+      LOGE("GenerationListener threw, continuing generation");
+      env->ExceptionClear();
+    }
+    chunk += n;
+    len -= n;
+  }
+}
+
+// Small model that proposes tokens for the target to verify (speculative
+// decoding). It has its own single-sequence context that follows whichever
+// slot is being drafted for.
+struct llama_draft {
+  llama_context *ctx = nullptr;
+  const llama_vocab *vocab = nullptr;
+  llama_batch batch = {};
+  int n_batch = 0;
+  int n_draft = 0; // tokens proposed per step
+  llama_sampler *smpl = nullptr;
+  std::vector<llama_token> cached;
+  std::vector<llama_token> proposal; // reused every step
+
+  uint64_t n_drafted = 0;
+  uint64_t n_accepted = 0;
+};
+
+// Multimodal projector (mtmd) turning images into embeddings the text model
+// decodes in place of tokens. Encoding is the costly part of a vision turn,
+// so recent results are kept by the perceptual hash Kotlin computes.
+struct llama_vision {
+  mtmd_context *ctx = nullptr;
+  // Most recent first
+  std::vector<std::pair<uint64_t, std::vector<float>>> embeddings;
+  uint64_t n_hits = 0;
+  uint64_t n_misses = 0;
+};
+
+// A llama_context kept alive for the life of the model, shared by up to
+// MAX_SLOTS concurrent requests. Every scheduler step decodes one llama_batch
+// holding the next token of each generating slot plus as many prompt tokens
+// of prefilling slots as fit in n_batch.
+struct llama_session {
+  llama_model *model = nullptr;
+  llama_context *ctx = nullptr;
+  const llama_vocab *vocab = nullptr;
+  llama_batch batch = {};
+  int n_batch = 0;
+  llama_slot slots[MAX_SLOTS];
+  llama_draft *draft = nullptr; // set while a draft model is attached
+  llama_vision *vision = nullptr; // set while a projector is attached
+  sampling_params params;
+  uint32_t params_version = 1;
+  kv_layout kv;
+
+  // Per-step scratch, reused so the decode loop doesn't allocate
+  std::vector<int64_t> finished;
+  std::vector<int64_t> step_ids;
+
+  // Worker pools pinned to the performance cores: one sized for single-token
+  // decode, one for prompt batches. The calling thread is pinned to the same
+  // cores while it drives a decode.
+  ggml_threadpool *threadpool = nullptr;
+  ggml_threadpool *threadpool_batch = nullptr;
+  cpu_set_t perf_mask;
+  int n_perf = 0;
+
+  // Cancel requests arrive from other threads. The abort callback stops a
+  // running decode only when every sequence in it has been cancelled.
+  std::mutex cancel_mutex;
+  std::unordered_set<int64_t> cancelled;
+  std::vector<int64_t> running;
+
+  // Tokens of recently used prompt prefixes, most recent first. Guarded by
+  // prefix_mutex since token counting runs outside the scheduler.
+  std::mutex prefix_mutex;
+  std::vector<std::pair<std::string, std::vector<llama_token>>> prefixes;
+
+  // Scheduler counters for throughput logging
+  uint64_t n_steps = 0;
+  uint64_t n_step_tokens = 0;
+};
+
+// Tokenizes a prompt whose first `prefix_len` bytes are a prefix shared by
+// many prompts (0 if none). The prefix's tokens are cached, so each turn only
+// tokenizes what follows it. The prefix ends on a template marker or newline,
+// where tokenizers split anyway, so the result matches tokenizing it whole.
+static std::vector<llama_token> tokenize_prompt(llama_session *s,
+                                                const char *text, int len,
+                                                int prefix_len) {
+  if (prefix_len <= 0 || prefix_len > len)
+    return tokenize(s->vocab, text, len);
+
+  std::vector<llama_token> tokens;
+  {
+    std::lock_guard<std::mutex> lock(s->prefix_mutex);
+    auto &cache = s->prefixes;
+    auto it = std::find_if(cache.begin(), cache.end(), [&](const auto &e) {
+      return e.first.size() == (size_t)prefix_len &&
+             memcmp(e.first.data(), text, prefix_len) == 0;
+    });
+    if (it == cache.end()) {
+      std::vector<llama_token> prefix = tokenize(s->vocab, text, prefix_len);
+      if (prefix.empty())
+        return tokenize(s->vocab, text, len);
+      if (cache.size() >= MAX_PREFIXES)
+        cache.pop_back();
+      cache.emplace(cache.begin(), std::string(text, prefix_len),
+                    std::move(prefix));
+    } else if (it != cache.begin()) {
+      std::rotate(cache.begin(), it, it + 1);
+    }
+    tokens = cache.front().second;
+  }
+
+  int rest = len - prefix_len;
+  if (rest == 0)
+    return tokens;
+  size_t n_prefix = tokens.size();
+  tokens.resize(n_prefix + rest + 16);
+  int n = llama_tokenize(s->vocab, text + prefix_len, rest,
+                         tokens.data() + n_prefix, rest + 16, false, true);
+  if (n < 0)
+    return {};
+  tokens.resize(n_prefix + n);
+  return tokens;
+}
+
+static bool is_cancelled(llama_session *s, int64_t request_id) {
+  std::lock_guard<std::mutex> lock(s->cancel_mutex);
+  return s->cancelled.count(request_id) > 0;
+}
+
+// ggml abort callback: lets a long decode stop between graph nodes
+static bool session_should_abort(void *data) {
+  auto *s = static_cast<llama_session *>(data);
+  std::lock_guard<std::mutex> lock(s->cancel_mutex);
+  if (s->running.empty())
+    return false;
+  for (int64_t id : s->running) {
+    if (!s->cancelled.count(id))
+      return false;
+  }
+  return true;
+}
+
+// Publishes the request ids in the decode about to run (null when it ends)
+static void set_running(llama_session *s, const std::vector<int64_t> *ids) {
+  std::lock_guard<std::mutex> lock(s->cancel_mutex);
+  if (ids)
+    s->running.assign(ids->begin(), ids->end());
+  else
+    s->running.clear();
+}
+
+static llama_memory_t session_memory(llama_session *s) {
+  return llama_get_memory(s->ctx);
+}
+
+static void slot_clear_cache(llama_session *s, llama_slot &slot) {
+  llama_memory_seq_rm(session_memory(s), slot.seq_id, -1, -1);
+  slot.cached.clear();
+}
+
+// The idle slot with the fewest cached tokens, or null if all are busy.
+static llama_slot *idle_slot(llama_session *s) {
+  llama_slot *slot = nullptr;
+  for (auto &candidate : s->slots) {
+    if (candidate.request_id == 0 &&
+        (!slot || candidate.cached.size() < slot->cached.size()))
+      slot = &candidate;
+  }
+  return slot;
+}
+
+// Drops everything after the first n_keep cached tokens of a slot. Returns
+// the number of tokens actually kept (0 if the sequence had to be cleared).
+static size_t slot_trim(llama_session *s, llama_slot &slot, size_t n_keep) {
+  if (n_keep < slot.cached.size()) {
+    if (!llama_memory_seq_rm(session_memory(s), slot.seq_id, (llama_pos)n_keep,
+                             -1)) {
+      // Recurrent/hybrid memories can't remove a partial range
+      slot_clear_cache(s, slot);
+      n_keep = 0;
+    }
+  }
+  slot.cached.resize(n_keep);
+  return n_keep;
+}
+
+// After a failed or aborted decode, drops whatever the decode left in a
+// slot's sequence beyond the tokens recorded in slot.cached.
+static void slot_rollback(llama_session *s, llama_slot &slot) {
+  if (!llama_memory_seq_rm(session_memory(s), slot.seq_id,
+                           (llama_pos)slot.cached.size(), -1)) {
+    slot_clear_cache(s, slot);
+  }
+}
+
+// Picks a free slot for `tokens` and lines its cache up with them: the free
+// slot with the longest cached prefix is used, and if another slot (busy or
+// not) shares an even longer prefix its K/V cells are copied in instead of
+// being decoded again. Returns nullptr when every slot is busy.
+static llama_slot *session_acquire(llama_session *s,
+                                   const std::vector<llama_token> &tokens,
+                                   bool need_logits) {
+  llama_slot *target = nullptr;
+  size_t target_len = 0;
+  for (auto &slot : s->slots) {
+    if (slot.request_id != 0)
+      continue;
+    size_t len = common_prefix_len(slot.cached, tokens);
+    if (!target || len > target_len) {
+      target = &slot;
+      target_len = len;
+    }
+  }
+  if (!target)
+    return nullptr;
+
+  llama_slot *donor = nullptr;
+  size_t donor_len = target_len;
+  for (auto &slot : s->slots) {
+    if (&slot == target)
+      continue;
+    size_t len = common_prefix_len(slot.cached, tokens);
+    if (len > donor_len) {
+      donor = &slot;
+      donor_len = len;
+    }
+  }
+
+  size_t n_keep = target_len;
+  if (donor) {
+    slot_clear_cache(s, *target);
+    llama_memory_seq_cp(session_memory(s), donor->seq_id, target->seq_id, 0,
+                        (llama_pos)donor_len);
+    target->cached.assign(tokens.begin(), tokens.begin() + donor_len);
+    n_keep = donor_len;
+  }
+
+  // At least one token is re-decoded so the last prompt position has fresh
+  // logits to sample from.
+  if (need_logits && n_keep >= tokens.size())
+    n_keep = tokens.size() - 1;
+  slot_trim(s, *target, n_keep);
+  return target;
+}
+
+// Frees idle slots' KV cells so active sequences have room. Returns true if
+// anything was released.
+static bool session_evict_idle(llama_session *s) {
+  bool evicted = false;
+  for (auto &slot : s->slots) {
+    if (slot.request_id == 0 && !slot.cached.empty()) {
+      slot_clear_cache(s, slot);
+      evicted = true;
+    }
+  }
+  return evicted;
+}
+
+static int session_decode(llama_session *s) {
+  int ret = llama_decode(s->ctx, s->batch);
+  if (ret == 1 && session_evict_idle(s)) {
+    LOGI("KV cache full, evicted idle sequences and retrying");
+    ret = llama_decode(s->ctx, s->batch);
+  }
+  return ret;
+}
+
+// Decodes tokens after whatever a slot already holds, in n_batch chunks and
+// without logits. Returns false, with the slot rolled back, on failure.
+static bool slot_decode(llama_session *s, llama_slot &slot,
+                        const llama_token *tokens, size_t n_tokens) {
+  size_t i = 0;
+  while (i < n_tokens) {
+    batch_clear(s->batch);
+    size_t n = std::min(n_tokens - i, (size_t)s->n_batch);
+    for (size_t k = 0; k < n; k++) {
+      batch_add(s->batch, tokens[i + k], slot.cached.size() + k, slot.seq_id,
+                false);
+    }
+    if (session_decode(s) != 0) {
+      slot_rollback(s, slot);
+      return false;
+    }
+    slot.cached.insert(slot.cached.end(), tokens + i, tokens + i + n);
+    i += n;
+  }
+  return true;
+}
+
+// Decodes `tokens` into a free slot without sampling (used to warm the
+// system prompt). Returns the slot, or nullptr on failure.
+static llama_slot *session_prefill(llama_session *s,
+                                   const std::vector<llama_token> &tokens) {
+  llama_slot *slot = session_acquire(s, tokens, false);
+  if (!slot)
+    return nullptr;
+  size_t done = slot->cached.size();
+  if (!slot_decode(s, *slot, tokens.data() + done, tokens.size() - done))
+    return nullptr;
+  return slot;
+}
+
+// Embeddings for an image chunk: from the cache when an image with the same
+// hash was encoded before, otherwise encoded now and cached. Null on failure.
+static float *vision_embeddings(llama_session *s, const mtmd_input_chunk *chunk,
+                                uint64_t hash) {
+  llama_vision *v = s->vision;
+  size_t n_floats = mtmd_input_chunk_get_n_tokens(chunk) *
+                    (size_t)llama_model_n_embd(s->model);
+  auto &cache = v->embeddings;
+  for (size_t i = 0; i < cache.size(); i++) {
+    if (cache[i].first != hash || cache[i].second.size() != n_floats)
+      continue;
+    std::rotate(cache.begin(), cache.begin() + i, cache.begin() + i + 1);
+    v->n_hits++;
+    return cache.front().second.data();
+  }
+
+  auto t0 = std::chrono::steady_clock::now();
+  if (mtmd_encode_chunk(v->ctx, chunk) != 0)
+    return nullptr;
+  const float *embd = mtmd_get_output_embd(v->ctx);
+  v->n_misses++;
+  if (cache.size() >= MAX_CACHED_IMAGES)
+    cache.pop_back();
+  cache.emplace(cache.begin(), hash, std::vector<float>(embd, embd + n_floats));
+  LOGI("Encoded image in %.0f ms (cache %llu hits, %llu misses)", ms_since(t0),
+       (unsigned long long)v->n_hits, (unsigned long long)v->n_misses);
+  return cache.front().second.data();
+}
+
+// Prepares a slot for a prompt with an image: mtmd splits the prompt at the
+// image marker into text and image chunks. Text shared with the slot's cache
+// (the system prefix) is reused, the rest decoded now, the image through its
+// embeddings. The last prompt token is left for the scheduler so it decodes
+// with logits. Returns nullptr if every slot is busy, sets *error on failure.
+static llama_slot *session_acquire_media(llama_session *s, const char *prompt,
+                                         int prompt_len,
+                                         const unsigned char *rgb, int nx,
+                                         int ny, uint64_t hash, bool *error) {
+  *error = true;
+  std::string text(prompt, prompt_len);
+  mtmd_input_text input = {text.c_str(), true, true};
+  mtmd_bitmap *bitmap = mtmd_bitmap_init(nx, ny, rgb);
+  mtmd_input_chunks *chunks = mtmd_input_chunks_init();
+  const mtmd_bitmap *bitmaps[] = {bitmap};
+  int32_t ret = mtmd_tokenize(s->vision->ctx, chunks, &input, bitmaps, 1);
+  mtmd_bitmap_free(bitmap);
+  size_t n_chunks = mtmd_input_chunks_size(chunks);
+  if (ret != 0 || n_chunks == 0 ||
+      mtmd_input_chunk_get_type(mtmd_input_chunks_get(chunks, n_chunks - 1)) !=
+          MTMD_INPUT_CHUNK_TYPE_TEXT) {
+    LOGE("Image prompt could not be tokenized (%d)", ret);
+    mtmd_input_chunks_free(chunks);
+    return nullptr;
+  }
+
+  size_t n_pos = 0;
+  for (size_t i = 0; i < n_chunks; i++)
+    n_pos += mtmd_input_chunk_get_n_pos(mtmd_input_chunks_get(chunks, i));
+  if (n_pos >= llama_n_ctx(s->ctx)) {
+    LOGE("Image prompt (%zu positions) exceeds the context", n_pos);
+    mtmd_input_chunks_free(chunks);
+    return nullptr;
+  }
+
+  // Slot choice and prefix reuse go by the text before the image
+  size_t n_first = 0;
+  const mtmd_input_chunk *first = mtmd_input_chunks_get(chunks, 0);
+  const llama_token *first_tokens =
+      mtmd_input_chunk_get_type(first) == MTMD_INPUT_CHUNK_TYPE_TEXT
+          ? mtmd_input_chunk_get_tokens_text(first, &n_first)
+          : nullptr;
+  std::vector<llama_token> prefix(first_tokens, first_tokens + n_first);
+  llama_slot *slot = session_acquire(s, prefix, false);
+  if (!slot) {
+    *error = false;
+    mtmd_input_chunks_free(chunks);
+    return nullptr;
+  }
+
+  bool ok = true;
+  for (size_t i = 0; ok && i < n_chunks; i++) {
+    const mtmd_input_chunk *chunk = mtmd_input_chunks_get(chunks, i);
+    if (mtmd_input_chunk_get_type(chunk) == MTMD_INPUT_CHUNK_TYPE_TEXT) {
+      size_t n = 0;
+      const llama_token *tokens = mtmd_input_chunk_get_tokens_text(chunk, &n);
+      size_t skip = i == 0 ? slot->cached.size() : 0;
+      if (i == n_chunks - 1)
+        n--; // the scheduler decodes the last token, with logits
+      ok = slot_decode(s, *slot, tokens + skip, n - skip);
+      if (ok && i == n_chunks - 1) {
+        slot->prompt = slot->cached;
+        slot->prompt.push_back(tokens[n]);
+      }
+    } else {
+      float *embd = vision_embeddings(s, chunk, hash);
+      llama_pos n_past = (llama_pos)slot->cached.size();
+      llama_pos new_n_past = n_past;
+      ok = embd && mtmd_helper_decode_image_chunk(
+                       s->vision->ctx, s->ctx, chunk, embd, n_past,
+                       slot->seq_id, s->n_batch, &new_n_past) == 0;
+      if (ok) {
+        // Image positions have no token ids; nothing else can match them
+        slot->cached.resize(new_n_past, LLAMA_TOKEN_NULL);
+      } else {
+        slot_rollback(s, *slot);
+      }
+    }
+  }
+  mtmd_input_chunks_free(chunks);
+  if (!ok) {
+    LOGE("Decoding the image prompt failed");
+    return nullptr;
+  }
+  *error = false;
+  return slot;
+}
+
+// With a grammar (GBNF, rule "root") every token that would break it is
+// masked out before the usual samplers run. Returns null if the grammar
+// doesn't parse.
+static llama_sampler *create_sampler(const sampling_params &p,
+                                     const llama_vocab *vocab = nullptr,
+                                     const char *grammar = nullptr) {
+  llama_sampler *smpl =
+      llama_sampler_chain_init(llama_sampler_chain_default_params());
+  llama_sampler_chain_add(smpl, llama_sampler_init_penalties(
+                                    p.penalty_last_n, p.penalty_repeat, 0.0f,
+                                    0.0f));
+  if (grammar) {
+    llama_sampler *g = llama_sampler_init_grammar(vocab, grammar, "root");
+    if (!g) {
+      llama_sampler_free(smpl);
+      return nullptr;
+    }
+    llama_sampler_chain_add(smpl, g);
+  }
+  if (p.temperature <= 0.0f) {
+    llama_sampler_chain_add(smpl, llama_sampler_init_greedy());
+    return smpl;
+  }
+  if (p.top_k > 0)
+    llama_sampler_chain_add(smpl, llama_sampler_init_top_k(p.top_k));
+  llama_sampler_chain_add(smpl, llama_sampler_init_top_p(p.top_p, 1));
+  llama_sampler_chain_add(smpl, llama_sampler_init_temp(p.temperature));
+  llama_sampler_chain_add(smpl, llama_sampler_init_dist(p.seed));
+  return smpl;
+}
+
+// Readies a slot's sampler for a new request: a reset clears the penalty
+// history and reseeds (and rewinds the grammar), so only a params or
+// grammar change needs a new chain. A grammar that doesn't parse leaves the
+// request unconstrained.
+static void slot_prepare_sampler(llama_session *s, llama_slot &slot,
+                                 const char *grammar) {
+  slot.constrained = false;
+  if (grammar) {
+    if (slot.grammar_smpl && slot.grammar_version == s->params_version &&
+        slot.grammar == grammar) {
+      llama_sampler_reset(slot.grammar_smpl);
+      slot.constrained = true;
+      return;
+    }
+    if (slot.grammar_smpl)
+      llama_sampler_free(slot.grammar_smpl);
+    slot.grammar_smpl = create_sampler(s->params, s->vocab, grammar);
+    slot.grammar = slot.grammar_smpl ? grammar : "";
+    slot.grammar_version = s->params_version;
+    if (slot.grammar_smpl) {
+      slot.constrained = true;
+      return;
+    }
+    LOGE("Grammar failed to parse, generating unconstrained");
+  }
+  if (slot.smpl && slot.smpl_version == s->params_version) {
+    llama_sampler_reset(slot.smpl);
+    return;
+  }
+  if (slot.smpl)
+    llama_sampler_free(slot.smpl);
+  slot.smpl = create_sampler(s->params);
+  slot.smpl_version = s->params_version;
+}
+
+static llama_sampler *slot_sampler(const llama_slot &slot) {
+  return slot.constrained ? slot.grammar_smpl : slot.smpl;
+}
+
+// Whether text starts with a JSON object that has been closed. Braces inside
+// strings don't count.
+static bool json_object_closed(const std::string &text) {
+  size_t i = text.find_first_not_of(" \t\r\n");
+  if (i == std::string::npos || text[i] != '{')
+    return false;
+  int depth = 0;
+  bool in_string = false;
+  for (; i < text.size(); i++) {
+    char c = text[i];
+    if (in_string) {
+      if (c == '\\')
+        i++;
+      else if (c == '"')
+        in_string = false;
+    } else if (c == '"') {
+      in_string = true;
+    } else if (c == '{') {
+      depth++;
+    } else if (c == '}' && --depth == 0) {
+      return true;
+    }
+  }
+  return false;
+}
+
+static void slot_finish(JNIEnv *env, llama_slot &slot, const char *reason,
+                        std::vector<int64_t> &finished) {
+  if (slot.text.size() > slot.n_emitted) {
+    emit_token(env, slot, slot.text.data() + slot.n_emitted,
+               slot.text.size() - slot.n_emitted);
+    slot.n_emitted = slot.text.size();
+  }
+  slot.finished = true;
+  slot.pending = -1;
+  finished.push_back(slot.request_id);
+
+  slot.t_total_ms = ms_since(slot.t_start);
+  double decode_ms = slot.t_total_ms - slot.t_first_token_ms;
+  LOGI("Request %lld done (%s): %zu prompt tokens (%zu reused), %d generated, "
+       "first token %.0f ms, total %.0f ms, %.1f tok/s, draft %d/%d accepted",
+       (long long)slot.request_id, reason, slot.prompt.size(), slot.n_reused,
+       slot.n_generated, slot.t_first_token_ms, slot.t_total_ms,
+       decode_ms > 0 ? slot.n_generated * 1000.0 / decode_ms : 0.0,
+       slot.n_accepted, slot.n_drafted);
+}
+
+// Earliest position at or after `from` where a stop string starts, or npos.
+static size_t find_stop(const llama_slot &slot, size_t from) {
+  size_t first = std::string::npos;
+  for (const auto &stop : slot.stops) {
+    size_t pos = slot.text.find(stop, from);
+    if (pos < first)
+      first = pos;
+  }
+  return first;
+}
+
+// Length of the longest end of the text (past `from`) that a stop string
+// starts with. Those bytes aren't streamed until the next tokens show
+// whether the stop string completes.
+static size_t stop_prefix_len(const llama_slot &slot, size_t from) {
+  const std::string &text = slot.text;
+  size_t longest = 0;
+  for (const auto &stop : slot.stops) {
+    size_t k = std::min(stop.size() - 1, text.size() - from);
+    for (; k > longest; k--) {
+      if (text.compare(text.size() - k, k, stop, 0, k) == 0) {
+        longest = k;
+        break;
+      }
+    }
+  }
+  return longest;
+}
+
+// Handles one token sampled for a slot: stop checks, text and streaming.
+// Returns true if the slot keeps generating, with the token left pending for
+// the next decode.
+static bool slot_accept_token(JNIEnv *env, llama_slot &slot, llama_token token,
+                              const llama_vocab *vocab,
+                              std::vector<int64_t> &finished) {
+  if (slot.n_generated == 0)
+    slot.t_first_token_ms = ms_since(slot.t_start);
+
+  if (llama_vocab_is_eog(vocab, token)) {
+    slot_finish(env, slot, "eos", finished);
+    return false;
+  }
+
+  char buf[256];
+  int n = llama_token_to_piece(vocab, token, buf, sizeof(buf), 0, true);
+  if (n > 0) {
+    slot.text.append(buf, n);
+    // Stop strings are matched on the text, so they're caught however the
+    // model splits them into tokens; only the unstreamed tail is searched
+    if (!slot.stops.empty()) {
+      size_t stop = find_stop(slot, slot.n_emitted);
+      if (stop != std::string::npos) {
+        slot.text.resize(stop);
+        slot.n_generated++;
+        slot_finish(env, slot, "stop string", finished);
+        return false;
+      }
+    }
+    size_t complete = utf8_complete_len(slot.text);
+    if (!slot.stops.empty())
+      complete = std::min(complete, slot.text.size() -
+                                        stop_prefix_len(slot, slot.n_emitted));
+    if (complete > slot.n_emitted) {
+      emit_token(env, slot, slot.text.data() + slot.n_emitted,
+                 complete - slot.n_emitted);
+      slot.n_emitted = complete;
+    }
+  }
+
+  slot.n_generated++;
+  // A tool call ends with its closing brace; the grammar would allow nothing
+  // but end-of-generation after it, so don't spend a decode finding out.
+  if (slot.constrained && n > 0 && buf[n - 1] == '}' &&
+      json_object_closed(slot.text)) {
+    slot_finish(env, slot, "tool call", finished);
+    return false;
+  }
+  if (slot.n_generated >= slot.max_tokens) {
+    slot_finish(env, slot, "max tokens", finished);
+    return false;
+  }
+  slot.pending = token;
+  return true;
+}
+
+// Lines the draft context up with a slot's cached tokens followed by `next`,
+// decoding whatever it doesn't already hold so the logits for `next` are
+// ready. Returns the logits row, or -1 if the draft decode failed.
+static int32_t draft_sync(llama_draft *d, const std::vector<llama_token> &cached,
+                          llama_token next) {
+  llama_memory_t mem = llama_get_memory(d->ctx);
+  const size_t n_history = cached.size() + 1;
+  auto token_at = [&](size_t i) {
+    return i < cached.size() ? cached[i] : next;
+  };
+
+  // `next` is always re-decoded, so at most `cached` is kept
+  size_t n_keep = common_prefix_len(d->cached, cached);
+  if (n_keep < d->cached.size()) {
+    llama_memory_seq_rm(mem, 0, (llama_pos)n_keep, -1);
+    d->cached.resize(n_keep);
+  }
+
+  int32_t last = -1;
+  size_t i = n_keep;
+  while (i < n_history) {
+    batch_clear(d->batch);
+    size_t n = std::min(n_history - i, (size_t)d->n_batch);
+    for (size_t k = 0; k < n; k++) {
+      batch_add(d->batch, token_at(i + k), i + k, 0, i + k == n_history - 1);
+    }
+    if (llama_decode(d->ctx, d->batch) != 0) {
+      llama_memory_clear(mem, true);
+      d->cached.clear();
+      return -1;
+    }
+    for (size_t k = 0; k < n; k++)
+      d->cached.push_back(token_at(i + k));
+    last = n - 1;
+    i += n;
+  }
+  return last;
+}
+
+// Greedily proposes up to n_max tokens after the slot's cached tokens and
+// `next`. The result lives in d->proposal until the next call.
+static const std::vector<llama_token> &
+draft_propose(llama_draft *d, const std::vector<llama_token> &cached,
+              llama_token next, int n_max) {
+  d->proposal.clear();
+  int32_t idx = draft_sync(d, cached, next);
+  if (idx < 0)
+    return d->proposal;
+
+  llama_sampler_reset(d->smpl);
+  for (int i = 0; i < n_max; i++) {
+    llama_token token = llama_sampler_sample(d->smpl, d->ctx, idx);
+    d->proposal.push_back(token);
+    if (i == n_max - 1 || llama_vocab_is_eog(d->vocab, token))
+      break;
+    batch_clear(d->batch);
+    batch_add(d->batch, token, d->cached.size(), 0, true);
+    if (llama_decode(d->ctx, d->batch) != 0)
+      break;
+    d->cached.push_back(token);
+    idx = 0;
+  }
+  return d->proposal;
+}
+
+// Speculative step for a lone generating slot: the draft proposes a few
+// tokens, the target decodes the pending token plus all of them in one batch,
+// and tokens are kept for as long as the target's own samples agree. Every
+// step yields at least one token, as a normal step would.
+static void session_step_speculative(JNIEnv *env, llama_session *s,
+                                     llama_slot &slot,
+                                     std::vector<int64_t> &finished) {
+  llama_draft *d = s->draft;
+  const size_t n_ctx = llama_n_ctx(s->ctx);
+
+  int n_max = std::min<int>(d->n_draft, (int)(n_ctx - slot.cached.size()) - 2);
+  n_max = std::min(n_max, s->n_batch - 1);
+  d->proposal.clear();
+  const std::vector<llama_token> &proposal =
+      n_max > 0 ? draft_propose(d, slot.cached, slot.pending, n_max)
+                : d->proposal;
+
+  batch_clear(s->batch);
+  batch_add(s->batch, slot.pending, slot.cached.size(), slot.seq_id, true);
+  for (size_t i = 0; i < proposal.size(); i++) {
+    batch_add(s->batch, proposal[i], slot.cached.size() + 1 + i,
+              slot.seq_id, true);
+  }
+
+  s->step_ids.clear();
+  s->step_ids.push_back(slot.request_id);
+  set_running(s, &s->step_ids);
+  int ret = session_decode(s);
+  set_running(s, nullptr);
+  if (ret != 0) {
+    LOGE("Speculative decode failed or aborted (%d)", ret);
+    slot_rollback(s, slot);
+    if (slot.text.empty() && !is_cancelled(s, slot.request_id))
+      slot.text = "Error: decode failed";
+    slot_finish(env, slot, "decode failed", finished);
+    return;
+  }
+  s->n_steps++;
+  s->n_step_tokens += s->batch.n_tokens;
+
+  slot.cached.push_back(slot.pending);
+  slot.pending = -1;
+  int n_accepted = 0;
+  for (size_t i = 0; i <= proposal.size(); i++) {
+    llama_token token = llama_sampler_sample(slot_sampler(slot), s->ctx, i);
+    if (!slot_accept_token(env, slot, token, s->vocab, finished))
+      break;
+    if (i == proposal.size() || token != proposal[i])
+      break; // stays pending; its K/V isn't in the target cache yet
+    // Draft token confirmed: its K/V from this batch is valid
+    slot.cached.push_back(token);
+    slot.pending = -1;
+    n_accepted++;
+  }
+
+  // Drop the K/V of rejected draft tokens
+  if (!llama_memory_seq_rm(session_memory(s), slot.seq_id,
+                           (llama_pos)slot.cached.size(), -1) &&
+      slot.active()) {
+    slot_clear_cache(s, slot);
+    slot.text += "\n[Error: KV rollback failed]";
+    slot_finish(env, slot, "rollback failed", finished);
+  }
+
+  slot.n_drafted += proposal.size();
+  slot.n_accepted += n_accepted;
+  d->n_drafted += proposal.size();
+  d->n_accepted += n_accepted;
+}
+
+// One scheduler step: retires slots that hit a limit, builds a single batch
+// from every active slot, decodes it and samples the next token of each slot
+// that produced logits. Returns the ids of requests that finished.
+static const std::vector<int64_t> &session_step(JNIEnv *env,
+                                                llama_session *s) {
+  std::vector<int64_t> &finished = s->finished;
+  finished.clear();
+  const size_t n_ctx = llama_n_ctx(s->ctx);
+
+  for (auto &slot : s->slots) {
+    if (!slot.active())
+      continue;
+    if (is_cancelled(s, slot.request_id)) {
+      slot_finish(env, slot, "cancelled", finished);
+    } else if (slot.deadline_ms > 0 &&
+               ms_since(slot.t_start) > slot.deadline_ms) {
+      // What was generated so far has been streamed and is the result
+      slot.hit_deadline = true;
+      slot_finish(env, slot, "deadline", finished);
+    } else if (slot.pending >= 0 && slot.cached.size() >= n_ctx) {
+      slot_finish(env, slot, "context full", finished);
+    }
+  }
+
+  // With one request generating and nothing prefilling, batching has nothing
+  // to share the step with, so let the draft model fill it instead
+  if (s->draft) {
+    llama_slot *lone = nullptr;
+    int n_active = 0;
+    for (auto &slot : s->slots) {
+      if (slot.active()) {
+        n_active++;
+        lone = &slot;
+      }
+    }
+    // The draft can't follow image positions, which have no token ids
+    if (n_active == 1 && lone->pending >= 0 && !lone->has_media) {
+      session_step_speculative(env, s, *lone, finished);
+      return finished;
+    }
+  }
+
+  // Generating slots contribute one token each; prompt chunks fill the rest
+  batch_clear(s->batch);
+  std::vector<int64_t> &running = s->step_ids;
+  running.clear();
+  for (auto &slot : s->slots) {
+    slot.i_batch = -1;
+    slot.n_batch_tokens = 0;
+    if (!slot.active() || slot.pending < 0)
+      continue;
+    slot.i_batch = s->batch.n_tokens;
+    slot.n_batch_tokens = 1;
+    batch_add(s->batch, slot.pending, slot.cached.size(), slot.seq_id, true);
+    running.push_back(slot.request_id);
+  }
+  for (auto &slot : s->slots) {
+    if (!slot.active() || slot.pending >= 0)
+      continue;
+    size_t budget = s->n_batch - s->batch.n_tokens;
+    size_t remaining = slot.prompt.size() - slot.n_prompt_done;
+    size_t n = std::min(budget, remaining);
+    if (n == 0)
+      continue;
+    for (size_t k = 0; k < n; k++) {
+      size_t pos = slot.n_prompt_done + k;
+      bool last = (pos == slot.prompt.size() - 1);
+      if (last)
+        slot.i_batch = s->batch.n_tokens;
+      batch_add(s->batch, slot.prompt[pos], pos, slot.seq_id, last);
+    }
+    slot.n_batch_tokens = n;
+    running.push_back(slot.request_id);
+  }
+
+  if (s->batch.n_tokens == 0)
+    return finished;
+
+  set_running(s, &running);
+  int ret = session_decode(s);
+  set_running(s, nullptr);
+
+  if (ret != 0) {
+    LOGE("Batch decode failed or aborted (%d) with %d tokens", ret,
+         s->batch.n_tokens);
+    for (auto &slot : s->slots) {
+      if (slot.n_batch_tokens == 0)
+        continue;
+      slot_rollback(s, slot);
+      if (slot.text.empty() && !is_cancelled(s, slot.request_id))
+        slot.text = "Error: decode failed";
+      slot_finish(env, slot, "decode failed", finished);
+    }
+    return finished;
+  }
+
+  s->n_steps++;
+  s->n_step_tokens += s->batch.n_tokens;
+
+  for (auto &slot : s->slots) {
+    if (slot.n_batch_tokens == 0)
+      continue;
+
+    // Commit what this step decoded into the slot's cache record
+    if (slot.pending >= 0) {
+      slot.cached.push_back(slot.pending);
+      slot.pending = -1;
+    } else {
+      slot.cached.insert(slot.cached.end(),
+                         slot.prompt.begin() + slot.n_prompt_done,
+                         slot.prompt.begin() + slot.n_prompt_done +
+                             slot.n_batch_tokens);
+      slot.n_prompt_done += slot.n_batch_tokens;
+      emit_progress(env, slot.listener, slot.on_progress, slot.n_prompt_done,
+                    slot.prompt.size());
+    }
+    if (slot.i_batch < 0)
+      continue; // prompt chunk that didn't reach the end yet
+
+    llama_token token = llama_sampler_sample(slot_sampler(slot), s->ctx, slot.i_batch);
+    slot_accept_token(env, slot, token, s->vocab, finished);
+  }
+
+  if (s->n_steps % 64 == 0) {
+    LOGI("Scheduler: %llu steps, %.1f tokens/step",
+         (unsigned long long)s->n_steps,
+         (double)s->n_step_tokens / (double)s->n_steps);
+  }
+  return finished;
+}
+
+// Speculation only works if both models map text to the same token ids
+static bool vocabs_compatible(const llama_vocab *a, const llama_vocab *b) {
+  if (llama_vocab_type(a) != llama_vocab_type(b) ||
+      llama_vocab_bos(a) != llama_vocab_bos(b) ||
+      llama_vocab_eos(a) != llama_vocab_eos(b))
+    return false;
+  int n_a = llama_vocab_n_tokens(a);
+  int n_b = llama_vocab_n_tokens(b);
+  if (std::abs(n_a - n_b) > 128)
+    return false;
+  for (int i = 0; i < std::min(n_a, n_b); i++) {
+    if (strcmp(llama_vocab_get_text(a, i), llama_vocab_get_text(b, i)) != 0)
+      return false;
+  }
+  return true;
+}
+
+static void draft_free(llama_draft *d) {
+  if (!d)
+    return;
+  llama_sampler_free(d->smpl);
+  llama_batch_free(d->batch);
+  llama_free(d->ctx);
+  delete d;
+}
+
+static_assert(sizeof(jlong) == sizeof(int64_t), "jlong must be 64-bit");
+
+static jlongArray to_jlong_array(JNIEnv *env, const std::vector<int64_t> &ids) {
+  jlongArray array = env->NewLongArray(ids.size());
+  if (!ids.empty()) {
+    env->SetLongArrayRegion(array, 0, ids.size(),
+                            reinterpret_cast<const jlong *>(ids.data()));
+  }
+  return array;
+}
+
+// KV snapshot file layout: header, cached token ids, then the opaque
+// llama_state_seq blob for one sequence.
+static const uint32_t KV_SNAPSHOT_MAGIC = 0x53564b4c; // "LKVS"
+static const uint32_t KV_SNAPSHOT_VERSION = 1;
+
+struct kv_snapshot_header {
+  uint32_t magic;
+  uint32_t version;
+  uint32_t n_tokens;
+  uint32_t reserved;
+  uint64_t state_size;
+};
+
 extern "C" {
 
 JNIEXPORT jlong JNICALL
 Java_com_abettergemini_assistant_LlamaCppBackend_nativeLoadModel(
-    JNIEnv *env, jobject /* this */, jstring modelPath) {
+    JNIEnv *env, jobject /* this */, jstring modelPath, jboolean lockInRam) {
 
   const char *path = env->GetStringUTFChars(modelPath, nullptr);
   LOGI("Loading model: %s", path);
@@ -40,6 +1227,20 @@ Java_com_abettergemini_assistant_LlamaCppBackend_nativeLoadModel(
   llama_model_params model_params = llama_model_default_params();
   model_params.n_gpu_layers = 99; // Offload as many layers to GPU as possible
 
+  // mlock keeps the weights from being paged out under memory pressure.
+  // Apps usually get a tiny RLIMIT_MEMLOCK, so only ask when it would fit.
+  if (lockInRam) {
+    struct stat st;
+    struct rlimit limit;
+    if (stat(path, &st) == 0 && getrlimit(RLIMIT_MEMLOCK, &limit) == 0 &&
+        (limit.rlim_cur == RLIM_INFINITY ||
+         limit.rlim_cur >= (rlim_t)st.st_size)) {
+      model_params.use_mlock = true;
+    } else {
+      LOGI("Not locking model: RLIMIT_MEMLOCK below the model size");
+    }
+  }
+
   llama_model *model = llama_model_load_from_file(path, model_params);
   env->ReleaseStringUTFChars(modelPath, path);
 
@@ -52,129 +1253,963 @@ Java_com_abettergemini_assistant_LlamaCppBackend_nativeLoadModel(
   return reinterpret_cast<jlong>(model);
 }
 
+// Warms up a freshly loaded model so the first request doesn't pay for it:
+// reads the GGUF sequentially with read-ahead hints, so the weights llama.cpp
+// mmapped are in the page cache rather than faulted in from flash one page
+// at a time during the first decode, then decodes one token in an idle slot
+// to touch every layer and allocate compute buffers (nativeWarmupDecode).
+// The read needs no session, so it runs without holding the scheduler.
+// `listener` gets onWarmupProgress(bytesRead, totalBytes) every 64 MiB.
+// Returns [bytes read, read us], or null if the file can't be opened.
+static const size_t WARMUP_CHUNK = 4 << 20;
+static const size_t WARMUP_REPORT = 64 << 20;
+
+JNIEXPORT jlongArray JNICALL
+Java_com_abettergemini_assistant_LlamaCppBackend_nativeWarmupRead(
+    JNIEnv *env, jobject /* this */, jstring modelPath, jobject listener) {
+
+  const char *path = env->GetStringUTFChars(modelPath, nullptr);
+  int fd = open(path, O_RDONLY | O_CLOEXEC);
+  env->ReleaseStringUTFChars(modelPath, path);
+  struct stat st;
+  if (fd < 0 || fstat(fd, &st) != 0) {
+    if (fd >= 0)
+      close(fd);
+    return nullptr;
+  }
+
+  jmethodID on_progress = nullptr;
+  if (listener) {
+    jclass cls = env->GetObjectClass(listener);
+    on_progress = env->GetMethodID(cls, "onWarmupProgress", "(JJ)V");
+    env->DeleteLocalRef(cls);
+  }
+
+  auto t0 = std::chrono::steady_clock::now();
+  posix_fadvise(fd, 0, 0, POSIX_FADV_SEQUENTIAL);
+  posix_fadvise(fd, 0, 0, POSIX_FADV_WILLNEED);
+  std::vector<char> buffer(WARMUP_CHUNK);
+  size_t total = (size_t)st.st_size, done = 0, reported = 0;
+  while (done < total) {
+    ssize_t n = read(fd, buffer.data(), buffer.size());
+    if (n <= 0)
+      break;
+    done += (size_t)n;
+    if (on_progress && (done - reported >= WARMUP_REPORT || done == total)) {
+      reported = done;
+      env->CallVoidMethod(listener, on_progress, (jlong)done, (jlong)total);
+      if (env->ExceptionCheck())
+        break;
+    }
+  }
+  close(fd);
+  auto t1 = std::chrono::steady_clock::now();
+
+  using us = std::chrono::microseconds;
+  std::vector<int64_t> result = {
+      (int64_t)done, std::chrono::duration_cast<us>(t1 - t0).count()};
+  LOGI("Warm-up read %.1f MiB in %lld ms", done / (1024.0 * 1024.0),
+       (long long)(result[1] / 1000));
+  return to_jlong_array(env, result);
+}
+
+// The decode half of the warm-up: one token in an idle slot, then cleared.
+// Returns the decode time in us, or -1 if no slot is free or it failed.
+JNIEXPORT jlong JNICALL
+Java_com_abettergemini_assistant_LlamaCppBackend_nativeWarmupDecode(
+    JNIEnv *env, jobject /* this */, jlong contextPtr) {
+
+  auto *s = reinterpret_cast<llama_session *>(contextPtr);
+  llama_slot *slot = idle_slot(s);
+  if (!slot)
+    return -1;
+  llama_token token = llama_vocab_bos(s->vocab);
+  if (token == LLAMA_TOKEN_NULL)
+    token = 0;
+
+  scoped_affinity pin(s->perf_mask);
+  slot_clear_cache(s, *slot);
+  auto t0 = std::chrono::steady_clock::now();
+  batch_clear(s->batch);
+  batch_add(s->batch, token, 0, slot->seq_id, true);
+  bool ok = llama_decode(s->ctx, s->batch) == 0;
+  auto t1 = std::chrono::steady_clock::now();
+  slot_clear_cache(s, *slot);
+  if (!ok)
+    return -1;
+  jlong elapsed = std::chrono::duration_cast<std::chrono::microseconds>(t1 - t0).count();
+  LOGI("Warm-up decode %lld ms", (long long)(elapsed / 1000));
+  return elapsed;
+}
+
+// Returns [online cores, performance cores, prime cores] as read from sysfs.
+JNIEXPORT jintArray JNICALL
+Java_com_abettergemini_assistant_LlamaCppBackend_nativeCpuTopology(
+    JNIEnv *env, jobject /* this */) {
+  std::vector<cpu_core> cores = read_cpu_cores(SYSFS_CPU_DIR);
+  jint counts[3] = {(jint)cores.size(), (jint)performance_cores(cores).size(),
+                    (jint)prime_cores(cores).size()};
+  jintArray array = env->NewIntArray(3);
+  env->SetIntArrayRegion(array, 0, 3, counts);
+  return array;
+}
+
+// Sizes from the GGUF metadata that decide how much context fits in RAM:
+// [n_layer, n_embd, n_ctx_train, model_bytes, kv_bytes_per_token] where the
+// last is for a cache of typeK/typeV.
+JNIEXPORT jlongArray JNICALL
+Java_com_abettergemini_assistant_LlamaCppBackend_nativeModelInfo(
+    JNIEnv *env, jobject /* this */, jlong modelPtr, jint typeK, jint typeV) {
+  auto *model = reinterpret_cast<llama_model *>(modelPtr);
+  std::vector<int64_t> info = {
+      llama_model_n_layer(model), llama_model_n_embd(model),
+      llama_model_n_ctx_train(model), (int64_t)llama_model_size(model),
+      (int64_t)kv_bytes(model, (ggml_type)typeK, (ggml_type)typeV, 1)};
+  return to_jlong_array(env, info);
+}
+
+// Creates the context with the requested K/V layout, falling back to an f16
+// V cache and then to f16 throughout when llama.cpp rejects it (quantized V
+// needs flash attention, which not every architecture supports). A fallback
+// keeps the KV memory of the requested layout, so n_ctx shrinks.
+static llama_context *create_context(llama_model *model,
+                                     llama_context_params ctx_params,
+                                     ggml_type type_k, ggml_type type_v,
+                                     bool flash_attn, kv_layout &kv) {
+  const uint32_t n_ctx = ctx_params.n_ctx;
+  const size_t budget = kv_bytes(model, type_k, type_v, n_ctx);
+  if (!kv_type_fits(model, type_k) || !kv_type_fits(model, type_v)) {
+    LOGI("Head size doesn't fit quantized K/V blocks, using f16");
+    type_k = type_v = GGML_TYPE_F16;
+  }
+  const kv_layout attempts[] = {
+      {type_k, type_v, flash_attn || ggml_is_quantized(type_v)},
+      {type_k, GGML_TYPE_F16, false},
+      {GGML_TYPE_F16, GGML_TYPE_F16, false},
+  };
+
+  for (const kv_layout &attempt : attempts) {
+    size_t per_cell = kv_bytes(model, attempt.type_k, attempt.type_v, 1);
+    uint32_t cells = per_cell > 0 ? (uint32_t)(budget / per_cell) : n_ctx;
+    ctx_params.n_ctx = std::max<uint32_t>(256, std::min(n_ctx, cells) / 256 * 256);
+    ctx_params.type_k = attempt.type_k;
+    ctx_params.type_v = attempt.type_v;
+    ctx_params.flash_attn_type = attempt.flash_attn
+                                     ? LLAMA_FLASH_ATTN_TYPE_ENABLED
+                                     : LLAMA_FLASH_ATTN_TYPE_AUTO;
+    llama_context *ctx = llama_init_from_model(model, ctx_params);
+    if (ctx) {
+      kv = attempt;
+      kv.n_ctx = llama_n_ctx(ctx);
+      kv.bytes = kv_bytes(model, kv.type_k, kv.type_v, kv.n_ctx);
+      return ctx;
+    }
+    LOGE("Context with K=%s V=%s flash_attn=%d failed",
+         ggml_type_name(attempt.type_k), ggml_type_name(attempt.type_v),
+         attempt.flash_attn);
+    if (attempt.type_k == GGML_TYPE_F16 && attempt.type_v == GGML_TYPE_F16)
+      break;
+  }
+  return nullptr;
+}
+
+// nThreads/nThreadsBatch <= 0 mean "one per performance core". typeK/typeV
+// are ggml_type values for the K/V cache; nCtx is sized for them.
 JNIEXPORT jlong JNICALL
 Java_com_abettergemini_assistant_LlamaCppBackend_nativeCreateContext(
-    JNIEnv *env, jobject /* this */, jlong modelPtr, jint nCtx) {
+    JNIEnv *env, jobject /* this */, jlong modelPtr, jint nCtx, jint nThreads,
+    jint nThreadsBatch, jint typeK, jint typeV, jboolean flashAttn) {
 
   auto *model = reinterpret_cast<llama_model *>(modelPtr);
   llama_context_params ctx_params = llama_context_default_params();
   ctx_params.n_ctx = nCtx;
   ctx_params.n_batch = 256;
+  // All slots share one KV buffer so a common prefix is stored once
+  ctx_params.n_seq_max = MAX_SLOTS;
+  ctx_params.kv_unified = true;
 
-  // Use all available CPU cores for maximum speed
-  int n_cores = std::thread::hardware_concurrency();
-  if (n_cores <= 0)
-    n_cores = 4;
-  ctx_params.n_threads = n_cores;
-  ctx_params.n_threads_batch = n_cores;
+  // Decode speed is set by the slowest worker, so keep every thread off the
+  // little cores. Prefill and decode get separately calibrated counts.
+  std::vector<cpu_core> cores = read_cpu_cores(SYSFS_CPU_DIR);
+  std::vector<int> perf = performance_cores(cores);
+  int n_perf = perf.empty() ? (int)std::thread::hardware_concurrency() : (int)perf.size();
+  if (n_perf <= 0)
+    n_perf = 4;
+  int n_threads = nThreads > 0 ? std::min<int>(nThreads, n_perf) : n_perf;
+  int n_threads_batch =
+      nThreadsBatch > 0 ? std::min<int>(nThreadsBatch, n_perf) : n_perf;
+  ctx_params.n_threads = n_threads;
+  ctx_params.n_threads_batch = n_threads_batch;
 
-  llama_context *ctx = llama_init_from_model(model, ctx_params);
+  kv_layout kv;
+  llama_context *ctx = create_context(model, ctx_params, (ggml_type)typeK,
+                                      (ggml_type)typeV, flashAttn, kv);
   if (!ctx) {
     LOGE("Failed to create context");
     return 0;
   }
 
-  LOGI("Context created with n_ctx=%d, n_threads=%d", nCtx, n_cores);
-  return reinterpret_cast<jlong>(ctx);
+  auto *session = new llama_session();
+  session->model = model;
+  session->ctx = ctx;
+  session->vocab = llama_model_get_vocab(model);
+  session->kv = kv;
+  session->n_batch = llama_n_batch(ctx);
+  session->batch = llama_batch_init(session->n_batch, 0, 1);
+  for (int i = 0; i < MAX_SLOTS; i++) {
+    session->slots[i].seq_id = i;
+    session->slots[i].cached.reserve(kv.n_ctx);
+  }
+  session->finished.reserve(MAX_SLOTS);
+  session->step_ids.reserve(MAX_SLOTS);
+  session->running.reserve(MAX_SLOTS);
+  llama_set_abort_callback(ctx, session_should_abort, session);
+
+  // Pools are sized for every performance core so the thread counts can be
+  // changed later without rebuilding them
+  session->n_perf = n_perf;
+  CPU_ZERO(&session->perf_mask);
+  if (!perf.empty()) {
+    for (int core : perf)
+      CPU_SET(core, &session->perf_mask);
+    session->threadpool = create_pinned_pool(perf, n_perf);
+    session->threadpool_batch = create_pinned_pool(perf, n_perf);
+    if (session->threadpool && session->threadpool_batch) {
+      llama_attach_threadpool(ctx, session->threadpool,
+                              session->threadpool_batch);
+    }
+  }
+
+  LOGI("Context created with n_ctx=%u, KV %s/%s %.1f MiB, flash_attn=%d, "
+       "%zu cores (%d performance), decode threads=%d, prefill threads=%d, "
+       "slots=%d",
+       kv.n_ctx, ggml_type_name(kv.type_k), ggml_type_name(kv.type_v),
+       kv.bytes / (1024.0 * 1024.0), kv.flash_attn, cores.size(), n_perf,
+       n_threads, n_threads_batch, MAX_SLOTS);
+  return reinterpret_cast<jlong>(session);
 }
 
-JNIEXPORT jstring JNICALL
-Java_com_abettergemini_assistant_LlamaCppBackend_nativeGenerate(
-    JNIEnv *env, jobject /* this */, jlong contextPtr, jlong modelPtr,
-    jstring prompt, jint maxTokens) {
+// [n_ctx, kv_bytes, type_k, type_v, flash_attn] of the created context.
+JNIEXPORT jlongArray JNICALL
+Java_com_abettergemini_assistant_LlamaCppBackend_nativeContextInfo(
+    JNIEnv *env, jobject /* this */, jlong contextPtr) {
+  auto *s = reinterpret_cast<llama_session *>(contextPtr);
+  std::vector<int64_t> info = {(int64_t)s->kv.n_ctx, (int64_t)s->kv.bytes,
+                               (int64_t)s->kv.type_k, (int64_t)s->kv.type_v,
+                               (int64_t)s->kv.flash_attn};
+  return to_jlong_array(env, info);
+}
 
-  auto *ctx = reinterpret_cast<llama_context *>(contextPtr);
-  auto *model = reinterpret_cast<llama_model *>(modelPtr);
-  const char *promptStr = env->GetStringUTFChars(prompt, nullptr);
+JNIEXPORT void JNICALL
+Java_com_abettergemini_assistant_LlamaCppBackend_nativeSetThreads(
+    JNIEnv *env, jobject /* this */, jlong contextPtr, jint nThreads,
+    jint nThreadsBatch) {
+  auto *s = reinterpret_cast<llama_session *>(contextPtr);
+  int n_threads = std::max(1, std::min<int>(nThreads, s->n_perf));
+  int n_threads_batch = std::max(1, std::min<int>(nThreadsBatch, s->n_perf));
+  llama_set_n_threads(s->ctx, n_threads, n_threads_batch);
+  if (s->draft)
+    llama_set_n_threads(s->draft->ctx, n_threads, n_threads_batch);
+  LOGI("Threads set: decode=%d, prefill=%d", n_threads, n_threads_batch);
+}
 
-  // Tokenize the prompt
-  const llama_vocab *vocab = llama_model_get_vocab(model);
-  int n_prompt = strlen(promptStr);
-  std::vector<llama_token> tokens(n_prompt + 16);
-  int n_tokens = llama_tokenize(vocab, promptStr, n_prompt, tokens.data(),
-                                tokens.size(), true, true);
-  env->ReleaseStringUTFChars(prompt, promptStr);
+// Tokens of a filler sentence, repeated to make synthetic prompts.
+static std::vector<llama_token> bench_sample(llama_session *s) {
+  const char *text = "The quick brown fox jumps over the lazy dog. ";
+  return tokenize(s->vocab, text, strlen(text));
+}
 
-  if (n_tokens < 0) {
-    LOGE("Tokenization failed");
-    return env->NewStringUTF("Error: tokenization failed");
+// Decodes `n_prompt` filler tokens into `slot` in n_batch chunks, then
+// `n_gen` single tokens after them. Returns false if a decode fails. The
+// times taken by each phase go to `prefill` and `decode`.
+static bool bench_run(llama_session *s, llama_slot &slot,
+                      const std::vector<llama_token> &sample, int n_prompt,
+                      int n_gen, std::chrono::microseconds &prefill,
+                      std::chrono::microseconds &decode) {
+  using us = std::chrono::microseconds;
+  auto t0 = std::chrono::steady_clock::now();
+  bool ok = true;
+  for (int done = 0; ok && done < n_prompt;) {
+    int n = std::min(s->n_batch, n_prompt - done);
+    batch_clear(s->batch);
+    for (int i = 0; i < n; i++) {
+      batch_add(s->batch, sample[(done + i) % sample.size()], done + i,
+                slot.seq_id, done + i == n_prompt - 1);
+    }
+    ok = llama_decode(s->ctx, s->batch) == 0;
+    done += n;
+  }
+  auto t1 = std::chrono::steady_clock::now();
+  for (int i = 0; ok && i < n_gen; i++) {
+    batch_clear(s->batch);
+    batch_add(s->batch, sample[i % sample.size()], n_prompt + i, slot.seq_id,
+              true);
+    ok = llama_decode(s->ctx, s->batch) == 0;
   }
-  tokens.resize(n_tokens);
-  LOGI("Tokenized prompt: %d tokens", n_tokens);
+  auto t2 = std::chrono::steady_clock::now();
+  prefill = std::chrono::duration_cast<us>(t1 - t0);
+  decode = std::chrono::duration_cast<us>(t2 - t1);
+  return ok;
+}
 
-  // Note: no KV cache clear API available in this llama.cpp version.
-  // The prompt is re-evaluated from position 0 each call, which naturally
-  // overwrites the relevant KV cache entries. Combined with repetition
-  // penalty and time limits, this prevents loops.
+// Peak resident set size of the process (VmHWM) in bytes, or 0.
+static int64_t peak_rss_bytes() {
+  FILE *f = fopen("/proc/self/status", "r");
+  if (!f)
+    return 0;
+  char line[256];
+  long long kb = 0;
+  while (fgets(line, sizeof(line), f)) {
+    if (sscanf(line, "VmHWM: %lld kB", &kb) == 1)
+      break;
+  }
+  fclose(f);
+  return kb * 1024;
+}
+
+// Times a 64-token prefill and 16 single-token decodes with the given thread
+// counts in an idle slot. Returns [prefill us, decode us per token], or null
+// if no slot is free or a decode fails.
+JNIEXPORT jlongArray JNICALL
+Java_com_abettergemini_assistant_LlamaCppBackend_nativeCalibrateThreads(
+    JNIEnv *env, jobject /* this */, jlong contextPtr, jint nThreads,
+    jint nThreadsBatch) {
+
+  auto *s = reinterpret_cast<llama_session *>(contextPtr);
+  llama_slot *slot = idle_slot(s);
+  if (!slot)
+    return nullptr;
+
+  std::vector<llama_token> sample = bench_sample(s);
+  if (sample.empty())
+    return nullptr;
+  const int n_prefill = std::min(64, s->n_batch);
+  const int n_decode = 16;
+
+  llama_set_n_threads(s->ctx, nThreads, nThreadsBatch);
+  scoped_affinity pin(s->perf_mask);
+  slot_clear_cache(s, *slot);
+  std::chrono::microseconds prefill, decode;
+  bool ok = bench_run(s, *slot, sample, n_prefill, n_decode, prefill, decode);
+  slot_clear_cache(s, *slot);
+  if (!ok)
+    return nullptr;
 
-  // Evaluate prompt tokens
-  llama_batch batch = llama_batch_init(tokens.size(), 0, 1);
-  for (int i = 0; i < n_tokens; i++) {
-    batch_add(batch, tokens[i], i, {0}, false);
+  std::vector<int64_t> timings = {prefill.count(), decode.count() / n_decode};
+  LOGI("Calibration decode=%d prefill=%d: prefill %lld us, decode %lld us/token",
+       nThreads, nThreadsBatch, (long long)timings[0], (long long)timings[1]);
+  return to_jlong_array(env, timings);
+}
+
+// llama-bench style measurement with the session's current threads: after a
+// short warm-up, `reps` runs of a `pp`-token prefill (pp) and `tg` decoded
+// tokens (tg), each from an empty cache. Every slot must be idle; their
+// cached prefixes are dropped, since the context may have no room for them
+// next to the benchmark. Returns [pp mean us, pp stddev us, tg mean us,
+// tg stddev us, peak RSS bytes, KV bytes, decode threads, prefill threads],
+// or null if a slot is busy, pp + tg doesn't fit or a decode fails.
+JNIEXPORT jlongArray JNICALL
+Java_com_abettergemini_assistant_LlamaCppBackend_nativeBench(
+    JNIEnv *env, jobject /* this */, jlong contextPtr, jint pp, jint tg,
+    jint reps) {
+
+  auto *s = reinterpret_cast<llama_session *>(contextPtr);
+  for (auto &slot : s->slots) {
+    if (slot.request_id != 0)
+      return nullptr;
   }
-  batch.logits[batch.n_tokens - 1] = true;
+  std::vector<llama_token> sample = bench_sample(s);
+  if (sample.empty() || pp < 0 || tg < 0 || pp + tg == 0 || reps <= 0 ||
+      (uint32_t)(pp + tg) > s->kv.n_ctx)
+    return nullptr;
 
-  LOGI("Evaluating prompt...");
-  if (llama_decode(ctx, batch) != 0) {
-    LOGE("Decode failed during prompt evaluation");
-    llama_batch_free(batch);
-    return env->NewStringUTF("Error: decode failed");
+  llama_slot &slot = s->slots[0];
+  for (auto &other : s->slots)
+    slot_clear_cache(s, other);
+  scoped_affinity pin(s->perf_mask);
+
+  std::chrono::microseconds prefill, decode;
+  bool ok = bench_run(s, slot, sample, std::min<int>(pp, 16),
+                      std::min<int>(tg, 1), prefill, decode);
+  std::vector<double> pp_us, tg_us;
+  for (int r = 0; ok && r < reps; r++) {
+    slot_clear_cache(s, slot);
+    ok = bench_run(s, slot, sample, pp, tg, prefill, decode);
+    pp_us.push_back((double)prefill.count());
+    tg_us.push_back((double)decode.count());
   }
-  LOGI("Prompt evaluated, starting generation...");
+  slot_clear_cache(s, slot);
+  if (!ok)
+    return nullptr;
 
-  // Generate tokens
-  std::string result;
-  llama_sampler *smpl =
-      llama_sampler_chain_init(llama_sampler_chain_default_params());
-  llama_sampler_chain_add(smpl, llama_sampler_init_top_k(40));
-  llama_sampler_chain_add(smpl, llama_sampler_init_top_p(0.9f, 1));
-  llama_sampler_chain_add(smpl, llama_sampler_init_temp(0.7f));
-  llama_sampler_chain_add(smpl,
-                          llama_sampler_init_penalties(64, 1.3f, 0.0f, 0.0f));
-  llama_sampler_chain_add(smpl, llama_sampler_init_dist(42));
-
-  int n_cur = n_tokens;
-  auto start_time = std::chrono::steady_clock::now();
-  const int TIME_LIMIT_SECS = 60;
-
-  for (int i = 0; i < maxTokens; i++) {
-    // Check time limit
-    auto elapsed = std::chrono::duration_cast<std::chrono::seconds>(
-                       std::chrono::steady_clock::now() - start_time)
-                       .count();
-    if (elapsed > TIME_LIMIT_SECS) {
-      LOGI("Time limit reached (%ds) at step %d", TIME_LIMIT_SECS, i);
-      break;
-    }
+  auto mean_sd = [](const std::vector<double> &v, int64_t &mean, int64_t &sd) {
+    double sum = 0, sq = 0;
+    for (double x : v)
+      sum += x;
+    double m = sum / v.size();
+    for (double x : v)
+      sq += (x - m) * (x - m);
+    mean = (int64_t)m;
+    sd = v.size() > 1 ? (int64_t)std::sqrt(sq / (v.size() - 1)) : 0;
+  };
+  std::vector<int64_t> result(8);
+  mean_sd(pp_us, result[0], result[1]);
+  mean_sd(tg_us, result[2], result[3]);
+  result[4] = peak_rss_bytes();
+  result[5] = (int64_t)s->kv.bytes;
+  result[6] = llama_n_threads(s->ctx);
+  result[7] = llama_n_threads_batch(s->ctx);
+  LOGI("Bench pp%d tg%d x%d: pp %lld us, tg %lld us, peak RSS %lld MiB", pp,
+       tg, reps, (long long)result[0], (long long)result[2],
+       (long long)(result[4] / (1024 * 1024)));
+  return to_jlong_array(env, result);
+}
+
+// Applies a model's GenerationParams. Slot samplers pick the change up at
+// their next request.
+JNIEXPORT void JNICALL
+Java_com_abettergemini_assistant_LlamaCppBackend_nativeSetGenerationParams(
+    JNIEnv *env, jobject /* this */, jlong contextPtr, jfloat temperature,
+    jint topK, jfloat topP, jint penaltyLastN, jfloat repeatPenalty,
+    jint seed) {
+  auto *s = reinterpret_cast<llama_session *>(contextPtr);
+  s->params.temperature = temperature;
+  s->params.top_k = topK;
+  s->params.top_p = topP;
+  s->params.penalty_last_n = penaltyLastN;
+  s->params.penalty_repeat = repeatPenalty;
+  // Negative seeds ask llama.cpp for a random one
+  s->params.seed = seed < 0 ? LLAMA_DEFAULT_SEED : (uint32_t)seed;
+  s->params_version++;
+  LOGI("Sampling: temp=%.2f top_k=%d top_p=%.2f penalty=%.2f/%d seed=%d",
+       temperature, topK, topP, repeatPenalty, penaltyLastN, seed);
+}
+
+// Number of tokens the first `length` bytes of `text` (UTF-8 in a direct
+// ByteBuffer) encode to with this model's tokenizer, or -1. `addSpecial`
+// counts the BOS token a whole prompt starts with; prompt sections don't.
+// Whole prompts may start with a cached prefix of `prefixLength` bytes.
+JNIEXPORT jint JNICALL
+Java_com_abettergemini_assistant_LlamaCppBackend_nativeCountTokens(
+    JNIEnv *env, jobject /* this */, jlong contextPtr, jobject text,
+    jint length, jboolean addSpecial, jint prefixLength) {
+  auto *s = reinterpret_cast<llama_session *>(contextPtr);
+  const char *textStr;
+  if (!direct_utf8(env, text, length, &textStr))
+    return -1;
+  if (length == 0)
+    return 0;
+  if (addSpecial && prefixLength > 0)
+    return (jint)tokenize_prompt(s, textStr, length, prefixLength).size();
+  // A negative result is the required buffer size, i.e. the token count
+  int32_t n = llama_tokenize(s->vocab, textStr, length, nullptr, 0, addSpecial,
+                             true);
+  return n < 0 ? -n : n;
+}
 
-    llama_token new_token = llama_sampler_sample(smpl, ctx, -1);
+// Token ids for `length` bytes of UTF-8 in a direct ByteBuffer, without BOS.
+// Used to trim prompt sections at token granularity.
+JNIEXPORT jintArray JNICALL
+Java_com_abettergemini_assistant_LlamaCppBackend_nativeTokenize(
+    JNIEnv *env, jobject /* this */, jlong contextPtr, jobject text,
+    jint length) {
+  auto *s = reinterpret_cast<llama_session *>(contextPtr);
+  const char *textStr;
+  if (!direct_utf8(env, text, length, &textStr))
+    return nullptr;
+  std::vector<llama_token> tokens(length + 16);
+  int32_t n = llama_tokenize(s->vocab, textStr, length, tokens.data(),
+                             tokens.size(), false, true);
+  if (n < 0)
+    return nullptr;
+  static_assert(sizeof(jint) == sizeof(llama_token), "token ids are 32-bit");
+  jintArray array = env->NewIntArray(n);
+  env->SetIntArrayRegion(array, 0, n, (const jint *)tokens.data());
+  return array;
+}
 
-    if (llama_vocab_is_eog(vocab, new_token)) {
-      LOGI("EOS token at step %d", i);
-      break;
+// Writes the text of tokens[offset, offset + count) as UTF-8 into `output`,
+// a direct ByteBuffer. Returns the byte length, or minus the capacity needed
+// when the buffer is too small.
+JNIEXPORT jint JNICALL
+Java_com_abettergemini_assistant_LlamaCppBackend_nativeDetokenize(
+    JNIEnv *env, jobject /* this */, jlong contextPtr, jintArray tokens,
+    jint offset, jint count, jobject output) {
+  auto *s = reinterpret_cast<llama_session *>(contextPtr);
+  char *out = output ? (char *)env->GetDirectBufferAddress(output) : nullptr;
+  if (!out || offset < 0 || count < 0 ||
+      offset + count > env->GetArrayLength(tokens))
+    return 0;
+  jint *ids = env->GetIntArrayElements(tokens, nullptr);
+  int32_t n = llama_detokenize(s->vocab, (const llama_token *)ids + offset,
+                               count, out,
+                               (int32_t)env->GetDirectBufferCapacity(output),
+                               false, true);
+  env->ReleaseIntArrayElements(tokens, ids, JNI_ABORT);
+  return n;
+}
+
+// Lays out a conversation with the chat template from the model's GGUF
+// metadata. `roles` are plain role names and `contents` UTF-8 byte arrays.
+// Returns the bytes written to `output` (a direct ByteBuffer), minus the
+// size needed if it's too small, or 0 if the model has no template that
+// llama.cpp recognises.
+JNIEXPORT jint JNICALL
+Java_com_abettergemini_assistant_LlamaCppBackend_nativeApplyTemplate(
+    JNIEnv *env, jobject /* this */, jlong modelPtr, jobjectArray roles,
+    jobjectArray contents, jboolean addAssistant, jobject output) {
+  auto *model = reinterpret_cast<llama_model *>(modelPtr);
+  const char *tmpl = llama_model_chat_template(model, nullptr);
+  if (!tmpl)
+    return 0;
+
+  jsize n_msg = env->GetArrayLength(roles);
+  std::vector<std::string> role_str(n_msg), content_str(n_msg);
+  std::vector<llama_chat_message> chat(n_msg);
+  for (jsize i = 0; i < n_msg; i++) {
+    auto role = (jstring)env->GetObjectArrayElement(roles, i);
+    const char *r = env->GetStringUTFChars(role, nullptr);
+    role_str[i] = r;
+    env->ReleaseStringUTFChars(role, r);
+    env->DeleteLocalRef(role);
+
+    auto bytes = (jbyteArray)env->GetObjectArrayElement(contents, i);
+    jsize len = env->GetArrayLength(bytes);
+    content_str[i].resize(len);
+    if (len > 0)
+      env->GetByteArrayRegion(bytes, 0, len, (jbyte *)&content_str[i][0]);
+    env->DeleteLocalRef(bytes);
+    chat[i] = {role_str[i].c_str(), content_str[i].c_str()};
+  }
+
+  char *out = (char *)env->GetDirectBufferAddress(output);
+  jlong capacity = out ? env->GetDirectBufferCapacity(output) : 0;
+  int32_t n = llama_chat_apply_template(tmpl, chat.data(), chat.size(),
+                                        addAssistant, out, (int32_t)capacity);
+  if (n < 0) {
+    LOGE("Chat template not supported, falling back to ChatML");
+    return 0;
+  }
+  return n > capacity ? -n : n;
+}
+
+// Queues a request on a free slot. The prompt is `promptLength` bytes of
+// UTF-8 in a direct ByteBuffer, the first `prefixLength` of them a cached
+// prefix (see tokenize_prompt) or 0. With `image` (a direct ByteBuffer of
+// RGB pixels) the prompt holds the projector's image marker, and
+// `imageHash` keys the embedding cache. Generated text is streamed through `output`,
+// another direct ByteBuffer, with the byte count passed to the listener.
+// A non-null `grammar` (GBNF) constrains the output and ends the request as
+// soon as a JSON tool call is closed. `stops` are UTF-8 byte arrays: output
+// ends just before the first one and never includes it. After `deadlineMs`
+// (0 for none) the request ends with what it has. Returns the slot index,
+// -1 if every slot is busy (Kotlin keeps it waiting), or -2 if the prompt
+// can't be used.
+JNIEXPORT jint JNICALL
+Java_com_abettergemini_assistant_LlamaCppBackend_nativeSubmit(
+    JNIEnv *env, jobject /* this */, jlong contextPtr, jlong requestId,
+    jobject prompt, jint promptLength, jint prefixLength, jobject image,
+    jint imageWidth, jint imageHeight, jlong imageHash, jint maxTokens,
+    jlong deadlineMs, jobjectArray stops, jstring grammar, jobject listener,
+    jobject output) {
+
+  auto *s = reinterpret_cast<llama_session *>(contextPtr);
+  steady_time t_submit = std::chrono::steady_clock::now();
+  const char *promptStr;
+  if (!direct_utf8(env, prompt, promptLength, &promptStr)) {
+    LOGE("Prompt is not in a direct buffer");
+    return -2;
+  }
+
+  llama_slot *slot;
+  if (image) {
+    // RGB, 3 bytes per pixel; the prompt holds the image marker
+    auto *rgb = (const unsigned char *)env->GetDirectBufferAddress(image);
+    if (!s->vision || !rgb || imageWidth <= 0 || imageHeight <= 0 ||
+        (jlong)imageWidth * imageHeight * 3 > env->GetDirectBufferCapacity(image)) {
+      LOGE("No projector attached or image buffer too small");
+      return -2;
+    }
+    scoped_affinity pin(s->perf_mask);
+    bool error;
+    slot = session_acquire_media(s, promptStr, promptLength, rgb, imageWidth,
+                                 imageHeight, (uint64_t)imageHash, &error);
+    if (!slot)
+      return error ? -2 : -1;
+    slot->has_media = true;
+    slot->n_reused = 0;
+  } else {
+    std::vector<llama_token> tokens =
+        tokenize_prompt(s, promptStr, promptLength, prefixLength);
+
+    if (tokens.empty()) {
+      LOGE("Tokenization failed");
+      return -2;
     }
+    if (tokens.size() >= llama_n_ctx(s->ctx)) {
+      LOGE("Prompt (%zu tokens) exceeds context size %u", tokens.size(),
+           llama_n_ctx(s->ctx));
+      return -2;
+    }
+
+    slot = session_acquire(s, tokens, true);
+    if (!slot)
+      return -1;
+    slot->prompt = std::move(tokens);
+    slot->has_media = false;
+    slot->n_reused = slot->cached.size();
+  }
 
-    char buf[256];
-    int n = llama_token_to_piece(vocab, new_token, buf, sizeof(buf), 0, true);
-    if (n > 0) {
-      result.append(buf, n);
+  slot->request_id = requestId;
+  slot->finished = false;
+  slot->n_prompt_done = slot->cached.size();
+  slot->pending = -1;
+  slot->n_generated = 0;
+  slot->max_tokens = maxTokens;
+  slot->deadline_ms = (double)deadlineMs;
+  slot->hit_deadline = false;
+  slot->stops.clear();
+  jsize n_stops = stops ? env->GetArrayLength(stops) : 0;
+  for (jsize i = 0; i < n_stops; i++) {
+    auto bytes = (jbyteArray)env->GetObjectArrayElement(stops, i);
+    jsize len = bytes ? env->GetArrayLength(bytes) : 0;
+    if (len > 0) {
+      std::string stop(len, '\0');
+      env->GetByteArrayRegion(bytes, 0, len, (jbyte *)&stop[0]);
+      slot->stops.push_back(std::move(stop));
     }
+    if (bytes)
+      env->DeleteLocalRef(bytes);
+  }
+  slot->text.clear();
+  slot->n_emitted = 0;
+  // GBNF is plain ASCII, so JNI's modified UTF-8 is fine here
+  const char *grammarStr =
+      grammar ? env->GetStringUTFChars(grammar, nullptr) : nullptr;
+  slot_prepare_sampler(s, *slot, grammarStr);
+  if (grammarStr)
+    env->ReleaseStringUTFChars(grammar, grammarStr);
+  slot->t_start = t_submit; // image encoding counts towards first token
+  slot->t_first_token_ms = 0;
 
-    batch_clear(batch);
-    batch_add(batch, new_token, n_cur, {0}, true);
-    n_cur++;
+  // Streaming upcall target (null when the caller only wants the final text)
+  slot->listener = nullptr;
+  slot->on_token = nullptr;
+  slot->on_progress = nullptr;
+  slot->out_buf = output ? (char *)env->GetDirectBufferAddress(output) : nullptr;
+  slot->out_cap = slot->out_buf ? env->GetDirectBufferCapacity(output) : 0;
+  if (listener) {
+    slot->listener = env->NewGlobalRef(listener);
+    jclass listenerClass = env->GetObjectClass(listener);
+    slot->on_token = env->GetMethodID(listenerClass, "onToken", "(I)V");
+    slot->on_progress =
+        env->GetMethodID(listenerClass, "onPrefillProgress", "(II)V");
+    env->DeleteLocalRef(listenerClass);
+  }
 
-    if (llama_decode(ctx, batch) != 0) {
-      LOGE("Decode failed at step %d", i);
-      break;
+  LOGI("Request %lld on slot %d: %zu prompt tokens, %zu cached",
+       (long long)requestId, slot->seq_id, slot->prompt.size(), slot->n_reused);
+  return slot->seq_id;
+}
+
+// Runs one batched decode step over all active slots. Copies the ids of
+// requests that finished during the step into `finished`, a MAX_SLOTS array
+// the caller reuses every step, and returns how many there are (mostly 0).
+JNIEXPORT jint JNICALL
+Java_com_abettergemini_assistant_LlamaCppBackend_nativeStep(
+    JNIEnv *env, jobject /* this */, jlong contextPtr, jlongArray finished) {
+  auto *s = reinterpret_cast<llama_session *>(contextPtr);
+  scoped_affinity pin(s->perf_mask);
+  const std::vector<int64_t> &ids = session_step(env, s);
+  if (!ids.empty()) {
+    env->SetLongArrayRegion(finished, 0, ids.size(),
+                            reinterpret_cast<const jlong *>(ids.data()));
+  }
+  return (jint)ids.size();
+}
+
+// Frees the slot of a finished request (its KV entries stay cached for
+// reuse). The text has already been streamed to the listener in full.
+// Returns false if no finished request has that id.
+JNIEXPORT jboolean JNICALL
+Java_com_abettergemini_assistant_LlamaCppBackend_nativeRelease(
+    JNIEnv *env, jobject /* this */, jlong contextPtr, jlong requestId) {
+
+  auto *s = reinterpret_cast<llama_session *>(contextPtr);
+  for (auto &slot : s->slots) {
+    if (slot.request_id != requestId || !slot.finished)
+      continue;
+    if (slot.listener) {
+      env->DeleteGlobalRef(slot.listener);
+      slot.listener = nullptr;
     }
+    slot.request_id = 0;
+    slot.finished = false;
+    slot.text.clear();
+    slot.prompt.clear();
+    slot.out_buf = nullptr;
+    slot.out_cap = 0;
+    {
+      std::lock_guard<std::mutex> lock(s->cancel_mutex);
+      s->cancelled.erase(requestId);
+    }
+    return JNI_TRUE;
+  }
+  return JNI_FALSE;
+}
+
+// Stats of a finished request, read before nativeRelease frees the slot:
+// [prompt tokens, reused tokens, generated tokens, first token ms, total ms,
+//  drafted tokens, accepted draft tokens, hit deadline (0/1)]
+JNIEXPORT jlongArray JNICALL
+Java_com_abettergemini_assistant_LlamaCppBackend_nativeRequestStats(
+    JNIEnv *env, jobject /* this */, jlong contextPtr, jlong requestId) {
+  auto *s = reinterpret_cast<llama_session *>(contextPtr);
+  for (auto &slot : s->slots) {
+    if (slot.request_id != requestId || !slot.finished)
+      continue;
+    std::vector<int64_t> stats = {(int64_t)slot.prompt.size(),
+                                  (int64_t)slot.n_reused,
+                                  slot.n_generated,
+                                  (int64_t)slot.t_first_token_ms,
+                                  (int64_t)slot.t_total_ms,
+                                  slot.n_drafted,
+                                  slot.n_accepted,
+                                  slot.hit_deadline ? 1 : 0};
+    return to_jlong_array(env, stats);
   }
+  return nullptr;
+}
 
-  llama_sampler_free(smpl);
-  llama_batch_free(batch);
+// Loads a multimodal projector (mmproj GGUF) for the session's model so
+// requests can carry an image. Returns false if it can't be used.
+JNIEXPORT jboolean JNICALL
+Java_com_abettergemini_assistant_LlamaCppBackend_nativeAttachProjector(
+    JNIEnv *env, jobject /* this */, jlong contextPtr, jstring path) {
+  auto *s = reinterpret_cast<llama_session *>(contextPtr);
+  if (s->vision)
+    return JNI_TRUE;
 
-  LOGI("Generated %zu chars in %d steps", result.size(), n_cur - n_tokens);
-  return env->NewStringUTF(result.c_str());
+  mtmd_context_params params = mtmd_context_params_default();
+  params.use_gpu = false;
+  params.print_timings = false;
+  params.n_threads = s->n_perf;
+  const char *pathStr = env->GetStringUTFChars(path, nullptr);
+  mtmd_context *ctx = mtmd_init_from_file(pathStr, s->model, params);
+  env->ReleaseStringUTFChars(path, pathStr);
+  if (!ctx || !mtmd_support_vision(ctx)) {
+    LOGE("Projector could not be loaded or has no vision encoder");
+    if (ctx)
+      mtmd_free(ctx);
+    return JNI_FALSE;
+  }
+  s->vision = new llama_vision();
+  s->vision->ctx = ctx;
+  LOGI("Vision projector attached, image marker %s", mtmd_default_marker());
+  return JNI_TRUE;
+}
+
+// Pairs a loaded draft model with the session for speculative decoding.
+// The caller keeps ownership of the draft model.
+JNIEXPORT jboolean JNICALL
+Java_com_abettergemini_assistant_LlamaCppBackend_nativeAttachDraft(
+    JNIEnv *env, jobject /* this */, jlong contextPtr, jlong draftModelPtr,
+    jint nDraft) {
+
+  auto *s = reinterpret_cast<llama_session *>(contextPtr);
+  auto *draft_model = reinterpret_cast<llama_model *>(draftModelPtr);
+
+  if (llama_model_is_recurrent(s->model) || llama_model_is_hybrid(s->model)) {
+    LOGE("Speculative decoding needs a model whose KV entries can be rolled back");
+    return JNI_FALSE;
+  }
+  const llama_vocab *draft_vocab = llama_model_get_vocab(draft_model);
+  if (!vocabs_compatible(s->vocab, draft_vocab)) {
+    LOGE("Draft model vocabulary does not match the target model");
+    return JNI_FALSE;
+  }
+
+  llama_context_params ctx_params = llama_context_default_params();
+  ctx_params.n_ctx = llama_n_ctx(s->ctx);
+  ctx_params.n_batch = 256;
+  ctx_params.n_seq_max = 1;
+  ctx_params.n_threads = llama_n_threads(s->ctx);
+  ctx_params.n_threads_batch = llama_n_threads_batch(s->ctx);
+
+  llama_context *ctx = llama_init_from_model(draft_model, ctx_params);
+  if (!ctx) {
+    LOGE("Failed to create draft context");
+    return JNI_FALSE;
+  }
+  if (s->threadpool && s->threadpool_batch)
+    llama_attach_threadpool(ctx, s->threadpool, s->threadpool_batch);
+
+  auto *d = new llama_draft();
+  d->ctx = ctx;
+  d->vocab = draft_vocab;
+  d->n_batch = llama_n_batch(ctx);
+  d->batch = llama_batch_init(d->n_batch, 0, 1);
+  d->n_draft = nDraft;
+  d->cached.reserve(llama_n_ctx(s->ctx));
+  d->proposal.reserve(nDraft);
+  d->smpl = llama_sampler_chain_init(llama_sampler_chain_default_params());
+  llama_sampler_chain_add(d->smpl, llama_sampler_init_greedy());
+
+  draft_free(s->draft);
+  s->draft = d;
+  LOGI("Draft model attached, %d tokens per step", nDraft);
+  return JNI_TRUE;
+}
+
+JNIEXPORT void JNICALL
+Java_com_abettergemini_assistant_LlamaCppBackend_nativeCancel(
+    JNIEnv *env, jobject /* this */, jlong contextPtr, jlong requestId) {
+  auto *s = reinterpret_cast<llama_session *>(contextPtr);
+  std::lock_guard<std::mutex> lock(s->cancel_mutex);
+  s->cancelled.insert(requestId);
+  LOGI("Cancel requested for request %lld", (long long)requestId);
+}
+
+// Decodes `length` bytes of UTF-8 text from a direct ByteBuffer into a free
+// slot without generating. Returns the slot index holding it, or -1.
+JNIEXPORT jint JNICALL
+Java_com_abettergemini_assistant_LlamaCppBackend_nativePrefill(
+    JNIEnv *env, jobject /* this */, jlong contextPtr, jobject text,
+    jint length) {
+
+  auto *s = reinterpret_cast<llama_session *>(contextPtr);
+  const char *textStr;
+  if (!direct_utf8(env, text, length, &textStr))
+    return -1;
+  // The warmed text is the prefix of the prompts that follow
+  std::vector<llama_token> tokens = tokenize_prompt(s, textStr, length, length);
+
+  if (tokens.empty() || tokens.size() >= llama_n_ctx(s->ctx)) {
+    LOGE("Prefill text does not fit the context (%zu tokens)", tokens.size());
+    return -1;
+  }
+  scoped_affinity pin(s->perf_mask);
+  llama_slot *slot = session_prefill(s, tokens);
+  if (!slot) {
+    LOGE("Decode failed during prefill");
+    return -1;
+  }
+  return slot->seq_id;
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_abettergemini_assistant_LlamaCppBackend_nativeSaveState(
+    JNIEnv *env, jobject /* this */, jlong contextPtr, jint slotIndex,
+    jstring path) {
+
+  auto *s = reinterpret_cast<llama_session *>(contextPtr);
+  if (slotIndex < 0 || slotIndex >= MAX_SLOTS)
+    return JNI_FALSE;
+  llama_slot &slot = s->slots[slotIndex];
+  if (slot.cached.empty())
+    return JNI_FALSE;
+
+  std::vector<uint8_t> state(llama_state_seq_get_size(s->ctx, slot.seq_id));
+  size_t state_size = llama_state_seq_get_data(s->ctx, state.data(),
+                                               state.size(), slot.seq_id);
+  if (state_size == 0) {
+    LOGE("Failed to read KV state");
+    return JNI_FALSE;
+  }
+
+  kv_snapshot_header header = {};
+  header.magic = KV_SNAPSHOT_MAGIC;
+  header.version = KV_SNAPSHOT_VERSION;
+  header.n_tokens = slot.cached.size();
+  header.state_size = state_size;
+
+  const char *pathStr = env->GetStringUTFChars(path, nullptr);
+  FILE *f = fopen(pathStr, "wb");
+  bool ok = f != nullptr;
+  if (ok) {
+    ok = fwrite(&header, sizeof(header), 1, f) == 1 &&
+         fwrite(slot.cached.data(), sizeof(llama_token), slot.cached.size(),
+                f) == slot.cached.size() &&
+         fwrite(state.data(), 1, state_size, f) == state_size;
+    ok = (fclose(f) == 0) && ok;
+  }
+  if (!ok) {
+    LOGE("Failed to write KV snapshot: %s", pathStr);
+    unlink(pathStr);
+  } else {
+    LOGI("Saved KV snapshot: %u tokens, %zu bytes", header.n_tokens,
+         state_size);
+  }
+  env->ReleaseStringUTFChars(path, pathStr);
+  return ok ? JNI_TRUE : JNI_FALSE;
+}
+
+// Restores a snapshot into a free slot. Returns the number of tokens
+// restored, or -1.
+JNIEXPORT jint JNICALL
+Java_com_abettergemini_assistant_LlamaCppBackend_nativeLoadState(
+    JNIEnv *env, jobject /* this */, jlong contextPtr, jstring path) {
+
+  auto *s = reinterpret_cast<llama_session *>(contextPtr);
+  const char *pathStr = env->GetStringUTFChars(path, nullptr);
+  int fd = open(pathStr, O_RDONLY);
+  env->ReleaseStringUTFChars(path, pathStr);
+  if (fd < 0)
+    return -1;
+
+  struct stat st;
+  if (fstat(fd, &st) != 0 || (size_t)st.st_size < sizeof(kv_snapshot_header)) {
+    close(fd);
+    return -1;
+  }
+
+  // Map the snapshot instead of reading it into a heap buffer; the state blob
+  // is copied straight from the page cache into the KV tensors.
+  size_t file_size = st.st_size;
+  void *map = mmap(nullptr, file_size, PROT_READ, MAP_PRIVATE, fd, 0);
+  close(fd);
+  if (map == MAP_FAILED)
+    return -1;
+
+  const auto *bytes = static_cast<const uint8_t *>(map);
+  kv_snapshot_header header;
+  memcpy(&header, bytes, sizeof(header));
+  size_t tokens_size = (size_t)header.n_tokens * sizeof(llama_token);
+  int result = -1;
+
+  // Restore over the free slot holding the least cached work
+  llama_slot *slot = nullptr;
+  for (auto &candidate : s->slots) {
+    if (candidate.request_id == 0 &&
+        (!slot || candidate.cached.size() < slot->cached.size()))
+      slot = &candidate;
+  }
+
+  if (header.magic != KV_SNAPSHOT_MAGIC ||
+      header.version != KV_SNAPSHOT_VERSION ||
+      sizeof(header) + tokens_size + header.state_size != file_size ||
+      header.n_tokens >= llama_n_ctx(s->ctx)) {
+    LOGE("KV snapshot is stale or corrupt, ignoring");
+  } else if (!slot) {
+    LOGE("No free slot to restore KV snapshot into");
+  } else {
+    slot_clear_cache(s, *slot);
+    const uint8_t *state = bytes + sizeof(header) + tokens_size;
+    if (llama_state_seq_set_data(s->ctx, state, header.state_size,
+                                 slot->seq_id) == 0) {
+      LOGE("Failed to restore KV state");
+      slot_clear_cache(s, *slot);
+    } else {
+      slot->cached.resize(header.n_tokens);
+      memcpy(slot->cached.data(), bytes + sizeof(header), tokens_size);
+      result = header.n_tokens;
+      LOGI("Restored KV snapshot into slot %d: %d tokens", slot->seq_id,
+           result);
+    }
+  }
+
+  munmap(map, file_size);
+  return result;
 }
 
 JNIEXPORT void JNICALL
@@ -190,9 +2225,28 @@ Java_com_abettergemini_assistant_LlamaCppBackend_nativeFreeModel(
 JNIEXPORT void JNICALL
 Java_com_abettergemini_assistant_LlamaCppBackend_nativeFreeContext(
     JNIEnv *env, jobject /* this */, jlong contextPtr) {
-  auto *ctx = reinterpret_cast<llama_context *>(contextPtr);
-  if (ctx) {
-    llama_free(ctx);
+  auto *session = reinterpret_cast<llama_session *>(contextPtr);
+  if (session) {
+    for (auto &slot : session->slots) {
+      if (slot.smpl)
+        llama_sampler_free(slot.smpl);
+      if (slot.grammar_smpl)
+        llama_sampler_free(slot.grammar_smpl);
+      if (slot.listener)
+        env->DeleteGlobalRef(slot.listener);
+    }
+    draft_free(session->draft);
+    if (session->vision) {
+      mtmd_free(session->vision->ctx);
+      delete session->vision;
+    }
+    llama_batch_free(session->batch);
+    llama_free(session->ctx);
+    if (session->threadpool)
+      ggml_threadpool_free(session->threadpool);
+    if (session->threadpool_batch)
+      ggml_threadpool_free(session->threadpool_batch);
+    delete session;
     LOGI("Context freed");
   }
 }
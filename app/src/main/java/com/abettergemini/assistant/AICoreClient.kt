@@ -1,12 +1,21 @@
 package com.abettergemini.assistant
 
+import android.content.ComponentCallbacks2
 import android.content.Context
+import android.content.SharedPreferences
+import android.content.res.Configuration
 import android.graphics.Bitmap
 import android.util.Log
 import com.google.mediapipe.tasks.genai.llminference.LlmInference
+import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import java.util.concurrent.CancellationException
 
 /**
  * Interface for On-Device LLM inference via dual backends (MediaPipe + llama.cpp).
@@ -22,16 +31,65 @@ class AICoreClient(private val context: Context) {
     private var openClawBackend: OpenClawBackend? = null
     private var isInitializing = false
     private var isDownloading = false
-    private var isGenerating = false
     private var downloadProgress = 0
     private var modelLoadTimeMs: Long = 0
+    private var mediaPipeMaxTokens = 0
+    // Percent of the post-load warm-up read done, -1 when not warming up
+    @Volatile private var warmupProgress = -1
+    // Set on load; the first llama.cpp reply after it logs its time to first token
+    @Volatile private var firstRequestAfterLoad = false
+
+    // MediaPipe delivers async results to the listeners set at build time,
+    // so the in-flight request installs its handlers here.
+    private var mediaPipeResultHandler: ((String, Boolean) -> Unit)? = null
+    private var mediaPipeErrorHandler: ((RuntimeException) -> Unit)? = null
+
+    // Set when memory pressure freed the local model; the next request reloads it
+    @Volatile private var evictedByPressure = false
+    // Serializes trimming and restoring, which both replace backends
+    private val residencyLock = Mutex()
+    // Resident bytes of the llama.cpp model, refreshed in the background for the status bar
+    @Volatile private var residentBytes = 0L
+    private var residentBytesAt = 0L
+
+    // llama.cpp models kept loaded within a RAM budget, by file name. Holds
+    // the active model, the router, and models switched away from until
+    // their room is needed.
+    private val pool = ModelPool<LlamaCppBackend>(poolBudget())
+    private var activeModelKey: String? = null
+        set(value) {
+            field = value
+            pool.setInUse(value)
+        }
+    // Small model that answers simple requests (see ModelRouter); pinned in the pool
+    @Volatile private var routerBackend: LlamaCppBackend? = null
+    private val routerLock = Mutex()
+    private val modelRouter = ModelRouter()
+    // Replies to repeated requests, persisted across restarts
+    private val responseCache = ResponseCache(MemoryManager(context))
+    // One request queue per engine (backend instance), dropped along with it
+    private val schedulers = java.util.WeakHashMap<Any, EngineScheduler>()
+
+    private val trimCallbacks = object : ComponentCallbacks2 {
+        override fun onTrimMemory(level: Int) = trimMemory(ModelResidency.forTrimLevel(level))
+        override fun onLowMemory() = trimMemory(ModelResidency.Tier.NONE)
+        override fun onConfigurationChanged(newConfig: Configuration) {}
+    }
+
+    // System prefix whose KV state was last restored/snapshotted in llama.cpp
+    @Volatile private var warmedSystemPrefix: String? = null
+    private val personaListener = SharedPreferences.OnSharedPreferenceChangeListener { _, key ->
+        if (PreferencesManager.affectsSystemPrompt(key)) refreshPromptSnapshot()
+    }
 
     init {
+        prefs.registerChangeListener(personaListener)
+        context.applicationContext.registerComponentCallbacks(trimCallbacks)
         initializeLlm()
     }
 
     private fun initializeLlm() {
-        if (isInitializing || llmInference != null || llamaCppBackend?.isReady == true) return
+        if (isInitializing || llmInference != null || llamaCppBackend?.hasModel == true) return
 
         val modelConfig = prefs.selectedModelConfig
 
@@ -78,24 +136,76 @@ class AICoreClient(private val context: Context) {
         val loadStart = System.currentTimeMillis()
         when (modelConfig.backend) {
             ModelConfig.Backend.LLAMA_CPP -> {
+                val pooled = pool.get(modelConfig.fileName)
+                if (pooled != null && pooled.hasModel) {
+                    // Still loaded from before a switch; a freed context is restored on first use
+                    llamaCppBackend = pooled
+                    activeModelKey = modelConfig.fileName
+                    modelLoadTimeMs = 0
+                    Log.d(TAG, "${modelConfig.displayName} still loaded: ${pool.summary()}")
+                    warmedSystemPrefix = null
+                    refreshPromptSnapshot()
+                    scope.launch(Dispatchers.IO) { ensureRouter(modelConfig) }
+                    return
+                }
+                closeEvicted(pool.makeRoom(modelFile.length()))
                 val backend = LlamaCppBackend(context)
-                if (backend.loadModel(modelFile.absolutePath)) {
+                if (backend.loadModel(modelFile.absolutePath, modelConfig.generationParams,
+                        modelConfig.kvCacheType, modelConfig.flashAttention, modelConfig.stopSequences,
+                        prefs.isLockModelInRam)) {
                     llamaCppBackend = backend
+                    activeModelKey = modelConfig.fileName
+                    closeEvicted(pool.put(modelConfig.fileName, backend, backend.footprintBytes, false))
                     modelLoadTimeMs = System.currentTimeMillis() - loadStart
                     Log.d(TAG, "llama.cpp backend initialized in ${modelLoadTimeMs}ms: ${modelConfig.displayName}")
+                    warmedSystemPrefix = null
+                    firstRequestAfterLoad = true
+                    if (prefs.isModelWarmup) {
+                        // The prompt prefix is prefilled once the weights are in memory
+                        warmupProgress = 0
+                        scope.launch(Dispatchers.IO) {
+                            try {
+                                backend.warmUp { warmupProgress = it }
+                            } catch (e: Exception) {
+                                Log.e(TAG, "Model warm-up failed", e)
+                            } finally {
+                                warmupProgress = -1
+                            }
+                            refreshPromptSnapshot()
+                        }
+                    } else {
+                        refreshPromptSnapshot()
+                    }
+                    val draft = modelConfig.draftModel
+                    if (draft != null && prefs.isSpeculativeDecoding) {
+                        scope.launch(Dispatchers.IO) { attachDraftModel(backend, modelConfig, draft) }
+                    }
+                    val projector = modelConfig.visionProjector
+                    if (projector != null) {
+                        scope.launch(Dispatchers.IO) { attachVisionProjector(backend, projector) }
+                    }
+                    scope.launch(Dispatchers.IO) { ensureRouter(modelConfig) }
                 } else {
                     throw Exception("Failed to load GGUF model via llama.cpp")
                 }
             }
             ModelConfig.Backend.MEDIAPIPE -> {
+                // No GGUF metadata here: assume a Gemma-2B-sized cache per token
+                val memory = android.app.ActivityManager.MemoryInfo()
+                (context.getSystemService(Context.ACTIVITY_SERVICE) as android.app.ActivityManager).getMemoryInfo(memory)
+                mediaPipeMaxTokens = ContextSizer.contextTokens(memory.availMem, memory.threshold, modelFile.length(),
+                    MEDIAPIPE_KV_BYTES_PER_TOKEN, MEDIAPIPE_MAX_CONTEXT, prefs.contextSize)
                 val options = LlmInference.LlmInferenceOptions.builder()
                     .setModelPath(modelFile.absolutePath)
-                    .setMaxTokens(1024)
-                    .setTopK(40)
-                    .setTemperature(0.7f)
-                    .setResultListener { partialResult, done -> }
+                    .setMaxTokens(mediaPipeMaxTokens)
+                    .setTopK(modelConfig.generationParams.topK)
+                    .setTemperature(modelConfig.generationParams.temperature)
+                    .setResultListener { partialResult, done ->
+                        mediaPipeResultHandler?.invoke(partialResult ?: "", done)
+                    }
                     .setErrorListener { error ->
                         Log.e(TAG, "LlmInference Error: " + error.message)
+                        mediaPipeErrorHandler?.invoke(error)
                     }
                     .build()
 
@@ -106,6 +216,200 @@ class AICoreClient(private val context: Context) {
         }
     }
 
+    /**
+     * Fetches (on unmetered networks only) and attaches the draft model paired
+     * with [modelConfig] for speculative decoding. Generation works without it,
+     * so failures are only logged.
+     */
+    private suspend fun attachDraftModel(backend: LlamaCppBackend, modelConfig: ModelConfig, draft: ModelConfig) {
+        try {
+            val destDir = context.getExternalFilesDir(null) ?: context.filesDir
+            val draftFile = java.io.File(destDir, draft.fileName)
+            if (!draftFile.exists() || draftFile.length() < draft.minFileSize) {
+                if (!isUnmeteredNetwork()) {
+                    Log.d(TAG, "Skipping draft model download on a metered network")
+                    return
+                }
+                draftFile.delete()
+                downloadModel(draftFile, draft)
+            }
+            if (llamaCppBackend !== backend) return // model switched while downloading
+            if (!backend.attachDraftModel(draftFile.absolutePath, modelConfig.draftTokens)) {
+                Log.w(TAG, "Draft model ${draft.displayName} could not be paired with ${modelConfig.displayName}")
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to attach draft model: ${e.message}", e)
+        }
+    }
+
+    /**
+     * Fetches (on unmetered networks only) and attaches the vision projector
+     * paired with the loaded model. Until it is attached, screenshots are
+     * ignored and only the screen text is used.
+     */
+    private suspend fun attachVisionProjector(backend: LlamaCppBackend, projector: ModelConfig) {
+        try {
+            val destDir = context.getExternalFilesDir(null) ?: context.filesDir
+            val projectorFile = java.io.File(destDir, projector.fileName)
+            if (!projectorFile.exists() || projectorFile.length() < projector.minFileSize) {
+                if (!isUnmeteredNetwork()) {
+                    Log.d(TAG, "Skipping vision projector download on a metered network")
+                    return
+                }
+                projectorFile.delete()
+                downloadModel(projectorFile, projector)
+            }
+            if (llamaCppBackend !== backend) return // model switched while downloading
+            if (!backend.attachVisionProjector(projectorFile.absolutePath)) {
+                Log.w(TAG, "Vision projector ${projector.displayName} could not be loaded")
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to attach vision projector: ${e.message}", e)
+        }
+    }
+
+    /**
+     * Loads the router model (see [ModelRouter]) next to [mainConfig] and pins
+     * it in the pool, so simple requests are answered even while the large
+     * model is unloaded. Like the draft model it is only downloaded on
+     * unmetered networks, and failures are only logged.
+     */
+    private suspend fun ensureRouter(mainConfig: ModelConfig) {
+        val router = ModelConfig.ROUTER
+        if (!prefs.isModelRouting || mainConfig.fileName == router.fileName) return
+        routerLock.withLock {
+            if (routerBackend?.isReady == true) return
+            try {
+                val destDir = context.getExternalFilesDir(null) ?: context.filesDir
+                val routerFile = java.io.File(destDir, router.fileName)
+                if (!routerFile.exists() || routerFile.length() < router.minFileSize) {
+                    if (!isUnmeteredNetwork()) {
+                        Log.d(TAG, "Skipping router model download on a metered network")
+                        return
+                    }
+                    routerFile.delete()
+                    downloadModel(routerFile, router)
+                }
+                val backend = LlamaCppBackend(context)
+                if (!backend.loadModel(routerFile.absolutePath, router.generationParams, router.kvCacheType,
+                        router.flashAttention, router.stopSequences, false, ROUTER_CONTEXT_TOKENS)) {
+                    Log.w(TAG, "Router model ${router.displayName} could not be loaded")
+                    return
+                }
+                routerBackend = backend
+                closeEvicted(pool.put(router.fileName, backend, backend.footprintBytes, true))
+                Log.d(TAG, "Router model loaded: ${pool.summary()}")
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to load router model: ${e.message}", e)
+            }
+        }
+    }
+
+    /**
+     * Turns routing (see [ensureRouter]) on or off; off frees the router model.
+     */
+    fun setModelRouting(enabled: Boolean) {
+        prefs.isModelRouting = enabled
+        val modelConfig = prefs.selectedModelConfig
+        scope.launch(Dispatchers.IO) {
+            if (enabled) {
+                if (modelConfig.backend == ModelConfig.Backend.LLAMA_CPP && llamaCppBackend != null) {
+                    ensureRouter(modelConfig)
+                }
+            } else {
+                routerLock.withLock {
+                    val router = routerBackend ?: return@withLock
+                    routerBackend = null
+                    pool.remove(ModelConfig.ROUTER.fileName)
+                    closeEvicted(listOf(router))
+                }
+            }
+        }
+    }
+
+    // Closes models the pool evicted, each once it finishes any reply it is generating
+    private fun closeEvicted(evicted: List<LlamaCppBackend>) {
+        for (backend in evicted) {
+            scope.launch(Dispatchers.IO) {
+                while (!backend.closeIfIdle()) delay(EVICT_RETRY_MS)
+                Log.d(TAG, "Evicted a model from the pool: ${pool.summary()}")
+            }
+        }
+    }
+
+    private fun poolBudget(): Long {
+        val memory = android.app.ActivityManager.MemoryInfo()
+        (context.getSystemService(Context.ACTIVITY_SERVICE) as android.app.ActivityManager).getMemoryInfo(memory)
+        return ModelPool.budgetFor(memory.totalMem, memory.availMem, memory.threshold)
+    }
+
+    /**
+     * Restores (or rebuilds in the background) the llama.cpp KV snapshot for
+     * the current system prefix whenever it differs from the warmed one.
+     */
+    private fun refreshPromptSnapshot() {
+        val backend = llamaCppBackend ?: return
+        // Templating calls into the model, so never on the main thread
+        scope.launch(Dispatchers.IO) {
+            val prefix = backend.templatePrefix(buildSystemPrompt())
+            if (prefix == warmedSystemPrefix) return@launch
+            warmedSystemPrefix = prefix
+            try {
+                backend.warmPrefix(prefix)
+            } catch (e: Exception) {
+                Log.e(TAG, "Failed to warm prompt prefix", e)
+            }
+        }
+    }
+
+    /**
+     * The system message that starts every prompt. Kept stable between turns
+     * so the prefix it templates to can be tokenized once and its KV state
+     * snapshotted and reused across turns and process restarts.
+     */
+    private fun buildSystemPrompt(): String {
+        val tools = if (prefs.isToolCallsEnabled) " " + ToolCall.INSTRUCTIONS else ""
+        return prefs.generateSystemPrompt() + tools
+    }
+
+    /**
+     * Context length of the loaded local model in tokens, or 0 when there is
+     * none (the remote backend manages its own).
+     */
+    fun getContextTokens(): Int {
+        return llamaCppBackend?.takeIf { it.isReady }?.contextTokens
+            ?: if (llmInference != null) mediaPipeMaxTokens else 0
+    }
+
+    // " · <model> <n>MB resident" for the llama.cpp model, from a value
+    // refreshed in the background since it reads /proc
+    private fun residentLabel(): String {
+        val backend = llamaCppBackend ?: return ""
+        val now = System.currentTimeMillis()
+        if (now - residentBytesAt > RESIDENT_REFRESH_MS) {
+            residentBytesAt = now
+            scope.launch(Dispatchers.IO) { residentBytes = backend.residentBytes() }
+        }
+        if (residentBytes <= 0) return ""
+        return " · ${prefs.selectedModel} ${residentBytes / (1024 * 1024)}MB resident"
+    }
+
+    // " · router 12/20 (60%), 5 classified · pool 2 · 1400/2800MB · hits 3/4"
+    // while a router model is loaded
+    private fun routingLabel(): String {
+        if (routerBackend?.isReady != true) return ""
+        val routes = modelRouter.summary()
+        return (if (routes.isNotEmpty()) " · $routes" else "") + " · " + pool.summary()
+    }
+
+    /**
+     * Whether a freshly loaded model is still being read into memory. It can
+     * already answer, just more slowly.
+     */
+    fun isWarmingUp(): Boolean {
+        return warmupProgress >= 0 && llamaCppBackend?.isReady == true
+    }
+
     /**
      * Returns whether the model is loaded and ready for inference.
      */
@@ -119,9 +423,18 @@ class AICoreClient(private val context: Context) {
     fun getStatusText(): String {
         return when {
             openClawBackend?.isReady == true -> "🌐 OpenClaw"
+            isWarmingUp() -> "🔥 Warming up $warmupProgress%" + residentLabel()
+            evictedByPressure && routerBackend?.isReady == true ->
+                "🪶 Router ready · ${prefs.selectedModel} loads when needed" + routingLabel()
+            evictedByPressure -> "💤 Freed for memory · reloads on next use"
+            llamaCppBackend?.let { it.hasModel && !it.isReady } == true && !isInitializing ->
+                "💤 Weights only (context freed)" + residentLabel()
             isModelReady() -> {
                 val timeStr = if (modelLoadTimeMs > 0) " (${modelLoadTimeMs / 1000.0}s)" else ""
-                "✅ Ready$timeStr"
+                val kvStr = llamaCppBackend?.takeIf { it.kvCacheBytes > 0 }?.let {
+                    " · ${it.contextTokens} ctx, KV ${it.kvCacheBytes / (1024 * 1024)}MB ${it.kvCacheLabel}"
+                } ?: ""
+                "✅ Ready$timeStr$kvStr" + residentLabel() + routingLabel()
             }
             isDownloading -> "📥 Downloading $downloadProgress%"
             isInitializing -> "⏳ Loading..."
@@ -164,10 +477,14 @@ class AICoreClient(private val context: Context) {
      * If the new model file doesn't exist, triggers a download.
      */
     fun switchModel() {
-        unloadModel()
-        isInitializing = false
-
         val modelConfig = prefs.selectedModelConfig
+        if (modelConfig.backend == ModelConfig.Backend.LLAMA_CPP) {
+            // The previous llama.cpp model stays pooled until its room is needed
+            detachActiveModel()
+        } else {
+            unloadModel()
+        }
+        isInitializing = false
 
         // OpenClaw: no download, just configure
         if (modelConfig.backend == ModelConfig.Backend.OPENCLAW) {
@@ -203,18 +520,100 @@ class AICoreClient(private val context: Context) {
      */
     fun unloadModel() {
         try {
-            llmInference?.close()
-            llmInference = null
-            llamaCppBackend?.close()
-            llamaCppBackend = null
-            openClawBackend?.close()
-            openClawBackend = null
+            detachActiveModel()
+            routerBackend = null
+            // Each is freed once any reply it is generating ends
+            closeEvicted(pool.clear())
             Log.d(TAG, "Model successfully unloaded from RAM.")
         } catch (e: Exception) {
             Log.e(TAG, "Error unloading model", e)
         }
     }
 
+    // Stops using the active model. A llama.cpp model stays in the pool
+    private fun detachActiveModel() {
+        llmInference?.close()
+        llmInference = null
+        llamaCppBackend = null
+        activeModelKey = null
+        warmedSystemPrefix = null
+        openClawBackend?.close()
+        openClawBackend = null
+    }
+
+    /**
+     * Gives memory back as the system asks (see [ModelResidency.forTrimLevel]):
+     * [ModelResidency.Tier.WEIGHTS] frees the llama.cpp context and K/V cache
+     * but keeps the weights mapped; [ModelResidency.Tier.NONE] frees the local
+     * model, which the next request reloads and warms up. Either way other
+     * pooled models are evicted; the router stays, so simple requests are
+     * still answered at once. Nothing is freed while a reply is being
+     * generated.
+     */
+    fun trimMemory(tier: ModelResidency.Tier) {
+        if (tier == ModelResidency.Tier.FULL) return
+        scope.launch(Dispatchers.IO) {
+            residencyLock.withLock {
+                val backend = llamaCppBackend
+                closeEvicted(pool.evictUnused())
+                when {
+                    backend != null && tier == ModelResidency.Tier.WEIGHTS -> backend.releaseContext()
+                    backend != null -> if (backend.closeIfIdle()) {
+                        activeModelKey?.let { pool.remove(it) }
+                        activeModelKey = null
+                        if (llamaCppBackend === backend) llamaCppBackend = null
+                        warmedSystemPrefix = null
+                        evictedByPressure = true
+                    }
+                    // MediaPipe can't drop its cache alone; only free it when critical
+                    llmInference != null && tier == ModelResidency.Tier.NONE && isEngineIdle(llmInference) -> {
+                        llmInference?.close()
+                        llmInference = null
+                        evictedByPressure = true
+                    }
+                }
+                residentBytesAt = 0
+                Log.d(TAG, "Trimmed to $tier")
+            }
+        }
+    }
+
+    /**
+     * Brings a model trimmed by [trimMemory] back: recreates a freed context,
+     * or reloads (and warms up) a freed model. Returns whether one is ready.
+     */
+    private suspend fun restoreResidency(): Boolean = residencyLock.withLock {
+        val backend = llamaCppBackend
+        if (backend != null && backend.hasModel && !backend.isReady) {
+            val restored = backend.restoreContext()
+            if (restored) {
+                warmedSystemPrefix = null
+                refreshPromptSnapshot()
+            }
+            return@withLock restored
+        }
+        if (!evictedByPressure) return@withLock isModelReady()
+        evictedByPressure = false
+        val modelConfig = prefs.selectedModelConfig
+        val destDir = context.getExternalFilesDir(null) ?: context.filesDir
+        val modelFile = java.io.File(destDir, modelConfig.fileName)
+        if (!modelFile.exists()) return@withLock false
+        Log.d(TAG, "Reloading ${modelConfig.displayName} freed under memory pressure")
+        isInitializing = true
+        try {
+            loadModelFile(modelConfig, modelFile)
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to reload model: ${e.message}", e)
+        } finally {
+            isInitializing = false
+        }
+        isModelReady()
+    }
+
+    private fun needsRestore(): Boolean {
+        return evictedByPressure || llamaCppBackend?.let { it.hasModel && !it.isReady } == true
+    }
+
     /**
      * Reloads the model into RAM if it was previously unloaded.
      */
@@ -230,10 +629,9 @@ class AICoreClient(private val context: Context) {
 
     var progressListener: DownloadProgressListener? = null
 
-    private fun downloadModel(targetFile: java.io.File) {
+    private fun downloadModel(targetFile: java.io.File, modelConfig: ModelConfig = prefs.selectedModelConfig) {
         isDownloading = true
         downloadProgress = 0
-        val modelConfig = prefs.selectedModelConfig
         Log.d(TAG, "Downloading model: ${modelConfig.displayName} to storage...")
         
         var currentUrl = java.net.URL(modelConfig.downloadUrl) 
@@ -324,14 +722,261 @@ class AICoreClient(private val context: Context) {
         fun onError(t: Throwable)
     }
 
-    private data class PendingRequest(val prompt: String, val callback: ResponseCallback)
-    private val requestQueue = mutableListOf<PendingRequest>()
+    interface BenchmarkCallback {
+        fun onResult(result: BenchmarkResult)
+        fun onError(t: Throwable)
+    }
+
+    /**
+     * Benchmarks the loaded llama.cpp model with [BenchmarkResult]'s default
+     * sizes. The callback runs on the main thread. The warmed prompt prefix
+     * is dropped by the run and restored afterwards.
+     */
+    fun runBenchmark(callback: BenchmarkCallback) {
+        val backend = llamaCppBackend?.takeIf { it.isReady }
+        if (backend == null) {
+            callback.onError(Exception("Benchmarks need a local llama.cpp model loaded"))
+            return
+        }
+        scope.launch(Dispatchers.IO) {
+            val result = try {
+                backend.benchmark(BenchmarkResult.DEFAULT_PROMPT_TOKENS, BenchmarkResult.DEFAULT_GENERATED_TOKENS,
+                    BenchmarkResult.DEFAULT_REPETITIONS, prefs.selectedModel, modelLoadTimeMs)
+            } catch (e: Exception) {
+                Log.e(TAG, "Benchmark failed", e)
+                null
+            }
+            if (llamaCppBackend === backend) {
+                warmedSystemPrefix = null
+                refreshPromptSnapshot()
+            }
+            scope.launch(Dispatchers.Main) {
+                if (result != null) callback.onResult(result)
+                else callback.onError(Exception("Benchmark couldn't run; wait for replies to finish and try again"))
+            }
+        }
+    }
+
+    /**
+     * Callback that also receives the response text as it is generated.
+     * onPartial is called on the main thread with everything generated so far.
+     */
+    interface StreamingResponseCallback : ResponseCallback {
+        fun onPartial(partialResponse: String)
+
+        /**
+         * Called on the main thread while a long prompt is being read, before
+         * any text is generated. Only local llama.cpp models report it.
+         */
+        fun onPrefillProgress(processedTokens: Int, totalTokens: Int)
+    }
+
+    // Told how a llama.cpp reply ended and which model (display name) gave it, just before onSuccess
+    private interface StatsCallback {
+        fun onStats(stats: GenerationStats, model: String)
+    }
+
+    fun generateResponse(userPrompt: String, screenContext: String?, callback: ResponseCallback): GenerationHandle {
+        return generateResponse(userPrompt, screenContext, null, null, null, false, callback)
+    }
+
+    fun generateResponse(userPrompt: String, screenContext: String?, image: Bitmap?, callback: ResponseCallback): GenerationHandle {
+        return generateResponse(userPrompt, screenContext, null, null, image, false, callback)
+    }
+
+    fun generateResponse(userPrompt: String, screenContext: String?, memory: String?, history: List<String>?,
+                         image: Bitmap?, toolCalls: Boolean, callback: ResponseCallback): GenerationHandle {
+        return generateResponse(userPrompt, screenContext, memory, history, image, toolCalls,
+            RequestScheduler.Priority.CHAT, callback)
+    }
+
+    /**
+     * Generates a reply for [userPrompt] on the active backend. [memory] is a
+     * summary of earlier conversation and [history] the turns since, oldest
+     * first; together with [screenContext] they are trimmed to the model's
+     * context by [PromptBudget]. With [toolCalls] (and tool calls enabled in
+     * settings) the reply is either a [ToolCall] or plain text. [image] is
+     * passed to llama.cpp models with a vision projector and ignored by the
+     * other backends. Requests answered before in the same context come from
+     * [ResponseCache] without generating. While a router model is loaded next
+     * to a llama.cpp model, [ModelRouter] decides which of the two answers.
+     * Each engine takes its requests in [priority] order, and an identical
+     * request already queued or running is joined rather than repeated.
+     * The returned handle cancels the request whether it is still queued or
+     * running; cancelled requests end with onError(CancellationException).
+     */
+    fun generateResponse(userPrompt: String, screenContext: String?, memory: String?, history: List<String>?,
+                         image: Bitmap?, toolCalls: Boolean, priority: RequestScheduler.Priority,
+                         callback: ResponseCallback): GenerationHandle {
+        if (!prefs.isResponseCache || !ResponseCache.isCacheable(userPrompt)) {
+            return generateRouted(userPrompt, screenContext, memory, history, image, toolCalls, priority, callback)
+        }
+        val handle = GenerationHandle()
+        scope.launch {
+            val start = System.currentTimeMillis()
+            val model = prefs.selectedModel
+            // A router that may answer in the selected model's place keeps its own entries
+            val models = listOfNotNull(model, activeRouter()?.let { ModelConfig.ROUTER.displayName })
+            val persona = ResponseCache.hash(buildSystemPrompt())
+            val contextHash = withContext(Dispatchers.IO) {
+                contextHash(screenContext, memory, history, image, toolCalls && prefs.isToolCallsEnabled)
+            }
+            val hit = try {
+                withContext(Dispatchers.IO) {
+                    responseCache.lookup(models, persona, userPrompt, contextHash, prefs.isSimilarCache)
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, "Response cache lookup failed", e)
+                null
+            }
+            if (endIfCancelled(handle, callback)) return@launch
+            if (hit != null) {
+                val kind = if (hit.isExact) "Cached" else String.format("Cached (similar, %.0f%%)", hit.similarity * 100)
+                Log.d(TAG, "Cache hit in ${System.currentTimeMillis() - start}ms: ${responseCache.stats().summary()}")
+                callback.onSuccess(hit.response + "\n\n[" + kind + " · saved " +
+                        String.format("%.1f", hit.generationMs / 1000.0) + "s]")
+                return@launch
+            }
+            val inner = generateRouted(userPrompt, screenContext, memory, history, image, toolCalls, priority,
+                object : StreamingResponseCallback, StatsCallback {
+                    private var cutOff = false
+                    private var answeredBy = model
 
-    fun generateResponse(userPrompt: String, screenContext: String?, callback: ResponseCallback) {
-        generateResponse(userPrompt, screenContext, null, callback)
+                    override fun onPartial(partialResponse: String) {
+                        (callback as? StreamingResponseCallback)?.onPartial(partialResponse)
+                    }
+                    override fun onPrefillProgress(processedTokens: Int, totalTokens: Int) {
+                        (callback as? StreamingResponseCallback)?.onPrefillProgress(processedTokens, totalTokens)
+                    }
+                    override fun onStats(stats: GenerationStats, model: String) {
+                        cutOff = stats.hitDeadline
+                        answeredBy = model
+                    }
+                    override fun onSuccess(response: String) {
+                        callback.onSuccess(response)
+                        val reply = stripFooter(response)
+                        // Replies cut short aren't worth repeating
+                        if (reply.isBlank() || cutOff) return
+                        val generationMs = System.currentTimeMillis() - start
+                        scope.launch(Dispatchers.IO) {
+                            try {
+                                responseCache.store(answeredBy, persona, userPrompt, contextHash, reply, generationMs)
+                            } catch (e: Exception) {
+                                Log.e(TAG, "Failed to cache reply", e)
+                            }
+                        }
+                    }
+                    override fun onError(t: Throwable) {
+                        callback.onError(t)
+                    }
+                })
+            handle.setOnCancel { inner.cancel() }
+        }
+        return handle
     }
 
-    fun generateResponse(userPrompt: String, screenContext: String?, image: Bitmap?, callback: ResponseCallback) {
+    // Hash of everything besides the query that the reply depends on,
+    // including whether it may be a tool call. A screenshot only counts when
+    // the model can see it, by its perceptual hash so the status bar clock
+    // doesn't change it.
+    private fun contextHash(screenContext: String?, memory: String?, history: List<String>?, image: Bitmap?,
+                            constrained: Boolean): String {
+        val imageHash = if (image != null && llamaCppBackend?.hasVision == true) {
+            java.lang.Long.toHexString(ImagePreprocessor.prepare(image).hash)
+        } else ""
+        return ResponseCache.hash(screenContext, memory, history?.joinToString("\n"), imageHash,
+            constrained.toString())
+    }
+
+    /** Current response cache counts, for settings. */
+    fun getCacheStats(): ResponseCache.Stats = responseCache.stats()
+
+    fun clearResponseCache() {
+        scope.launch(Dispatchers.IO) { responseCache.clear() }
+    }
+
+    // [generateResponse] past the cache: routed to the router or the selected model
+    private fun generateRouted(userPrompt: String, screenContext: String?, memory: String?, history: List<String>?,
+                               image: Bitmap?, toolCalls: Boolean, priority: RequestScheduler.Priority,
+                               callback: ResponseCallback): GenerationHandle {
+        val router = activeRouter()
+            ?: return generateOnMain(userPrompt, screenContext, memory, history, image, toolCalls, priority, callback, null)
+        val handle = GenerationHandle()
+        scope.launch {
+            val decision = withContext(Dispatchers.IO) { route(router, userPrompt, screenContext, history, image) }
+            if (endIfCancelled(handle, callback)) return@launch
+            val inner = if (decision.route == ModelRouter.Route.ROUTER) {
+                generateOnRouter(router, userPrompt, screenContext, memory, history, toolCalls, priority, callback, decision)
+            } else {
+                generateOnMain(userPrompt, screenContext, memory, history, image, toolCalls, priority, callback, decision)
+            }
+            handle.setOnCancel { inner.cancel() }
+        }
+        return handle
+    }
+
+    // The router model when requests go through it: loaded, enabled, and next to a local llama.cpp model
+    private fun activeRouter(): LlamaCppBackend? {
+        if (llmInference != null || openClawBackend != null) return null
+        return routerBackend?.takeIf { it.isReady && prefs.isModelRouting }
+    }
+
+    /**
+     * Picks the model for a request: from the request itself when
+     * [ModelRouter.preRoute] can tell, else by asking the router model.
+     */
+    private suspend fun route(router: LlamaCppBackend, userPrompt: String, screenContext: String?,
+                              history: List<String>?, image: Bitmap?): ModelRouter.Decision {
+        val decision = ModelRouter.preRoute(userPrompt, image != null, !screenContext.isNullOrEmpty(),
+            history?.size ?: 0) ?: ModelRouter.fromLabel(router.complete(
+                router.applyChatTemplate(listOf(
+                    ChatMessage(ChatMessage.SYSTEM, ModelRouter.CLASSIFY_INSTRUCTIONS),
+                    ChatMessage(ChatMessage.USER, userPrompt))),
+                ModelRouter.CLASSIFY_GRAMMAR, ModelRouter.CLASSIFY_MAX_TOKENS))
+        modelRouter.record(decision)
+        Log.d(TAG, "Routed to $decision · ${modelRouter.summary()}")
+        return decision
+    }
+
+    // Answers on the router model; the large model isn't touched or reloaded
+    private fun generateOnRouter(router: LlamaCppBackend, userPrompt: String, screenContext: String?,
+                                 memory: String?, history: List<String>?, toolCalls: Boolean,
+                                 priority: RequestScheduler.Priority, callback: ResponseCallback,
+                                 decision: ModelRouter.Decision): GenerationHandle {
+        val handle = GenerationHandle()
+        scope.launch(Dispatchers.IO) {
+            if (endIfCancelled(handle, callback)) return@launch
+            val finalPrompt = buildPrompt(userPrompt, screenContext, memory, history, null, router)
+            val constrained = toolCalls && prefs.isToolCallsEnabled
+            val queued = schedulerFor(router, "router", LlamaCppBackend.MAX_SLOTS).submit(
+                requestKey(finalPrompt, constrained, null), priority, llamaCallback(callback, decision)
+            ) { router.generateResponse(finalPrompt, null, constrained, it) }
+            handle.setOnCancel { queued.cancel() }
+        }
+        return handle
+    }
+
+    // generateResponse on the selected model; [decision] is how it was routed here, if it was
+    private fun generateOnMain(userPrompt: String, screenContext: String?, memory: String?, history: List<String>?,
+                               image: Bitmap?, toolCalls: Boolean, priority: RequestScheduler.Priority,
+                               callback: ResponseCallback, decision: ModelRouter.Decision?): GenerationHandle {
+        val handle = GenerationHandle()
+        if (needsRestore()) {
+            // Trimmed under memory pressure: bring the model back, then answer
+            scope.launch {
+                val ready = withContext(Dispatchers.IO) { restoreResidency() }
+                if (endIfCancelled(handle, callback)) return@launch
+                if (!ready) {
+                    callback.onError(Exception("Couldn't reload the model. Try Download / Reload Model in Settings."))
+                    return@launch
+                }
+                val inner = generateOnMain(userPrompt, screenContext, memory, history, image, toolCalls, priority,
+                    callback, decision)
+                handle.setOnCancel { inner.cancel() }
+            }
+            return handle
+        }
+        val constrained = toolCalls && prefs.isToolCallsEnabled
         val currentLlm = llmInference
         val currentLlama = llamaCppBackend
         
@@ -343,100 +988,268 @@ class AICoreClient(private val context: Context) {
             } else {
                 callback.onError(Exception("No model loaded. Select and download a model in Settings."))
             }
-            return
+            return handle
         }
 
-        // Build prompt in ChatML format (supported by Qwen2-VL, Phi-3.5, Gemma)
-        val promptBuilder = StringBuilder()
-        promptBuilder.append("<|im_start|>system\n")
-        promptBuilder.append(prefs.generateSystemPrompt())
-        promptBuilder.append("<|im_end|>\n")
-
-        if (!screenContext.isNullOrEmpty()) {
-            promptBuilder.append("<|im_start|>user\n")
-            promptBuilder.append("[Screen context: ").append(screenContext).append("]\n")
-            promptBuilder.append(userPrompt)
-            promptBuilder.append("<|im_end|>\n")
-        } else {
-            promptBuilder.append("<|im_start|>user\n")
-            promptBuilder.append(userPrompt)
-            promptBuilder.append("<|im_end|>\n")
-        }
-        promptBuilder.append("<|im_start|>assistant\n")
-        val finalPrompt = promptBuilder.toString()
 
         scope.launch(Dispatchers.IO) {
-            if (isGenerating) {
-                requestQueue.add(PendingRequest(finalPrompt, callback))
-                scope.launch(Dispatchers.Main) {
-                    callback.onSuccess("\n\n[Added to generation queue...]")
-                }
-                return@launch
-            }
+            if (endIfCancelled(handle, callback)) return@launch
+            // Off the main thread: budgeting tokenizes the screen context
+            // and the image is downscaled and hashed
+            val visionImage = if (image != null && currentLlama?.hasVision == true) {
+                ImagePreprocessor.prepare(image)
+            } else null
+            val finalPrompt = buildPrompt(userPrompt, screenContext, memory, history, visionImage)
 
-            // Route to the active backend
+            // Every engine takes requests through its own queue: up to its
+            // native slots at once for llama.cpp, one at a time otherwise
             val currentOpenClaw = openClawBackend
-            if (currentOpenClaw?.isReady == true) {
-                isGenerating = true
-                currentOpenClaw.generateResponse(finalPrompt, object : InferenceBackend.ResponseCallback {
-                    override fun onSuccess(response: String, generationTimeMs: Long) {
-                        val durationSecs = generationTimeMs / 1000.0
-                        val formatted = response + "\n\n[OpenClaw: " + String.format("%.1f", durationSecs) + "s]"
-                        callback.onSuccess(formatted)
-                        isGenerating = false
-                    }
-                    override fun onError(t: Throwable) {
-                        callback.onError(t)
-                        isGenerating = false
+            val key = requestKey(finalPrompt, constrained, visionImage)
+            val queued = when {
+                currentLlama?.isReady == true -> {
+                    // Picks up persona changes that don't go through PreferencesManager (e.g. user name)
+                    refreshPromptSnapshot()
+                    schedulerFor(currentLlama, prefs.selectedModel, LlamaCppBackend.MAX_SLOTS).submit(
+                        key, priority, llamaCallback(callback, decision)
+                    ) { currentLlama.generateResponse(finalPrompt, visionImage, constrained, it) }
+                }
+                currentOpenClaw?.isReady == true ->
+                    schedulerFor(currentOpenClaw, "OpenClaw", 1).submit(key, priority, timedCallback(callback, "OpenClaw")) {
+                        currentOpenClaw.generateResponse(finalPrompt, constrained, it)
                     }
-                })
-            } else if (currentLlama?.isReady == true) {
-                isGenerating = true
-                currentLlama.generateResponse(finalPrompt, object : InferenceBackend.ResponseCallback {
-                    override fun onSuccess(response: String, generationTimeMs: Long) {
-                        val durationSecs = generationTimeMs / 1000.0
-                        val formatted = response + "\n\n[Generation Time: " + String.format("%.1f", durationSecs) + "s]"
-                        callback.onSuccess(formatted)
-                        isGenerating = false
+                currentLlm != null ->
+                    schedulerFor(currentLlm, prefs.selectedModel, 1).submit(key, priority,
+                        timedCallback(callback, "Generation Time")) { startMediaPipe(currentLlm, finalPrompt, it) }
+                else -> {
+                    // Unloaded while the prompt was being built
+                    scope.launch(Dispatchers.Main) {
+                        callback.onError(Exception("No model loaded. Select and download a model in Settings."))
                     }
-                    override fun onError(t: Throwable) {
-                        callback.onError(t)
-                        isGenerating = false
+                    return@launch
+                }
+            }
+            handle.setOnCancel { queued.cancel() }
+        }
+        return handle
+    }
+
+    // A request cancelled between stages has no abort action to end it; ends it with onError on Main
+    private fun endIfCancelled(handle: GenerationHandle, callback: ResponseCallback): Boolean =
+        handle.endIfCancelled { t -> scope.launch(Dispatchers.Main) { callback.onError(t) } }
+
+    private fun schedulerFor(engine: Any, name: String, capacity: Int): EngineScheduler = synchronized(schedulers) {
+        schedulers.getOrPut(engine) { EngineScheduler(name, capacity, scope) }
+    }
+
+    private fun isEngineIdle(engine: Any?): Boolean = synchronized(schedulers) { schedulers[engine] }?.isIdle != false
+
+    // Identical prompts with the same options and image produce the same reply
+    private fun requestKey(prompt: String, constrained: Boolean, image: ImagePreprocessor.Image?): String {
+        return ResponseCache.hash(prompt, constrained.toString(), image?.let { java.lang.Long.toHexString(it.hash) })
+    }
+
+    /** Ends a reply with a "[label: 1.2s]" footer, for backends without stats. */
+    private fun timedCallback(callback: ResponseCallback, label: String): InferenceBackend.ResponseCallback {
+        return object : InferenceBackend.ResponseCallback {
+            override fun onPartial(partialResponse: String) {
+                (callback as? StreamingResponseCallback)?.onPartial(partialResponse)
+            }
+            override fun onSuccess(response: String, generationTimeMs: Long) {
+                callback.onSuccess(response + "\n\n[" + label + ": " + String.format("%.1f", generationTimeMs / 1000.0) + "s]")
+            }
+            override fun onError(t: Throwable) {
+                callback.onError(t)
+            }
+        }
+    }
+
+    /**
+     * Streams a llama.cpp reply to [callback] and ends it with a footer of
+     * its speed and, for routed requests, which model answered and why.
+     */
+    private fun llamaCallback(callback: ResponseCallback, decision: ModelRouter.Decision?): InferenceBackend.ResponseCallback {
+        return object : InferenceBackend.ResponseCallback {
+            private var stats: GenerationStats? = null
+
+            override fun onPartial(partialResponse: String) {
+                (callback as? StreamingResponseCallback)?.onPartial(partialResponse)
+            }
+            override fun onPrefillProgress(processedTokens: Int, totalTokens: Int) {
+                (callback as? StreamingResponseCallback)?.onPrefillProgress(processedTokens, totalTokens)
+            }
+            override fun onStats(stats: GenerationStats) {
+                this.stats = stats
+                val model = if (decision?.route == ModelRouter.Route.ROUTER) ModelConfig.ROUTER.displayName
+                    else prefs.selectedModel
+                (callback as? StatsCallback)?.onStats(stats, model)
+                if (firstRequestAfterLoad && decision?.route != ModelRouter.Route.ROUTER) {
+                    firstRequestAfterLoad = false
+                    Log.d(TAG, "First request after load: first token in ${stats.firstTokenMs}ms")
+                }
+            }
+            override fun onSuccess(response: String, generationTimeMs: Long) {
+                val durationSecs = generationTimeMs / 1000.0
+                val footer = StringBuilder("[Generation Time: " + String.format("%.1f", durationSecs) + "s")
+                stats?.let {
+                    footer.append(String.format(" · %.1f tok/s", it.tokensPerSecond))
+                    if (it.draftedTokens > 0) {
+                        footer.append(String.format(" · draft %.0f%% accepted", it.acceptanceRate * 100))
                     }
-                })
-            } else if (currentLlm != null) {
-                processQueueItem(currentLlm, finalPrompt, callback)
+                    if (it.hitDeadline) footer.append(" · cut off at time limit")
+                }
+                if (decision != null) {
+                    val model = if (decision.route == ModelRouter.Route.ROUTER) "router" else prefs.selectedModel
+                    footer.append(" · $model: ${decision.reason}")
+                }
+                footer.append("]")
+                callback.onSuccess(response + "\n\n" + footer)
+            }
+            override fun onError(t: Throwable) {
+                callback.onError(t)
             }
         }
     }
 
-    private suspend fun processQueueItem(currentLlm: LlmInference, prompt: String, callback: ResponseCallback) {
-        isGenerating = true
-        try {
-            val startTimeMs = System.currentTimeMillis()
-            val response = currentLlm.generateResponse(prompt)
-            val endTimeMs = System.currentTimeMillis()
-            val durationSecs = (endTimeMs - startTimeMs) / 1000.0
-            val formattedResponse = response + "\n\n[Generation Time: " + String.format("%.1f", durationSecs) + "s]"
+    /**
+     * Assembles the prompt from the sections [PromptBudget] keeps: a system
+     * message and a user message, laid out by the GGUF's own chat template on
+     * llama.cpp and as ChatML elsewhere. An [image] goes first in the user
+     * message, and its tokens are kept free in the budget. [target] is the
+     * llama.cpp model the prompt is for, when not the selected one.
+     */
+    private fun buildPrompt(userPrompt: String, screenContext: String?, memory: String?,
+                            history: List<String>?, image: ImagePreprocessor.Image? = null,
+                            target: LlamaCppBackend? = llamaCppBackend): String {
+        val sections = allocatePrompt(buildSystemPrompt(), memory, screenContext, history, userPrompt,
+            image?.estimatedTokens() ?: 0, target)
+        val promptBuilder = StringBuilder()
+        if (image != null) promptBuilder.append(LlamaCppBackend.IMAGE_MARKER).append("\n")
+        if (sections.memory.isNotEmpty()) {
+            promptBuilder.append("[Memory: ").append(sections.memory).append("]\n")
+        }
+        if (sections.history.isNotEmpty()) {
+            promptBuilder.append("[Conversation so far:\n")
+            sections.history.forEach { promptBuilder.append(it).append("\n") }
+            promptBuilder.append("]\n")
+        }
+        if (sections.screen.isNotEmpty()) {
+            promptBuilder.append("[Screen context: ").append(sections.screen).append("]\n")
+        }
+        promptBuilder.append(sections.query)
+        val messages = listOf(
+            ChatMessage(ChatMessage.SYSTEM, sections.system),
+            ChatMessage(ChatMessage.USER, promptBuilder.toString())
+        )
+        return target?.takeIf { it.isReady }?.applyChatTemplate(messages)
+            ?: ChatMessage.toChatMl(messages, true)
+    }
 
-            scope.launch(Dispatchers.Main) {
-                callback.onSuccess(formattedResponse)
+    /**
+     * Splits the loaded model's context between the prompt sections, minus
+     * room for a full reply. Counts in the model's own tokens when llama.cpp
+     * is loaded and estimates otherwise; the remote backend isn't trimmed.
+     * [reservedTokens] are kept free for input that isn't text (an image).
+     */
+    private fun allocatePrompt(system: String, memory: String?, screen: String?, history: List<String>?,
+                               query: String, reservedTokens: Int = 0,
+                               target: LlamaCppBackend? = llamaCppBackend): PromptBudget.Allocation {
+        val model = target?.takeIf { it.isReady }
+        val router = model?.takeIf { it === routerBackend }
+        val contextTokens = router?.contextTokens ?: getContextTokens()
+        val replyTokens = (if (router != null) ModelConfig.ROUTER else prefs.selectedModelConfig).generationParams.maxTokens
+        val budget = PromptBudget(if (contextTokens > 0) contextTokens else Int.MAX_VALUE / 2,
+            replyTokens + reservedTokens)
+        val tokenizer: PromptBudget.Tokenizer = model ?: PromptBudget.EstimatingTokenizer()
+        val allocation = budget.allocate(tokenizer, system, memory, screen, history, query)
+        if (allocation.droppedTurns > 0 || (screen != null && allocation.screen.length < screen.length)) {
+            Log.d(TAG, "Prompt trimmed to ${allocation.promptTokens} of $contextTokens tokens: " +
+                    "${allocation.droppedTurns} turns dropped, screen ${allocation.screen.length}/${screen?.length ?: 0} chars")
+        }
+        return allocation
+    }
+
+    /**
+     * Whether [history] no longer fits its share of the context next to
+     * [memory], i.e. the oldest turns would be dropped and should be
+     * summarized into memory instead.
+     */
+    fun shouldCompact(memory: String?, history: List<String>): Boolean {
+        if (history.isEmpty() || getContextTokens() <= 0) return false
+        return allocatePrompt(buildSystemPrompt(), memory, null, history, "").droppedTurns > 0
+    }
+
+    // Runs a MediaPipe generation in the background, reporting to [callback] on the main thread
+    private fun startMediaPipe(currentLlm: LlmInference, prompt: String,
+                               callback: InferenceBackend.ResponseCallback): GenerationHandle {
+        val handle = GenerationHandle()
+        scope.launch(Dispatchers.IO) {
+            val startTimeMs = System.currentTimeMillis()
+            try {
+                val response = generateMediaPipe(currentLlm, prompt, handle, callback)
+                val elapsedMs = System.currentTimeMillis() - startTimeMs
+                withContext(Dispatchers.Main) {
+                    if (handle.isCancelled) {
+                        callback.onError(CancellationException("Generation cancelled"))
+                    } else {
+                        callback.onSuccess(response, elapsedMs)
+                    }
+                }
+            } catch (e: Exception) {
+                Log.e(TAG, "MediaPipe Generate Error", e)
+                withContext(Dispatchers.Main) { callback.onError(e) }
             }
-        } catch (e: Exception) {
-            Log.e(TAG, "MediaPipe Generate Error", e)
-            scope.launch(Dispatchers.Main) {
-                callback.onError(e)
+        }
+        return handle
+    }
+
+    /**
+     * Runs a MediaPipe generation through generateResponseAsync so partial
+     * results can be streamed, suspending until the final chunk arrives.
+     * LlmInference has no way to abort a running call, so a cancelled request
+     * only stops streaming; queued requests are dropped before they start.
+     */
+    private suspend fun generateMediaPipe(currentLlm: LlmInference, prompt: String, handle: GenerationHandle,
+                                          callback: InferenceBackend.ResponseCallback): String {
+        val result = CompletableDeferred<String>()
+        val text = StringBuilder()
+        mediaPipeResultHandler = { partialResult, done ->
+            text.append(partialResult)
+            if (!handle.isCancelled) {
+                val snapshot = text.toString()
+                scope.launch(Dispatchers.Main) {
+                    callback.onPartial(snapshot)
+                }
             }
+            if (done) result.complete(text.toString())
+        }
+        mediaPipeErrorHandler = { error -> result.completeExceptionally(error) }
+        try {
+            currentLlm.generateResponseAsync(prompt)
+            return result.await()
         } finally {
-            isGenerating = false
-            if (requestQueue.isNotEmpty()) {
-                val nextRequest = requestQueue.removeAt(0)
-                processQueueItem(currentLlm, nextRequest.prompt, nextRequest.callback)
-            }
+            mediaPipeResultHandler = null
+            mediaPipeErrorHandler = null
         }
     }
 
     companion object {
         private const val TAG = "AICoreClient"
+        private const val RESIDENT_REFRESH_MS = 2_000L
+        // The router only sees short prompts: a small context keeps its K/V cache small
+        private const val ROUTER_CONTEXT_TOKENS = 2048
+        private const val EVICT_RETRY_MS = 500L
+
+        /**
+         * Removes the "[Generation Time: ...]" / "[OpenClaw: ...]" footer
+         * added to replies, e.g. before a reply is kept as conversation history.
+         */
+        @JvmStatic
+        fun stripFooter(response: String): String {
+            val start = response.lastIndexOf("\n\n[")
+            return if (start >= 0 && response.endsWith("]")) response.substring(0, start) else response
+        }
+        private const val MEDIAPIPE_KV_BYTES_PER_TOKEN = 72L * 1024
+        // .task bundles are converted with a fixed cache; stay within common sizes
+        private const val MEDIAPIPE_MAX_CONTEXT = 2048
     }
 }
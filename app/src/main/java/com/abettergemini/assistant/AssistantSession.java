@@ -3,6 +3,7 @@ package com.abettergemini.assistant;
 import android.app.assist.AssistContent;
 import android.app.assist.AssistStructure;
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Color;
 import android.os.Bundle;
 import android.service.voice.VoiceInteractionSession;
@@ -28,6 +29,14 @@ public class AssistantSession extends VoiceInteractionSession {
     private VoiceManager voice;
     private FrameLayout rootLayout;
     private View statusIndicator;
+    private GenerationHandle activeGeneration;
+    // The screen text and screenshot arrive in separate callbacks, in either
+    // order; generation starts once both are in (or just the text if no
+    // screenshot was requested).
+    private boolean wantsScreenshot;
+    private boolean screenshotArrived;
+    private String pendingContext;
+    private Bitmap pendingScreenshot;
 
     public AssistantSession(Context context) {
         super(context);
@@ -116,17 +125,28 @@ public class AssistantSession extends VoiceInteractionSession {
         statusIndicator.setBackground(dot);
     }
 
+    @Override
+    public void onShow(Bundle args, int showFlags) {
+        super.onShow(args, showFlags);
+        wantsScreenshot = (showFlags & SHOW_WITH_SCREENSHOT) != 0;
+        screenshotArrived = false;
+        pendingContext = null;
+        pendingScreenshot = null;
+    }
+
+    @Override
+    public void onHandleScreenshot(Bitmap screenshot) {
+        super.onHandleScreenshot(screenshot);
+        // Null when the user has turned off screenshot access
+        screenshotArrived = true;
+        pendingScreenshot = screenshot;
+        maybeStartGeneration();
+    }
+
     @Override
     public void onHandleAssist(android.service.voice.VoiceInteractionSession.AssistState state) {
         super.onHandleAssist(state);
         AssistStructure structure = state.getAssistStructure();
-        // Screenshot access requires the SHOW_SCREEN_VIOLATION check
-        android.graphics.Bitmap screenshot = null;
-        try {
-            // Check for screenshot in older API or via reflection if necessary
-            // In SDK 34, it's typically part of the AssistState if allowed
-        } catch (Exception e) {
-        }
 
         setIndicatorStatus(true);
         thinkingBar.setVisibility(View.VISIBLE);
@@ -142,13 +162,41 @@ public class AssistantSession extends VoiceInteractionSession {
         }
 
         String combinedContext = String.join("\n", screenText);
+        pendingContext = combinedContext;
+        maybeStartGeneration();
+
+        processContextForBargains(combinedContext);
+    }
+
+    private void maybeStartGeneration() {
+        if (pendingContext == null || (wantsScreenshot && !screenshotArrived)) return;
+        String combinedContext = pendingContext;
+        Bitmap screenshot = pendingScreenshot;
+        pendingContext = null;
+        pendingScreenshot = null;
 
-        // Vision Logic: If screenshot is available, we could pass it to a
-        // Vision-capable model
-        // For now, we continue with text-based analysis of the screen structure.
+        // Vision models with a projector loaded see the screenshot too; the
+        // others work from the screen text alone.
         String dummyPrompt = "Analyze this screen.";
 
-        aiClient.generateResponse(dummyPrompt, combinedContext, new AICoreClient.ResponseCallback() {
+        if (activeGeneration != null) activeGeneration.cancel();
+        activeGeneration = aiClient.generateResponse(dummyPrompt, combinedContext, null, null, screenshot, false,
+                RequestScheduler.Priority.VOICE, new AICoreClient.StreamingResponseCallback() {
+            @Override
+            public void onPartial(String partialResponse) {
+                resultText.post(() -> {
+                    thinkingBar.setVisibility(View.GONE);
+                    resultText.setText(partialResponse);
+                });
+            }
+
+            @Override
+            public void onPrefillProgress(int processedTokens, int totalTokens) {
+                if (processedTokens >= totalTokens) return;
+                resultText.post(() -> resultText.setText("Mate is reading the screen... "
+                        + (processedTokens * 100 / totalTokens) + "%"));
+            }
+
             @Override
             public void onSuccess(String response) {
                 resultText.post(() -> {
@@ -163,6 +211,7 @@ public class AssistantSession extends VoiceInteractionSession {
 
             @Override
             public void onError(Throwable t) {
+                if (t instanceof java.util.concurrent.CancellationException) return;
                 resultText.post(() -> {
                     setIndicatorStatus(false);
                     thinkingBar.setVisibility(View.GONE);
@@ -170,8 +219,16 @@ public class AssistantSession extends VoiceInteractionSession {
                 });
             }
         });
+    }
 
-        processContextForBargains(combinedContext);
+    @Override
+    public void onHide() {
+        super.onHide();
+        // A dismissed overlay shouldn't keep generating in the background
+        if (activeGeneration != null) {
+            activeGeneration.cancel();
+            activeGeneration = null;
+        }
     }
 
     private void parseNode(AssistStructure.ViewNode node, List<String> textList) {
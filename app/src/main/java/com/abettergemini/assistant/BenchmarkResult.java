@@ -0,0 +1,101 @@
+package com.abettergemini.assistant;
+
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * One llama-bench style run of a local model: prompt processing (pp) and
+ * token generation (tg) speed with the thread and K/V cache settings in
+ * use, plus load time and memory. Kept in MemoryManager's benchmark history
+ * so quantizations and settings can be compared across devices.
+ */
+public class BenchmarkResult {
+    /** Defaults matching llama-bench's pp512 / tg128 / 5 repetitions, scaled down for phones. */
+    public static final int DEFAULT_PROMPT_TOKENS = 512;
+    public static final int DEFAULT_GENERATED_TOKENS = 64;
+    public static final int DEFAULT_REPETITIONS = 3;
+
+    private static final Pattern QUANT = Pattern.compile(
+            "(?i)(IQ\\d_\\w+?|Q\\d_K(?:_[SML])?|Q\\d_\\d|BF16|F16|F32)(?=\\.gguf$|[-.])");
+
+    public final long timestamp;
+    public final String model;
+    /** Weight quantization from the GGUF file name, e.g. "Q4_K_M". */
+    public final String quantization;
+    public final String kvCache;
+    public final int decodeThreads;
+    public final int prefillThreads;
+    public final int promptTokens;
+    public final int generatedTokens;
+    public final int repetitions;
+    /** Mean and standard deviation over the repetitions, in microseconds. */
+    public final long promptMicros;
+    public final long promptMicrosStdDev;
+    public final long generationMicros;
+    public final long generationMicrosStdDev;
+    public final long loadTimeMs;
+    public final long peakRssBytes;
+    public final long kvCacheBytes;
+
+    public BenchmarkResult(long timestamp, String model, String quantization, String kvCache,
+                           int decodeThreads, int prefillThreads,
+                           int promptTokens, int generatedTokens, int repetitions,
+                           long promptMicros, long promptMicrosStdDev,
+                           long generationMicros, long generationMicrosStdDev,
+                           long loadTimeMs, long peakRssBytes, long kvCacheBytes) {
+        this.timestamp = timestamp;
+        this.model = model;
+        this.quantization = quantization;
+        this.kvCache = kvCache;
+        this.decodeThreads = decodeThreads;
+        this.prefillThreads = prefillThreads;
+        this.promptTokens = promptTokens;
+        this.generatedTokens = generatedTokens;
+        this.repetitions = repetitions;
+        this.promptMicros = promptMicros;
+        this.promptMicrosStdDev = promptMicrosStdDev;
+        this.generationMicros = generationMicros;
+        this.generationMicrosStdDev = generationMicrosStdDev;
+        this.loadTimeMs = loadTimeMs;
+        this.peakRssBytes = peakRssBytes;
+        this.kvCacheBytes = kvCacheBytes;
+    }
+
+    public double promptTokensPerSecond() {
+        return tokensPerSecond(promptTokens, promptMicros);
+    }
+
+    public double generationTokensPerSecond() {
+        return tokensPerSecond(generatedTokens, generationMicros);
+    }
+
+    static double tokensPerSecond(int tokens, long micros) {
+        return micros > 0 ? tokens * 1_000_000.0 / micros : 0;
+    }
+
+    // Spread of a rate, from the spread of the time it was measured over
+    static double rateStdDev(double rate, long micros, long microsStdDev) {
+        return micros > 0 ? rate * microsStdDev / micros : 0;
+    }
+
+    /** The quantization named in a GGUF file name, or "" if none is. */
+    static String quantizationOf(String fileName) {
+        Matcher m = QUANT.matcher(fileName);
+        String last = "";
+        while (m.find()) last = m.group(1).toUpperCase(Locale.ROOT);
+        return last;
+    }
+
+    /** Two lines for the history list, in llama-bench's terms. */
+    public String summary() {
+        double pp = promptTokensPerSecond();
+        double tg = generationTokensPerSecond();
+        return String.format(Locale.US,
+                "%s %s · KV %s · %d/%d threads\npp%d %.1f ± %.1f t/s · tg%d %.1f ± %.1f t/s · load %.1fs · RSS %dMB · KV %dMB",
+                model, quantization, kvCache, decodeThreads, prefillThreads,
+                promptTokens, pp, rateStdDev(pp, promptMicros, promptMicrosStdDev),
+                generatedTokens, tg, rateStdDev(tg, generationMicros, generationMicrosStdDev),
+                loadTimeMs / 1000.0, peakRssBytes / (1024 * 1024), kvCacheBytes / (1024 * 1024));
+    }
+}
@@ -0,0 +1,37 @@
+package com.abettergemini.assistant;
+
+import java.util.List;
+
+/**
+ * One turn of a conversation. Prompts are built as a list of these and laid
+ * out by the loaded model's own chat template (see
+ * LlamaCppBackend.applyChatTemplate), or as ChatML where there is none.
+ */
+public class ChatMessage {
+    public static final String SYSTEM = "system";
+    public static final String USER = "user";
+    public static final String ASSISTANT = "assistant";
+
+    public final String role;
+    public final String content;
+
+    public ChatMessage(String role, String content) {
+        this.role = role;
+        this.content = content;
+    }
+
+    /**
+     * ChatML, for MediaPipe and for OpenClawBackend, which splits it back
+     * into API messages. With addAssistant the prompt ends with an open
+     * assistant turn for the model to complete.
+     */
+    public static String toChatMl(List<ChatMessage> messages, boolean addAssistant) {
+        StringBuilder sb = new StringBuilder();
+        for (ChatMessage m : messages) {
+            sb.append("<|im_start|>").append(m.role).append('\n')
+                    .append(m.content).append("<|im_end|>\n");
+        }
+        if (addAssistant) sb.append("<|im_start|>assistant\n");
+        return sb.toString();
+    }
+}
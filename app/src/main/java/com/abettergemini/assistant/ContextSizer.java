@@ -0,0 +1,41 @@
+package com.abettergemini.assistant;
+
+/**
+ * Picks a context length (in tokens) that fits the device's free memory.
+ * The K/V cache is the only part of inference that grows with the context,
+ * so the length is whatever share of the headroom left after the model
+ * weights and a fixed reserve the cache can take at its per-token cost.
+ */
+public final class ContextSizer {
+    public static final int MIN_CONTEXT = 512;
+    public static final int MAX_CONTEXT = 8192;
+    /** Context lengths are rounded down to whole prefill batches. */
+    public static final int STEP = 256;
+    /** Compute buffers, the app itself and whatever else should keep running. */
+    static final long RESERVE_BYTES = 512L * 1024 * 1024;
+    /** Share of the remaining headroom the K/V cache may take. */
+    static final double KV_SHARE = 0.5;
+
+    private ContextSizer() {}
+
+    /**
+     * @param availBytes       ActivityManager.MemoryInfo.availMem
+     * @param thresholdBytes   MemoryInfo.threshold, where the low-memory killer starts
+     * @param modelBytes       size of the weights, which mmap makes resident as they're used
+     * @param kvBytesPerToken  K/V cache bytes per token for the chosen cache type
+     * @param trainedContext   context the model was trained with, 0 if unknown
+     * @param override         user-chosen context length, 0 for automatic
+     */
+    public static int contextTokens(long availBytes, long thresholdBytes, long modelBytes,
+                                    long kvBytesPerToken, int trainedContext, int override) {
+        int limit = trainedContext > 0 ? trainedContext : MAX_CONTEXT;
+        if (override > 0) return Math.min(override, limit);
+        if (kvBytesPerToken <= 0) return MIN_CONTEXT;
+
+        long headroom = availBytes - thresholdBytes - modelBytes - RESERVE_BYTES;
+        long tokens = (long) (Math.max(0, headroom) * KV_SHARE) / kvBytesPerToken;
+        tokens = Math.min(tokens, Math.min(limit, MAX_CONTEXT));
+        tokens = tokens / STEP * STEP;
+        return (int) Math.max(MIN_CONTEXT, tokens);
+    }
+}
@@ -0,0 +1,140 @@
+package com.abettergemini.assistant
+
+import android.util.Log
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Semaphore
+import java.util.concurrent.CancellationException
+
+/**
+ * Runs the requests for one inference engine (a loaded model or the remote
+ * server) in [RequestScheduler] order. A single consumer coroutine starts
+ * the next request whenever fewer than [capacity] are running, and exits
+ * once nothing is queued. For llama.cpp the capacity is its native slot
+ * count, so requests are still batched.
+ *
+ * Requests joined by duplicates stream to every waiter. Cancelling a
+ * waiter only detaches it; the generation stops once no waiters are left.
+ */
+class EngineScheduler(private val name: String, capacity: Int, private val scope: CoroutineScope) {
+
+    /** Starts a generation on the engine, reporting to the callback; must not block. */
+    fun interface Starter {
+        fun start(callback: InferenceBackend.ResponseCallback): GenerationHandle
+    }
+
+    private class Task(val starter: Starter) {
+        @Volatile var handle: GenerationHandle? = null
+    }
+
+    private class Waiter(val callback: InferenceBackend.ResponseCallback)
+
+    // Also guards consumerRunning
+    private val queue = RequestScheduler<Task, Waiter>()
+    private var consumerRunning = false
+    private val permits = Semaphore(capacity)
+
+    /**
+     * Queues a request of [priority] reporting to [callback]. [key]
+     * identifies the exact request (prompt and options); one with the same
+     * key already queued or running is joined instead of started again.
+     * Null keys are never joined.
+     */
+    fun submit(key: String?, priority: RequestScheduler.Priority, callback: InferenceBackend.ResponseCallback,
+               starter: Starter): GenerationHandle {
+        val waiter = Waiter(callback)
+        val handle = GenerationHandle()
+        val ticket = synchronized(queue) {
+            val ticket = queue.submit(key, priority, Task(starter), waiter, System.currentTimeMillis())
+            if (!consumerRunning) {
+                consumerRunning = true
+                scope.launch(Dispatchers.IO) { consume() }
+            }
+            ticket
+        }
+        handle.setOnCancel {
+            val abandoned = synchronized(queue) {
+                if (!queue.leave(ticket, waiter)) return@setOnCancel
+                ticket.isStarted && queue.waiters(ticket).isEmpty()
+            }
+            scope.launch(Dispatchers.Main) {
+                callback.onError(CancellationException("Generation cancelled"))
+            }
+            if (abandoned) ticket.task.handle?.cancel()
+        }
+        return handle
+    }
+
+    /** Whether nothing is queued or running. */
+    val isIdle: Boolean
+        get() = synchronized(queue) { queue.queuedCount() == 0 && queue.runningCount() == 0 }
+
+    /** Queue and wait stats, see [RequestScheduler.summary]. */
+    fun summary(): String = synchronized(queue) { queue.summary() }
+
+    private suspend fun consume() {
+        while (true) {
+            permits.acquire()
+            val ticket = synchronized(queue) {
+                queue.poll(System.currentTimeMillis()).also { if (it == null) consumerRunning = false }
+            }
+            if (ticket == null) {
+                permits.release()
+                return
+            }
+            Log.d(TAG, "$name: ${ticket.priority} request started after ${ticket.waitMs()}ms in queue · ${summary()}")
+            scope.launch(Dispatchers.IO) {
+                try {
+                    run(ticket)
+                } finally {
+                    permits.release()
+                }
+            }
+        }
+    }
+
+    // Starts the request and suspends until it ends, fanning its output out to the waiters
+    private suspend fun run(ticket: RequestScheduler.Ticket<Task, Waiter>) {
+        val done = CompletableDeferred<Unit>()
+        val fanOut = object : InferenceBackend.ResponseCallback {
+            override fun onPartial(partialResponse: String) {
+                waiters(ticket).forEach { it.callback.onPartial(partialResponse) }
+            }
+            override fun onPrefillProgress(processedTokens: Int, totalTokens: Int) {
+                waiters(ticket).forEach { it.callback.onPrefillProgress(processedTokens, totalTokens) }
+            }
+            override fun onStats(stats: GenerationStats) {
+                waiters(ticket).forEach { it.callback.onStats(stats) }
+            }
+            override fun onSuccess(response: String, generationTimeMs: Long) {
+                synchronized(queue) { queue.finish(ticket) }.forEach { it.callback.onSuccess(response, generationTimeMs) }
+                done.complete(Unit)
+            }
+            override fun onError(t: Throwable) {
+                synchronized(queue) { queue.finish(ticket) }.forEach { it.callback.onError(t) }
+                done.complete(Unit)
+            }
+        }
+        val handle = try {
+            ticket.task.starter.start(fanOut)
+        } catch (e: Exception) {
+            Log.e(TAG, "$name: failed to start request", e)
+            scope.launch(Dispatchers.Main) { fanOut.onError(e) }
+            done.await()
+            return
+        }
+        ticket.task.handle = handle
+        // Every waiter left while it was starting
+        if (waiters(ticket).isEmpty()) handle.cancel()
+        done.await()
+    }
+
+    private fun waiters(ticket: RequestScheduler.Ticket<Task, Waiter>): List<Waiter> =
+        synchronized(queue) { queue.waiters(ticket) }
+
+    companion object {
+        private const val TAG = "EngineScheduler"
+    }
+}
@@ -0,0 +1,56 @@
+package com.abettergemini.assistant;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Returned from generateResponse so a caller can abandon a request.
+ * Cancelling drops it from the queue if it hasn't started, or aborts the
+ * running generation (native decode loop, HTTP connection) if it has.
+ * Cancelled requests finish with onError(CancellationException).
+ */
+public class GenerationHandle {
+    private final AtomicBoolean cancelled = new AtomicBoolean(false);
+    private Runnable onCancel;
+
+    /**
+     * Request cancellation. Safe to call from any thread, more than once.
+     */
+    public void cancel() {
+        if (!cancelled.compareAndSet(false, true)) return;
+        Runnable action;
+        synchronized (this) {
+            action = onCancel;
+        }
+        if (action != null) action.run();
+    }
+
+    public boolean isCancelled() {
+        return cancelled.get();
+    }
+
+    /**
+     * For a request handed on after a wait (a cache lookup, routing, a model
+     * reload), when no abort action is set: true if it was cancelled in the
+     * meantime, after passing a CancellationException to onError so it still
+     * ends like a request cancelled later on.
+     */
+    public boolean endIfCancelled(Consumer<Throwable> onError) {
+        if (!cancelled.get()) return false;
+        onError.accept(new CancellationException("Generation cancelled"));
+        return true;
+    }
+
+    /**
+     * Set the action that aborts whatever currently services this request.
+     * Runs right away if the handle is already cancelled, so the action must
+     * be idempotent. Pass null once the work has finished.
+     */
+    public void setOnCancel(Runnable action) {
+        synchronized (this) {
+            onCancel = action;
+        }
+        if (action != null && cancelled.get()) action.run();
+    }
+}
@@ -0,0 +1,26 @@
+package com.abettergemini.assistant
+
+/**
+ * Sampling settings for one model. The defaults are the values the app has
+ * always used; ModelConfig entries override them per model.
+ *
+ * @param seed RNG seed, reapplied at the start of every request. Negative
+ *             picks a random seed instead.
+ * @param deadlineMs latency budget for one request, from when it is queued;
+ *             whatever has been generated by then is returned. 0 for none.
+ */
+data class GenerationParams @JvmOverloads constructor(
+    val temperature: Float = 0.7f,
+    val topK: Int = 40,
+    val topP: Float = 0.9f,
+    val penaltyLastN: Int = 64,
+    val repeatPenalty: Float = 1.3f,
+    val seed: Int = 42,
+    val maxTokens: Int = 256,
+    val deadlineMs: Long = 60_000
+) {
+    companion object {
+        @JvmField
+        val DEFAULT = GenerationParams()
+    }
+}
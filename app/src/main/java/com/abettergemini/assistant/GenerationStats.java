@@ -0,0 +1,54 @@
+package com.abettergemini.assistant;
+
+/**
+ * Token counts and timings for one finished generation, as measured by the
+ * backend. Draft counts are zero unless speculative decoding was used.
+ */
+public class GenerationStats {
+    public final int promptTokens;
+    public final int reusedTokens;
+    public final int generatedTokens;
+    public final long firstTokenMs;
+    public final long totalMs;
+    public final int draftedTokens;
+    public final int acceptedTokens;
+    /** Generation was cut off by the request's deadline; the text is partial. */
+    public final boolean hitDeadline;
+
+    public GenerationStats(int promptTokens, int reusedTokens, int generatedTokens,
+                           long firstTokenMs, long totalMs,
+                           int draftedTokens, int acceptedTokens) {
+        this(promptTokens, reusedTokens, generatedTokens, firstTokenMs, totalMs,
+                draftedTokens, acceptedTokens, false);
+    }
+
+    public GenerationStats(int promptTokens, int reusedTokens, int generatedTokens,
+                           long firstTokenMs, long totalMs,
+                           int draftedTokens, int acceptedTokens, boolean hitDeadline) {
+        this.promptTokens = promptTokens;
+        this.reusedTokens = reusedTokens;
+        this.generatedTokens = generatedTokens;
+        this.firstTokenMs = firstTokenMs;
+        this.totalMs = totalMs;
+        this.draftedTokens = draftedTokens;
+        this.acceptedTokens = acceptedTokens;
+        this.hitDeadline = hitDeadline;
+    }
+
+    /**
+     * Generated tokens per second after the first token, i.e. decode speed
+     * including any speedup from accepted draft tokens.
+     */
+    public double getTokensPerSecond() {
+        long decodeMs = totalMs - firstTokenMs;
+        if (generatedTokens <= 1 || decodeMs <= 0) return 0;
+        return (generatedTokens - 1) * 1000.0 / decodeMs;
+    }
+
+    /**
+     * Fraction of draft tokens the target model kept, or 0 if none were drafted.
+     */
+    public double getAcceptanceRate() {
+        return draftedTokens > 0 ? (double) acceptedTokens / draftedTokens : 0;
+    }
+}
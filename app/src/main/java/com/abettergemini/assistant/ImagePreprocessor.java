@@ -0,0 +1,111 @@
+package com.abettergemini.assistant;
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Gets screenshots ready for the vision projector. {@link #prepare} runs on
+ * a background thread: it downscales, so the image encoder (the costly part
+ * of a vision turn) sees no more pixels than it needs, and hashes the
+ * result so re-asking about the same screen reuses its embeddings.
+ * {@link #writeRgb} then converts the pixels into the RGB bytes native code
+ * reads, in a direct buffer reused from image to image.
+ */
+public class ImagePreprocessor {
+    /** Qwen2-VL makes one token of each 28x28 patch: at most 16 patches a side. */
+    public static final int MAX_SIDE = 448;
+    static final int PATCH = 28;
+
+    /** A downscaled image, its ARGB pixels and perceptual hash. */
+    public static class Image {
+        public final int width;
+        public final int height;
+        public final long hash;
+        final int[] pixels;
+
+        Image(int width, int height, int[] pixels, long hash) {
+            this.width = width;
+            this.height = height;
+            this.pixels = pixels;
+            this.hash = hash;
+        }
+
+        /** Roughly how many context positions the encoded image takes. */
+        public int estimatedTokens() {
+            return ((width + PATCH - 1) / PATCH) * ((height + PATCH - 1) / PATCH);
+        }
+    }
+
+    private ByteBuffer rgb = ByteBuffer.allocateDirect(MAX_SIDE * MAX_SIDE * 3);
+
+    /**
+     * Downscale {@code source} to fit {@link #MAX_SIDE} and hash it. Safe on
+     * any background thread; the source is left as it was.
+     */
+    public static Image prepare(Bitmap source) {
+        // Screenshots can be hardware bitmaps, whose pixels can't be read
+        Bitmap readable = source.getConfig() == Bitmap.Config.HARDWARE
+                ? source.copy(Bitmap.Config.ARGB_8888, false) : source;
+        float scale = Math.min(1f, (float) MAX_SIDE / Math.max(readable.getWidth(), readable.getHeight()));
+        int width = Math.max(1, Math.round(readable.getWidth() * scale));
+        int height = Math.max(1, Math.round(readable.getHeight() * scale));
+        Bitmap scaled = scale < 1f ? Bitmap.createScaledBitmap(readable, width, height, true) : readable;
+
+        int[] pixels = new int[width * height];
+        scaled.getPixels(pixels, 0, width, 0, 0, width, height);
+        if (scaled != source) scaled.recycle();
+        if (readable != source && readable != scaled) readable.recycle();
+        return new Image(width, height, pixels, differenceHash(pixels, width, height));
+    }
+
+    /**
+     * The image as packed RGB bytes in the reused direct buffer. Not
+     * thread-safe: the buffer belongs to whoever calls this next.
+     */
+    public ByteBuffer writeRgb(Image image) {
+        int bytes = image.width * image.height * 3;
+        if (bytes > rgb.capacity()) rgb = ByteBuffer.allocateDirect(bytes);
+        argbToRgb(image.pixels, image.width * image.height, rgb);
+        return rgb;
+    }
+
+    static void argbToRgb(int[] argb, int count, ByteBuffer out) {
+        out.clear();
+        for (int i = 0; i < count; i++) {
+            int p = argb[i];
+            out.put((byte) (p >> 16)).put((byte) (p >> 8)).put((byte) p);
+        }
+        out.flip();
+    }
+
+    /**
+     * 64-bit difference hash: the image averaged down to 9x8 grey cells,
+     * one bit per cell brighter than its right neighbour. Small changes (a
+     * clock ticking in the status bar, compression noise) leave it the same.
+     */
+    static long differenceHash(int[] argb, int width, int height) {
+        double[] cells = new double[9 * 8];
+        int[] counts = new int[9 * 8];
+        for (int y = 0; y < height; y++) {
+            int row = y * 8 / height;
+            for (int x = 0; x < width; x++) {
+                int p = argb[y * width + x];
+                int grey = (((p >> 16) & 0xFF) * 299 + ((p >> 8) & 0xFF) * 587 + (p & 0xFF) * 114) / 1000;
+                int cell = row * 9 + x * 9 / width;
+                cells[cell] += grey;
+                counts[cell]++;
+            }
+        }
+        long hash = 0;
+        for (int row = 0; row < 8; row++) {
+            for (int col = 0; col < 8; col++) {
+                int left = row * 9 + col;
+                double a = counts[left] > 0 ? cells[left] / counts[left] : 0;
+                double b = counts[left + 1] > 0 ? cells[left + 1] / counts[left + 1] : 0;
+                hash = (hash << 1) | (a > b ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+}
@@ -9,13 +9,42 @@ public interface InferenceBackend {
     interface ResponseCallback {
         void onSuccess(String response, long generationTimeMs);
         void onError(Throwable t);
+
+        /**
+         * Called on the main thread with the text generated so far.
+         * Backends that cannot stream never call it; onSuccess always follows.
+         */
+        default void onPartial(String partialResponse) {}
+
+        /**
+         * Called on the main thread after each chunk of the prompt is read.
+         * processedTokens includes tokens reused from the cache.
+         */
+        default void onPrefillProgress(int processedTokens, int totalTokens) {}
+
+        /**
+         * Called on the main thread just before onSuccess by backends that
+         * measure their own decoding.
+         */
+        default void onStats(GenerationStats stats) {}
     }
 
     /**
      * Generate a text response from the model.
      * Must be called on a background thread.
+     * The returned handle stops the generation within one decode step.
      */
-    void generateResponse(String prompt, ResponseCallback callback);
+    GenerationHandle generateResponse(String prompt, ResponseCallback callback);
+
+    /**
+     * Like {@link #generateResponse(String, ResponseCallback)}, but with
+     * toolCalls the reply is constrained to a {@link ToolCall} or plain text
+     * and generation stops as soon as a call is complete. Backends that
+     * can't constrain their output generate unconstrained.
+     */
+    default GenerationHandle generateResponse(String prompt, boolean toolCalls, ResponseCallback callback) {
+        return generateResponse(prompt, callback);
+    }
 
     /**
      * Check if the backend is ready to generate.
@@ -0,0 +1,133 @@
+package com.abettergemini.assistant;
+
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Recognises requests that need no model at all: opening an app, a web
+ * search, or a URL. Matches are scored; only those at or above
+ * {@link #CONFIDENCE_THRESHOLD} are handled directly (in milliseconds, by
+ * {@link ToolExecutor}), and everything else goes to the model as before.
+ */
+public final class IntentMatcher {
+
+    public enum Kind {
+        /** Open an installed app; arg is its name. */
+        LAUNCH,
+        /** Web search; arg is the query. */
+        SEARCH,
+        /** Open a web page; arg is the URL, with a scheme. */
+        OPEN_URL,
+        /** A pasted URL on its own; arg is the URL, with a scheme. */
+        URL
+    }
+
+    /** A recognised intent and how sure the matcher is of it, 0 to 1. */
+    public static final class Intent {
+        public final Kind kind;
+        public final String arg;
+        public final double confidence;
+
+        Intent(Kind kind, String arg, double confidence) {
+            this.kind = kind;
+            this.arg = arg;
+            this.confidence = confidence;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s(%s) %.2f", kind, arg, confidence);
+        }
+    }
+
+    /** Below this the request goes to the model. */
+    public static final double CONFIDENCE_THRESHOLD = 0.8;
+
+    private static final Pattern LAUNCH = Pattern.compile(
+            "^(?:please\\s+)?(open|launch|start|run)\\s+(?:up\\s+)?(?:the\\s+)?(?:app\\s+)?(.+?)(?:\\s+app)?(?:\\s+please)?[.!]*$");
+    private static final Pattern SEARCH = Pattern.compile(
+            "^(?:please\\s+)?(?:search\\s+(?:the\\s+web\\s+|online\\s+)?for|search|google|look\\s+up|web\\s+search)\\s+(.+?)[.!]*$");
+    private static final Pattern GO_TO = Pattern.compile("^(?:go\\s+to|open|visit)\\s+(\\S+)[.!]*$");
+    private static final Pattern SCHEME_URL = Pattern.compile("^https?://\\S+$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern BARE_URL = Pattern.compile(
+            "^(www\\.)?[a-z0-9-]+(?:\\.[a-z0-9-]+)*\\.([a-z]{2,})(/\\S*)?$", Pattern.CASE_INSENSITIVE);
+    private static final String[] COMMON_TLDS = {
+            "com", "org", "net", "io", "dev", "app", "edu", "gov", "co", "uk", "de", "ai"
+    };
+    // Launch targets that refer to the conversation or the screen, not an app
+    private static final String[] NOT_APPS = {
+            "it", "this", "that", "them", "a", "an", "my", "the", "up", "timer", "alarm", "new", "with", "about"
+    };
+
+    private IntentMatcher() {}
+
+    /** The intent {@code query} expresses, or null if it isn't a command. */
+    public static Intent match(String query) {
+        String q = query.trim();
+        if (q.isEmpty()) return null;
+        if (SCHEME_URL.matcher(q).matches()) return new Intent(Kind.URL, q, 1.0);
+
+        String lower = q.toLowerCase(Locale.ROOT);
+        Matcher goTo = GO_TO.matcher(lower);
+        if (goTo.matches()) {
+            String url = asUrl(q.substring(goTo.start(1), goTo.end(1)));
+            if (url != null) return new Intent(Kind.OPEN_URL, url, urlConfidence(goTo.group(1)));
+        }
+        String bare = asUrl(q);
+        if (bare != null) return new Intent(Kind.URL, bare, urlConfidence(q));
+
+        Matcher search = SEARCH.matcher(lower);
+        if (search.matches()) {
+            String terms = q.substring(search.start(1), search.end(1)).trim();
+            // "search my photos for..." is about an app, not the web
+            double confidence = lower.startsWith("search my") || lower.startsWith("search in") ? 0.4 : 0.95;
+            return new Intent(Kind.SEARCH, terms, confidence);
+        }
+
+        Matcher launch = LAUNCH.matcher(lower);
+        if (launch.matches()) {
+            String name = q.substring(launch.start(2), launch.end(2)).trim();
+            return new Intent(Kind.LAUNCH, name, launchConfidence(launch.group(1), name.toLowerCase(Locale.ROOT)));
+        }
+        return null;
+    }
+
+    /** {@link #match} if its confidence clears the threshold, else null. */
+    public static Intent matchConfident(String query) {
+        Intent intent = match(query);
+        return intent != null && intent.confidence >= CONFIDENCE_THRESHOLD ? intent : null;
+    }
+
+    // App names are short and aren't questions. "start"/"run" also start
+    // plenty of requests that aren't about apps ("start a timer").
+    static double launchConfidence(String verb, String name) {
+        String[] words = name.split("\\s+");
+        if (name.contains("?") || name.contains(",")) return 0.2;
+        for (String stop : NOT_APPS) {
+            if (words[0].equals(stop)) return 0.3;
+        }
+        double confidence = words.length <= 2 ? 0.95 : words.length == 3 ? 0.8 : 0.4;
+        if (verb.equals("start") || verb.equals("run")) confidence -= 0.15;
+        return confidence;
+    }
+
+    private static double urlConfidence(String text) {
+        if (text.toLowerCase(Locale.ROOT).startsWith("www.") || text.indexOf('/') > 0) return 0.95;
+        Matcher m = BARE_URL.matcher(text);
+        if (!m.matches()) return 0;
+        String tld = m.group(2).toLowerCase(Locale.ROOT);
+        for (String common : COMMON_TLDS) {
+            if (common.equals(tld)) return 0.9;
+        }
+        // "node.js", "config.yaml": could be a name as easily as a site
+        return 0.5;
+    }
+
+    // text as an https URL if it looks like a domain (with optional path)
+    private static String asUrl(String text) {
+        if (SCHEME_URL.matcher(text).matches()) return text;
+        if (!BARE_URL.matcher(text).matches()) return null;
+        return "https://" + text;
+    }
+}
@@ -1,19 +1,44 @@
 package com.abettergemini.assistant
 
+import android.app.ActivityManager
 import android.content.Context
 import android.util.Log
+import kotlinx.coroutines.CompletableDeferred
 import kotlinx.coroutines.CoroutineScope
 import kotlinx.coroutines.Dispatchers
 import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import java.io.File
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+import java.util.concurrent.CancellationException
+import java.util.concurrent.atomic.AtomicLong
 
 /**
  * llama.cpp inference backend for GGUF models.
  * Uses JNI to call native llama.cpp functions.
  */
-class LlamaCppBackend(private val context: Context) : InferenceBackend {
+class LlamaCppBackend(private val context: Context) : InferenceBackend, PromptBudget.Tokenizer {
 
     companion object {
         private const val TAG = "LlamaCppBackend"
+        private const val SNAPSHOT_DIR = "kv_snapshots"
+        private const val SNAPSHOT_EXT = ".kvstate"
+        // Token counts of recent short texts (system prompt, memory, turns)
+        private const val TOKEN_CACHE_ENTRIES = 64
+        private const val TOKEN_CACHE_MAX_CHARS = 4096
+        // Template prefixes kept, one per recent system prompt (persona)
+        private const val TEMPLATE_PREFIX_ENTRIES = 4
+        // Stands in for the user's text when finding where a template's prefix ends
+        private const val PREFIX_SENTINEL = "\u0001"
+        // Minimum gap between partial text posts to the main thread, about a frame at 60Hz
+        private const val PARTIAL_POST_MS = 16L
+        /** Where an image goes in a prompt; libmtmd's default media marker. */
+        const val IMAGE_MARKER = "<__media__>"
+        /** Requests decoded together; MAX_SLOTS in llama-android.cpp. */
+        const val MAX_SLOTS = 4
         private var isLibraryLoaded = false
 
         init {
@@ -28,41 +53,215 @@ class LlamaCppBackend(private val context: Context) : InferenceBackend {
         }
     }
 
-    private var modelPtr: Long = 0   // Native pointer to llama_model
-    private var contextPtr: Long = 0 // Native pointer to llama_context
+    // Native pointers are freed only while holding both generationLock and
+    // synchronized(inputBuffer): scheduler-side calls hold the first,
+    // tokenizer and template calls the second, and each re-checks the
+    // pointer inside its lock before passing it to JNI.
+    @Volatile private var modelPtr: Long = 0   // Native pointer to llama_model
+    @Volatile private var contextPtr: Long = 0 // Native pointer to llama_session (context + per-slot KV state)
+    private var modelFile: File? = null
+    @Volatile private var draftModelPtr: Long = 0 // Native pointer to the speculative draft llama_model
+
+    /** Whether a vision projector is attached, so prompts may carry an image. */
+    var hasVision = false
+        private set
+    private var generationParams = GenerationParams.DEFAULT
+    // UTF-8 stop strings of requests that don't bring their own
+    private var stopSequences = emptyArray<ByteArray>()
+    private var contextSize = 0
+
+    private data class ContextSpec(val tokens: Int, val decodeThreads: Int, val prefillThreads: Int,
+                                   val kvCache: ModelConfig.KvCacheType, val flashAttention: Boolean)
+    // How the context was created, to recreate it after releaseContext()
+    private var contextSpec: ContextSpec? = null
+    private var draftPath: String? = null
+    private var draftTokens = 0
+    private var projectorPath: String? = null
+
+    /** Bytes held by the K/V cache of the loaded context, 0 if none. */
+    var kvCacheBytes = 0L
+        private set
+
+    /** Tokens the loaded context holds, e.g. for status and prompt budgets. */
+    val contextTokens: Int get() = contextSize
+
+    /** K/V cache types actually in use after any fallback, e.g. "Q8_0" or "Q8_0/F16". */
+    var kvCacheLabel = ""
+        private set
     private val scope = CoroutineScope(Dispatchers.IO)
 
+    // Serializes native calls on the session: scheduler steps and prefix
+    // warm-up take turns, but a step serves every active request at once.
+    private val generationLock = Mutex()
+    private val nextRequestId = AtomicLong(0)
+
+    // Text crosses JNI as UTF-8 in reused direct buffers. Prompts are encoded
+    // into inputBuffer (guarded by synchronized(inputBuffer)); native code
+    // streams generated text into outputBuffer, which is read right away on
+    // the scheduler thread, so one is enough for every slot.
+    private val inputBuffer = Utf8Buffer(16 * 1024, true)
+    private val outputBuffer = Utf8Buffer(4 * 1024, false)
+    // Detokenized text when trimming and templated prompts; also guarded by
+    // synchronized(inputBuffer), like the two caches below
+    private val trimBuffer = Utf8Buffer(16 * 1024, true)
+    // RGB pixels of the image being admitted; only used on the scheduler thread
+    private val imageBuffer = ImagePreprocessor()
+    private val tokenCounts = object : LinkedHashMap<String, Int>(TOKEN_CACHE_ENTRIES, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Int>?) = size > TOKEN_CACHE_ENTRIES
+    }
+
+    private class TemplatePrefix(val text: String, val bytes: Int)
+    // System prompt -> the start of every prompt with it, as the template lays it out
+    private val templatePrefixes = object : LinkedHashMap<String, TemplatePrefix>(TEMPLATE_PREFIX_ENTRIES, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, TemplatePrefix>?) =
+            size > TEMPLATE_PREFIX_ENTRIES
+    }
+
+    private class LlamaRequest(
+        val id: Long,
+        val prompt: String,
+        val maxTokens: Int,
+        val deadlineMs: Long,
+        val stops: Array<ByteArray>,
+        val grammar: String?,
+        val image: ImagePreprocessor.Image?,
+        val callback: InferenceBackend.ResponseCallback,
+        val handle: GenerationHandle
+    ) {
+        val partial = StringBuilder()
+        val enqueuedAt = System.currentTimeMillis()
+        var admittedAt = 0L
+        var partialPostedAt = 0L
+        // Text decoded since the last onPartial, still to be posted
+        var partialPending = false
+        // Holds a native slot: admitted and not yet released. Guarded by
+        // synchronized(waiting); only such ids are passed to nativeCancel,
+        // so nativeRelease always clears them from the cancelled set.
+        var inSlot = false
+    }
+
+    // Requests waiting for a free native slot. Guarded by synchronized(waiting),
+    // which also guards workerRunning and is taken before
+    // synchronized(inputBuffer) when both are held.
+    private val waiting = ArrayDeque<LlamaRequest>()
+    private var workerRunning = false
+    // Requests holding a native slot; only touched by the scheduler coroutine.
+    private val active = HashMap<Long, LlamaRequest>()
+    // Ids nativeStep reports finished, reused every step
+    private val finishedIds = LongArray(MAX_SLOTS)
+
+    /**
+     * Receives upcalls from the native scheduler on the generating thread:
+     * the length of newly decoded text written to the output buffer (chunks
+     * always end on a UTF-8 boundary) and prompt progress after each prefill
+     * chunk of n_batch tokens.
+     */
+    interface GenerationListener {
+        fun onToken(length: Int)
+        fun onPrefillProgress(processedTokens: Int, totalTokens: Int)
+    }
+
+    /** Progress of [warmUp]'s read of the model file, on the warming thread. */
+    interface WarmupListener {
+        fun onWarmupProgress(bytesRead: Long, totalBytes: Long)
+    }
+
     // JNI native methods
-    private external fun nativeLoadModel(modelPath: String): Long
-    private external fun nativeCreateContext(modelPtr: Long, nCtx: Int): Long
-    private external fun nativeGenerate(contextPtr: Long, modelPtr: Long, prompt: String, maxTokens: Int): String
+    private external fun nativeLoadModel(modelPath: String, lockInRam: Boolean): Long
+    private external fun nativeWarmupRead(modelPath: String, listener: WarmupListener?): LongArray?
+    private external fun nativeWarmupDecode(contextPtr: Long): Long
+    private external fun nativeCreateContext(modelPtr: Long, nCtx: Int, nThreads: Int, nThreadsBatch: Int,
+                                             typeK: Int, typeV: Int, flashAttn: Boolean): Long
+    private external fun nativeContextInfo(contextPtr: Long): LongArray
+    private external fun nativeModelInfo(modelPtr: Long, typeK: Int, typeV: Int): LongArray
+    private external fun nativeCpuTopology(): IntArray
+    private external fun nativeCountTokens(contextPtr: Long, text: ByteBuffer, length: Int, addSpecial: Boolean,
+                                           prefixLength: Int): Int
+    private external fun nativeTokenize(contextPtr: Long, text: ByteBuffer, length: Int): IntArray?
+    private external fun nativeDetokenize(contextPtr: Long, tokens: IntArray, offset: Int, count: Int, output: ByteBuffer): Int
+    private external fun nativeSetGenerationParams(contextPtr: Long, temperature: Float, topK: Int, topP: Float,
+                                                   penaltyLastN: Int, repeatPenalty: Float, seed: Int)
+    private external fun nativeSetThreads(contextPtr: Long, nThreads: Int, nThreadsBatch: Int)
+    private external fun nativeCalibrateThreads(contextPtr: Long, nThreads: Int, nThreadsBatch: Int): LongArray?
+    private external fun nativeBench(contextPtr: Long, pp: Int, tg: Int, reps: Int): LongArray?
+    private external fun nativeApplyTemplate(modelPtr: Long, roles: Array<String>, contents: Array<ByteArray>,
+                                             addAssistant: Boolean, output: ByteBuffer): Int
+    private external fun nativeSubmit(contextPtr: Long, requestId: Long, prompt: ByteBuffer, promptLength: Int,
+                                      prefixLength: Int, image: ByteBuffer?, imageWidth: Int, imageHeight: Int,
+                                      imageHash: Long, maxTokens: Int, deadlineMs: Long, stops: Array<ByteArray>?,
+                                      grammar: String?, listener: GenerationListener?, output: ByteBuffer?): Int
+    private external fun nativeStep(contextPtr: Long, finished: LongArray): Int
+    private external fun nativeRelease(contextPtr: Long, requestId: Long): Boolean
+    private external fun nativeRequestStats(contextPtr: Long, requestId: Long): LongArray?
+    private external fun nativeAttachProjector(contextPtr: Long, path: String): Boolean
+    private external fun nativeAttachDraft(contextPtr: Long, draftModelPtr: Long, nDraft: Int): Boolean
+    private external fun nativeCancel(contextPtr: Long, requestId: Long)
+    private external fun nativePrefill(contextPtr: Long, text: ByteBuffer, length: Int): Int
+    private external fun nativeSaveState(contextPtr: Long, slot: Int, path: String): Boolean
+    private external fun nativeLoadState(contextPtr: Long, path: String): Int
     private external fun nativeFreeModel(modelPtr: Long)
     private external fun nativeFreeContext(contextPtr: Long)
 
     /**
-     * Load a GGUF model file from the given path.
+     * Load a GGUF model file from the given path and sample with [params].
+     * [kvCache] and [flashAttention] choose the K/V cache layout; native code
+     * falls back to f16 (with a smaller context) when the model can't use it.
+     * The context length comes from free memory unless the user set one.
+     * Replies end before any of [stops] (unless a request brings its own),
+     * which are never part of the text.
+     * With [lockInRam] the weights are mlocked if memory allows. A
+     * [contextLimit] > 0 caps the context, e.g. for a model that only ever
+     * sees short prompts.
+     */
+    fun loadModel(modelPath: String, params: GenerationParams = GenerationParams.DEFAULT,
+                  kvCache: ModelConfig.KvCacheType = ModelConfig.KvCacheType.F16,
+                  flashAttention: Boolean = false, stops: Array<String> = emptyArray(),
+                  lockInRam: Boolean = false, contextLimit: Int = 0): Boolean {
+        val prefs = PreferencesManager(context)
+        val loaded = loadModel(modelPath, params, kvCache, flashAttention, stops,
+            {
+                val tokens = chooseContextSize(kvCache, prefs.contextSize)
+                if (contextLimit > 0) minOf(tokens, contextLimit) else tokens
+            }, prefs.decodeThreads, prefs.prefillThreads,
+            lockInRam && hasRoomToLock(File(modelPath).length()))
+        if (loaded && prefs.decodeThreads == 0) calibrateThreads(prefs)
+        return loaded
+    }
+
+    /**
+     * Load with a fixed context of [contextTokens] and [threads] for decode
+     * and prefill, instead of sizing from preferences and free memory. Used
+     * by the host JNI tests, which have no device to ask.
      */
-    fun loadModel(modelPath: String): Boolean {
+    fun loadModel(modelPath: String, contextTokens: Int, threads: Int, params: GenerationParams,
+                  kvCache: ModelConfig.KvCacheType, flashAttention: Boolean, stops: Array<String>): Boolean {
+        return loadModel(modelPath, params, kvCache, flashAttention, stops, { contextTokens }, threads, threads, false)
+    }
+
+    private fun loadModel(modelPath: String, params: GenerationParams, kvCache: ModelConfig.KvCacheType,
+                          flashAttention: Boolean, stops: Array<String>, contextTokens: () -> Int,
+                          decodeThreads: Int, prefillThreads: Int, lockInRam: Boolean): Boolean {
         if (!isLibraryLoaded) {
             Log.e(TAG, "Native library not loaded, cannot load model")
             return false
         }
 
         try {
-            modelPtr = nativeLoadModel(modelPath)
+            modelPtr = nativeLoadModel(modelPath, lockInRam)
             if (modelPtr == 0L) {
                 Log.e(TAG, "Failed to load model: $modelPath")
                 return false
             }
 
-            contextPtr = nativeCreateContext(modelPtr, 1024)
-            if (contextPtr == 0L) {
-                Log.e(TAG, "Failed to create context")
+            generationParams = params
+            if (!createContext(ContextSpec(contextTokens(), decodeThreads, prefillThreads, kvCache, flashAttention))) {
                 nativeFreeModel(modelPtr)
                 modelPtr = 0
                 return false
             }
+            stopSequences = encodeStops(stops)
 
+            modelFile = File(modelPath)
             Log.d(TAG, "Model loaded successfully: $modelPath")
             return true
         } catch (e: Exception) {
@@ -71,60 +270,732 @@ class LlamaCppBackend(private val context: Context) : InferenceBackend {
         }
     }
 
-    override fun generateResponse(prompt: String, callback: InferenceBackend.ResponseCallback) {
+    private fun createContext(spec: ContextSpec): Boolean {
+        contextPtr = nativeCreateContext(modelPtr, spec.tokens, spec.decodeThreads, spec.prefillThreads,
+            spec.kvCache.ggmlType, spec.kvCache.ggmlType, spec.flashAttention)
+        if (contextPtr == 0L) {
+            Log.e(TAG, "Failed to create context")
+            return false
+        }
+        val info = nativeContextInfo(contextPtr) // [n_ctx, kv_bytes, type_k, type_v, flash_attn]
+        contextSize = info[0].toInt()
+        kvCacheBytes = info[1]
+        val typeName = { ggml: Long ->
+            ModelConfig.KvCacheType.values().firstOrNull { it.ggmlType.toLong() == ggml }?.name ?: "type $ggml"
+        }
+        kvCacheLabel = if (info[2] == info[3]) typeName(info[2]) else "${typeName(info[2])}/${typeName(info[3])}"
+        if (kvCacheLabel != spec.kvCache.name) {
+            Log.w(TAG, "K/V cache fell back from ${spec.kvCache} to $kvCacheLabel, context $contextSize tokens")
+        }
+        val params = generationParams
+        nativeSetGenerationParams(contextPtr, params.temperature, params.topK, params.topP,
+            params.penaltyLastN, params.repeatPenalty, params.seed)
+        // Recreated later with the size it ended up with, so snapshots stay valid
+        contextSpec = spec.copy(tokens = contextSize)
+        return true
+    }
+
+    /** Whether the weights are loaded, with or without a context. */
+    val hasModel: Boolean get() = isLibraryLoaded && modelPtr != 0L
+
+    /**
+     * Frees the context (K/V cache, compute buffers, projector) and keeps the
+     * weights, for moderate memory pressure. Skipped while requests are
+     * running or waiting. [restoreContext] brings it back.
+     */
+    suspend fun releaseContext(): Boolean {
+        return generationLock.withLock {
+            val busy = synchronized(waiting) { waiting.isNotEmpty() } || active.isNotEmpty()
+            if (contextPtr == 0L || busy) return@withLock false
+            synchronized(inputBuffer) {
+                nativeFreeContext(contextPtr)
+                contextPtr = 0
+            }
+            hasVision = false
+            kvCacheBytes = 0
+            Log.d(TAG, "Context released, weights kept")
+            true
+        }
+    }
+
+    /**
+     * [close], unless requests are running or waiting. For freeing the model
+     * under memory pressure without cutting off a reply.
+     */
+    suspend fun closeIfIdle(): Boolean {
+        return generationLock.withLock {
+            val busy = synchronized(waiting) { waiting.isNotEmpty() } || active.isNotEmpty()
+            if (!busy) closeLocked()
+            !busy
+        }
+    }
+
+    /**
+     * Recreates a context freed by [releaseContext] as it was, reattaching
+     * the draft model and vision projector. Must be called on a background
+     * thread.
+     */
+    suspend fun restoreContext(): Boolean {
+        val spec = contextSpec ?: return false
+        val restored = generationLock.withLock {
+            if (contextPtr != 0L) return@withLock true
+            if (!hasModel || !createContext(spec)) return@withLock false
+            if (draftModelPtr != 0L && !nativeAttachDraft(contextPtr, draftModelPtr, draftTokens)) {
+                Log.w(TAG, "Draft model not reattached")
+            }
+            true
+        }
+        projectorPath?.let { if (restored && !hasVision) attachVisionProjector(it) }
+        if (restored) Log.d(TAG, "Context restored, $contextSize tokens")
+        return restored
+    }
+
+    /**
+     * Bytes of this model actually in RAM: the resident part of the mmapped
+     * weights (and draft model), plus the K/V cache. Reads /proc, so call it
+     * off the main thread.
+     */
+    fun residentBytes(): Long {
+        val paths = listOfNotNull(modelFile?.path, draftPath)
+        if (paths.isEmpty()) return 0
+        val mapped = try {
+            File("/proc/self/smaps").bufferedReader().use { ModelResidency.mappedResidentBytes(it, paths) }
+        } catch (e: Exception) {
+            0L
+        }
+        return mapped + kvCacheBytes
+    }
+
+    /**
+     * RAM this model takes when fully resident: its weights (and draft
+     * model's) plus the K/V cache. What a model pool budgets for it.
+     */
+    val footprintBytes: Long
+        get() = (modelFile?.length() ?: 0) + (draftPath?.let { File(it).length() } ?: 0) + kvCacheBytes
+
+    // Locked pages can't be reclaimed, so only lock when as much again stays
+    // free for the K/V cache and everything else.
+    private fun hasRoomToLock(modelBytes: Long): Boolean {
+        val memory = ActivityManager.MemoryInfo()
+        (context.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager).getMemoryInfo(memory)
+        val room = memory.availMem - memory.threshold > 2 * modelBytes
+        if (!room) Log.d(TAG, "Not locking model: ${memory.availMem / (1024 * 1024)}MB available")
+        return room
+    }
+
+    /**
+     * Makes the first request after loading as fast as later ones: reads the
+     * model file so its weights are in the page cache instead of faulting in
+     * from flash during the first decode, then decodes one token to touch
+     * every layer. [onProgress] gets the read's percentage on this thread.
+     * Must be called on a background thread; requests can run meanwhile.
+     */
+    suspend fun warmUp(onProgress: (Int) -> Unit): Boolean {
+        val path = modelFile?.path ?: return false
+        val start = System.currentTimeMillis()
+        val read = nativeWarmupRead(path, object : WarmupListener {
+            override fun onWarmupProgress(bytesRead: Long, totalBytes: Long) {
+                onProgress((bytesRead * 100 / totalBytes.coerceAtLeast(1)).toInt())
+            }
+        }) ?: return false
+        val decodeUs = generationLock.withLock {
+            if (isReady()) nativeWarmupDecode(contextPtr) else -1L
+        }
+        Log.d(TAG, "Warm-up ${System.currentTimeMillis() - start}ms: read ${read[0] / (1024 * 1024)}MB in " +
+                "${read[1] / 1000}ms, first decode ${decodeUs / 1000}ms")
+        return decodeUs >= 0
+    }
+
+    /**
+     * Context length for the loaded model: as many tokens as the K/V cache
+     * can hold in its share of the memory headroom (see [ContextSizer]),
+     * bounded by the trained context. [override] > 0 is the user's choice.
+     */
+    private fun chooseContextSize(kvCache: ModelConfig.KvCacheType, override: Int): Int {
+        // [n_layer, n_embd, n_ctx_train, model_bytes, kv_bytes_per_token]
+        val info = nativeModelInfo(modelPtr, kvCache.ggmlType, kvCache.ggmlType)
+        val memory = ActivityManager.MemoryInfo()
+        (context.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager).getMemoryInfo(memory)
+        val tokens = ContextSizer.contextTokens(memory.availMem, memory.threshold, info[3], info[4],
+            info[2].toInt(), override)
+        Log.d(TAG, "Context $tokens tokens (${if (override > 0) "user override" else "auto"}): " +
+                "${info[0]} layers, n_embd ${info[1]}, trained ${info[2]}, ${info[4]} KV bytes/token, " +
+                "${memory.availMem / (1024 * 1024)}MB available")
+        return tokens
+    }
+
+    /**
+     * Load a small GGUF model that shares the main model's vocabulary and use
+     * it to draft [draftTokens] tokens per step for speculative decoding.
+     * Drafting only runs while a single request is generating; batched
+     * requests decode normally. Must be called on a background thread.
+     */
+    suspend fun attachDraftModel(draftPath: String, draftTokens: Int): Boolean {
+        if (!isReady()) return false
+        val draftPtr = nativeLoadModel(draftPath, false)
+        if (draftPtr == 0L) {
+            Log.e(TAG, "Failed to load draft model: $draftPath")
+            return false
+        }
+        val attached = generationLock.withLock {
+            isReady() && nativeAttachDraft(contextPtr, draftPtr, draftTokens)
+        }
+        if (!attached) {
+            nativeFreeModel(draftPtr)
+            return false
+        }
+        draftModelPtr = draftPtr
+        this.draftPath = draftPath
+        this.draftTokens = draftTokens
+        Log.d(TAG, "Speculative decoding enabled with $draftPath")
+        return true
+    }
+
+    /**
+     * Load a multimodal projector (mmproj GGUF) matching the main model so
+     * prompts can include an image at [IMAGE_MARKER]. Encoded images are
+     * cached natively by hash, so asking again about the same screen skips
+     * the encoder. Must be called on a background thread.
+     */
+    suspend fun attachVisionProjector(projectorPath: String): Boolean {
+        if (!isReady()) return false
+        val attached = generationLock.withLock {
+            isReady() && nativeAttachProjector(contextPtr, projectorPath)
+        }
+        if (!attached) {
+            Log.e(TAG, "Failed to load vision projector: $projectorPath")
+            return false
+        }
+        hasVision = true
+        this.projectorPath = projectorPath
+        Log.d(TAG, "Vision input enabled with $projectorPath")
+        return true
+    }
+
+    /**
+     * Times prefill and decode with a few thread counts on the performance
+     * cores and keeps the fastest of each. Memory-bound decode often peaks
+     * below the core count while prefill wants every big core. Runs once per
+     * device, before the context serves requests; the result is stored.
+     */
+    private fun calibrateThreads(prefs: PreferencesManager) {
+        val topology = nativeCpuTopology() // [online, performance, prime]
+        val candidates = listOf(topology[1], topology[1] - 1, topology[2]).filter { it > 0 }.distinct()
+        if (candidates.isEmpty()) return
+
+        // First run pays for graph allocation and page faults; discard it
+        nativeCalibrateThreads(contextPtr, candidates[0], candidates[0]) ?: return
+
+        var bestDecode = candidates[0]
+        var bestPrefill = candidates[0]
+        var bestDecodeUs = Long.MAX_VALUE
+        var bestPrefillUs = Long.MAX_VALUE
+        for (n in candidates) {
+            val timings = nativeCalibrateThreads(contextPtr, n, n) ?: return
+            if (timings[0] < bestPrefillUs) {
+                bestPrefillUs = timings[0]
+                bestPrefill = n
+            }
+            if (timings[1] < bestDecodeUs) {
+                bestDecodeUs = timings[1]
+                bestDecode = n
+            }
+        }
+
+        nativeSetThreads(contextPtr, bestDecode, bestPrefill)
+        prefs.setInferenceThreads(bestDecode, bestPrefill)
+        Log.d(TAG, "Calibrated threads on ${topology[0]} cores (${topology[1]} performance): " +
+                "decode=$bestDecode (${bestDecodeUs}us/token), prefill=$bestPrefill (${bestPrefillUs}us/64 tokens)")
+    }
+
+    /**
+     * Measures prompt processing over [promptTokens] and generation of
+     * [generatedTokens], [repetitions] times, with the current threads and
+     * K/V cache, like llama-bench. Needs every slot idle and drops cached
+     * prefixes, so it returns null while requests are running. [model] and
+     * [loadTimeMs] are recorded with the result.
+     */
+    suspend fun benchmark(promptTokens: Int, generatedTokens: Int, repetitions: Int,
+                          model: String, loadTimeMs: Long): BenchmarkResult? {
+        val bench = generationLock.withLock {
+            if (!isReady() || active.isNotEmpty()) return null
+            nativeBench(contextPtr, promptTokens, generatedTokens, repetitions)
+        } ?: return null
+        // [pp mean, pp sd, tg mean, tg sd (us), peak RSS, KV bytes, decode threads, prefill threads]
+        return BenchmarkResult(System.currentTimeMillis(), model,
+            BenchmarkResult.quantizationOf(modelFile?.name ?: ""), kvCacheLabel,
+            bench[6].toInt(), bench[7].toInt(), promptTokens, generatedTokens, repetitions,
+            bench[0], bench[1], bench[2], bench[3], loadTimeMs, bench[4], bench[5])
+    }
+
+    /**
+     * Tokens [text] takes as part of a prompt (no BOS), with this model's
+     * tokenizer. Short texts that recur across prompts are cached.
+     */
+    override fun countTokens(text: String): Int {
+        if (!isReady() || text.isEmpty()) return 0
+        synchronized(inputBuffer) {
+            tokenCounts[text]?.let { return it }
+            if (contextPtr == 0L) return 0
+            val length = inputBuffer.encode(text)
+            val count = nativeCountTokens(contextPtr, inputBuffer.buffer(), length, false, 0)
+            if (count >= 0 && text.length <= TOKEN_CACHE_MAX_CHARS) tokenCounts[text] = count
+            return count
+        }
+    }
+
+    /**
+     * The first (or, with [keepEnd], the last) [maxTokens] tokens of [text],
+     * turned back into text.
+     */
+    override fun keepTokens(text: String, maxTokens: Int, keepEnd: Boolean): String {
+        if (!isReady()) return text
+        synchronized(inputBuffer) {
+            if (contextPtr == 0L) return text
+            val length = inputBuffer.encode(text)
+            // Tokenizing failed: cut by the byte estimate rather than lose the section
+            val tokens = nativeTokenize(contextPtr, inputBuffer.buffer(), length)
+                ?: return PromptBudget.EstimatingTokenizer().keepTokens(text, maxTokens, keepEnd)
+            if (tokens.size <= maxTokens) return text
+            val offset = if (keepEnd) tokens.size - maxTokens else 0
+            var bytes = nativeDetokenize(contextPtr, tokens, offset, maxTokens, trimBuffer.buffer())
+            if (bytes < 0) {
+                bytes = nativeDetokenize(contextPtr, tokens, offset, maxTokens, trimBuffer.ensureCapacity(-bytes))
+            }
+            val out = StringBuilder()
+            trimBuffer.decodeTo(bytes.coerceAtLeast(0), out)
+            // A cut through a character spread over several tokens leaves U+FFFD at the edge
+            return out.trim('\uFFFD').toString()
+        }
+    }
+
+    /**
+     * Lays out [messages] with the chat template from the model's GGUF
+     * metadata, ending with an open assistant turn. ChatML is the fallback
+     * for models without a template llama.cpp recognises.
+     */
+    fun applyChatTemplate(messages: List<ChatMessage>): String {
+        if (!isReady()) return ChatMessage.toChatMl(messages, true)
+        synchronized(inputBuffer) {
+            return renderTemplate(messages, true) ?: ChatMessage.toChatMl(messages, true)
+        }
+    }
+
+    /**
+     * The start of every prompt with this [system] prompt: the system turn
+     * and the opening of the user turn, as the template lays them out. Its
+     * tokens are cached natively, so each turn only tokenizes what follows;
+     * it is also what [warmPrefix] snapshots.
+     */
+    fun templatePrefix(system: String): String {
+        synchronized(inputBuffer) {
+            templatePrefixes[system]?.let { return it.text }
+            val probe = listOf(ChatMessage(ChatMessage.SYSTEM, system), ChatMessage(ChatMessage.USER, PREFIX_SENTINEL))
+            val rendered = (if (isReady()) renderTemplate(probe, false) else null) ?: ChatMessage.toChatMl(probe, false)
+            val cut = rendered.indexOf(PREFIX_SENTINEL)
+            val text = if (cut > 0) rendered.substring(0, cut) else ChatMessage.toChatMl(probe.subList(0, 1), false)
+            templatePrefixes[system] = TemplatePrefix(text, text.toByteArray(Charsets.UTF_8).size)
+            return text
+        }
+    }
+
+    // Caller holds synchronized(inputBuffer). Null if the model has no usable template.
+    private fun renderTemplate(messages: List<ChatMessage>, addAssistant: Boolean): String? {
+        if (modelPtr == 0L) return null
+        val roles = Array(messages.size) { messages[it].role }
+        val contents = Array(messages.size) { messages[it].content.toByteArray(Charsets.UTF_8) }
+        var bytes = nativeApplyTemplate(modelPtr, roles, contents, addAssistant, trimBuffer.buffer())
+        if (bytes < 0) {
+            bytes = nativeApplyTemplate(modelPtr, roles, contents, addAssistant, trimBuffer.ensureCapacity(-bytes))
+        }
+        if (bytes <= 0) return null
+        val out = StringBuilder()
+        trimBuffer.decodeTo(bytes, out)
+        return out.toString()
+    }
+
+    private fun encodeStops(stops: Array<String>): Array<ByteArray> =
+        stops.map { it.toByteArray(Charsets.UTF_8) }.toTypedArray()
+
+    // Bytes of a known template prefix [prompt] starts with, or 0. Caller
+    // holds synchronized(inputBuffer).
+    private fun prefixLength(prompt: String): Int {
+        return templatePrefixes.values.firstOrNull { prompt.startsWith(it.text) }?.bytes ?: 0
+    }
+
+    override fun generateResponse(prompt: String, callback: InferenceBackend.ResponseCallback): GenerationHandle {
+        return generateResponse(prompt, false, callback)
+    }
+
+    /**
+     * With [toolCalls] the sampler is constrained by [ToolCall.GRAMMAR], and
+     * native code ends the request as soon as the call's JSON is closed.
+     */
+    override fun generateResponse(prompt: String, toolCalls: Boolean, callback: InferenceBackend.ResponseCallback): GenerationHandle {
+        return generateResponse(prompt, null, toolCalls, callback)
+    }
+
+    /**
+     * With an [image] (from [ImagePreprocessor.prepare]) the prompt must
+     * contain [IMAGE_MARKER] once and a projector must be attached. Such
+     * requests are encoded and prefilled when admitted, and are never
+     * drafted speculatively.
+     */
+    fun generateResponse(prompt: String, image: ImagePreprocessor.Image?, toolCalls: Boolean,
+                         callback: InferenceBackend.ResponseCallback): GenerationHandle {
+        return generateResponse(prompt, image, toolCalls, null, null, callback)
+    }
+
+    /**
+     * With [stops] in place of the model's stop strings and [deadlineMs] in
+     * place of its [GenerationParams.deadlineMs], for this request only.
+     * Null keeps the model's; a deadline of 0 means none.
+     */
+    fun generateResponse(prompt: String, image: ImagePreprocessor.Image?, toolCalls: Boolean,
+                         stops: Array<String>?, deadlineMs: Long?,
+                         callback: InferenceBackend.ResponseCallback): GenerationHandle {
+        return submit(prompt, image, if (toolCalls) ToolCall.GRAMMAR else null, generationParams.maxTokens,
+            stops?.let { encodeStops(it) } ?: stopSequences, deadlineMs ?: generationParams.deadlineMs, callback)
+    }
+
+    /**
+     * Completes [prompt] constrained by the GBNF [grammar] in at most
+     * [maxTokens] tokens, e.g. to pick one of a few labels. Returns null if
+     * the request fails. Batched with any replies being generated.
+     */
+    suspend fun complete(prompt: String, grammar: String, maxTokens: Int): String? {
+        val result = CompletableDeferred<String?>()
+        submit(prompt, null, grammar, maxTokens, stopSequences, generationParams.deadlineMs, object : InferenceBackend.ResponseCallback {
+            override fun onSuccess(response: String, generationTimeMs: Long) {
+                result.complete(response)
+            }
+            override fun onError(t: Throwable) {
+                result.complete(null)
+            }
+        })
+        return result.await()
+    }
+
+    private fun submit(prompt: String, image: ImagePreprocessor.Image?, grammar: String?, maxTokens: Int,
+                       stops: Array<ByteArray>, deadlineMs: Long,
+                       callback: InferenceBackend.ResponseCallback): GenerationHandle {
+        val handle = GenerationHandle()
         if (!isReady()) {
             callback.onError(Exception("llama.cpp model not loaded"))
-            return
+            return handle
         }
 
-        scope.launch {
-            try {
-                // Reset context before each generation to clear KV cache
-                resetContext()
-                val startTime = System.currentTimeMillis()
-                val response = nativeGenerate(contextPtr, modelPtr, prompt, 256)
-                val elapsed = System.currentTimeMillis() - startTime
-
-                launch(Dispatchers.Main) {
-                    callback.onSuccess(response, elapsed)
+        // Reject prompts that can't fit before they wait for a slot
+        val promptTokens = synchronized(inputBuffer) {
+            if (contextPtr == 0L) return@synchronized -1
+            val length = inputBuffer.encode(prompt) // may swap in a larger buffer
+            nativeCountTokens(contextPtr, inputBuffer.buffer(), length, true, prefixLength(prompt))
+        }
+        if (promptTokens < 0) {
+            callback.onError(Exception("llama.cpp model not loaded"))
+            return handle
+        }
+        if (image != null && !hasVision) {
+            callback.onError(Exception("This model has no vision projector loaded"))
+            return handle
+        }
+        val imageTokens = image?.estimatedTokens() ?: 0
+        if (promptTokens + imageTokens >= contextSize) {
+            callback.onError(Exception("Prompt is ${promptTokens + imageTokens} tokens but the context holds $contextSize. Try a shorter request or less screen context."))
+            return handle
+        }
+
+        // Requests are not serialized: the scheduler admits each one into a
+        // native slot and decodes all of them together, one batch per step.
+        val request = LlamaRequest(nextRequestId.incrementAndGet(), prompt, maxTokens,
+            deadlineMs, stops, grammar, image, callback, handle)
+
+        // Installed before the request is queued, so no cancel goes unseen.
+        // Still waiting: drop it. In a slot: the native step loop retires the
+        // slot, and the abort callback stops a decode once all of its
+        // sequences are cancelled. Neither: it is being queued or admitted,
+        // which checks the handle itself.
+        handle.setOnCancel {
+            val removed = synchronized(waiting) {
+                if (request.inSlot) {
+                    synchronized(inputBuffer) {
+                        if (contextPtr != 0L) nativeCancel(contextPtr, request.id)
+                    }
                 }
-            } catch (e: Exception) {
-                Log.e(TAG, "Generation error", e)
-                launch(Dispatchers.Main) {
-                    callback.onError(e)
+                waiting.remove(request)
+            }
+            if (removed) {
+                scope.launch(Dispatchers.Main) {
+                    callback.onError(CancellationException("Generation cancelled"))
                 }
             }
         }
+        val queued = synchronized(waiting) {
+            if (handle.isCancelled) return@synchronized false
+            waiting.addLast(request)
+            if (!workerRunning) {
+                workerRunning = true
+                scope.launch { runScheduler() }
+            }
+            true
+        }
+        if (!queued) deliver(request, null, CancellationException("Generation cancelled"))
+        return handle
     }
 
-    override fun isReady(): Boolean {
-        return isLibraryLoaded && modelPtr != 0L && contextPtr != 0L
+    /**
+     * Scheduler loop, one coroutine at a time. Each iteration admits waiting
+     * requests into free slots and runs one batched native step; it exits
+     * once nothing is waiting or active.
+     */
+    private suspend fun runScheduler() {
+        try {
+            while (true) {
+                generationLock.withLock {
+                    if (isReady()) {
+                        admitWaiting()
+                        if (active.isNotEmpty()) {
+                            val count = nativeStep(contextPtr, finishedIds)
+                            for (i in 0 until count) finishRequest(finishedIds[i])
+                        }
+                    } else {
+                        failAll(Exception("llama.cpp model not loaded"))
+                    }
+                }
+                synchronized(waiting) {
+                    if (active.isEmpty() && waiting.isEmpty()) {
+                        workerRunning = false
+                        return
+                    }
+                }
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Generation error", e)
+            failAll(e)
+            synchronized(waiting) { workerRunning = false }
+        }
     }
 
-    override fun close() {
-        if (contextPtr != 0L) {
-            nativeFreeContext(contextPtr)
-            contextPtr = 0
+    private fun admitWaiting() {
+        while (true) {
+            val request = synchronized(waiting) { waiting.removeFirstOrNull() } ?: return
+            if (request.handle.isCancelled) {
+                deliver(request, null, CancellationException("Generation cancelled"))
+                continue
+            }
+            // The deadline runs from when the request was queued
+            val deadline = if (request.deadlineMs > 0) {
+                request.deadlineMs - (System.currentTimeMillis() - request.enqueuedAt)
+            } else 0L
+            if (request.deadlineMs > 0 && deadline <= 0) {
+                deliver(request, null, Exception("Timed out waiting for the model after ${request.deadlineMs}ms"))
+                continue
+            }
+
+            // Native code reuses the KV entries of the slot (or copies those of
+            // another slot) sharing the longest token prefix with this prompt.
+            val listener = object : GenerationListener {
+                override fun onToken(length: Int) {
+                    outputBuffer.decodeTo(length, request.partial)
+                    // Copying the whole reply for every token is quadratic in its
+                    // length; a skipped tail is posted when the request finishes
+                    val now = System.currentTimeMillis()
+                    if (now - request.partialPostedAt < PARTIAL_POST_MS) {
+                        request.partialPending = true
+                        return
+                    }
+                    request.partialPostedAt = now
+                    request.partialPending = false
+                    val text = request.partial.toString()
+                    scope.launch(Dispatchers.Main) {
+                        if (!request.handle.isCancelled) request.callback.onPartial(text)
+                    }
+                }
+
+                override fun onPrefillProgress(processedTokens: Int, totalTokens: Int) {
+                    scope.launch(Dispatchers.Main) {
+                        if (!request.handle.isCancelled) request.callback.onPrefillProgress(processedTokens, totalTokens)
+                    }
+                }
+            }
+            val image = request.image
+            val slot = synchronized(inputBuffer) {
+                val length = inputBuffer.encode(request.prompt)
+                nativeSubmit(contextPtr, request.id, inputBuffer.buffer(), length, prefixLength(request.prompt),
+                    image?.let { imageBuffer.writeRgb(it) }, image?.width ?: 0, image?.height ?: 0, image?.hash ?: 0L,
+                    request.maxTokens,
+                    deadline, request.stops, request.grammar,
+                    listener, outputBuffer.buffer())
+            }
+            when (slot) {
+                -1 -> {
+                    // All slots busy; try again after the next step frees one
+                    synchronized(waiting) { waiting.addFirst(request) }
+                    return
+                }
+                -2 -> deliver(request, null, Exception(if (image != null) "Couldn't read the image or fit it in the context"
+                    else "Prompt is empty or too long for the context"))
+                else -> {
+                    request.admittedAt = System.currentTimeMillis()
+                    active[request.id] = request
+                    val cancelled = synchronized(waiting) {
+                        request.inSlot = true
+                        request.handle.isCancelled
+                    }
+                    // Cancelled while being admitted, out of the cancel hook's reach
+                    if (cancelled) synchronized(inputBuffer) { nativeCancel(contextPtr, request.id) }
+                }
+            }
+        }
+    }
+
+    private fun finishRequest(requestId: Long) {
+        val request = active.remove(requestId) ?: return
+        val stats = nativeRequestStats(contextPtr, requestId)?.let {
+            GenerationStats(it[0].toInt(), it[1].toInt(), it[2].toInt(), it[3], it[4], it[5].toInt(), it[6].toInt(),
+                it[7] != 0L)
         }
-        if (modelPtr != 0L) {
-            nativeFreeModel(modelPtr)
-            modelPtr = 0
+        synchronized(waiting) { request.inSlot = false }
+        // Everything the slot generated has already been streamed into partial
+        val response = if (nativeRelease(contextPtr, requestId)) request.partial.toString() else null
+        val now = System.currentTimeMillis()
+        Log.d(TAG, "Request $requestId: queued ${request.admittedAt - request.enqueuedAt}ms, " +
+                "generated ${now - request.admittedAt}ms, ${active.size} still active")
+        when {
+            request.handle.isCancelled -> deliver(request, null, CancellationException("Generation cancelled"))
+            response == null -> deliver(request, null, Exception("llama.cpp returned no result"))
+            else -> deliver(request, response, null, stats)
         }
-        Log.d(TAG, "llama.cpp model unloaded from RAM")
+    }
+
+    private fun failAll(error: Exception) {
+        val pending = synchronized(waiting) {
+            val all = waiting.toList() + active.values
+            waiting.clear()
+            all
+        }
+        active.clear()
+        pending.forEach { deliver(it, null, error) }
+    }
+
+    private fun deliver(request: LlamaRequest, response: String?, error: Exception?, stats: GenerationStats? = null) {
+        request.handle.setOnCancel(null)
+        val elapsed = System.currentTimeMillis() - request.enqueuedAt
+        scope.launch(Dispatchers.Main) {
+            if (response != null) {
+                // Streaming ends on the whole reply, even if its last tokens weren't posted
+                if (request.partialPending) request.callback.onPartial(response)
+                if (stats != null) request.callback.onStats(stats)
+                request.callback.onSuccess(response, elapsed)
+            } else {
+                request.callback.onError(error ?: Exception("Generation failed"))
+            }
+        }
+    }
+
+    /**
+     * Puts the KV state for [prefix] (system prompt + template header) into a
+     * free slot of the context, where requests with that prefix pick it up.
+     * Restores it from an on-disk snapshot when one exists for this model,
+     * context layout and prefix; otherwise prefills it and writes a new
+     * snapshot, deleting the model's snapshots for older prefixes.
+     * Must be called on a background thread.
+     */
+    suspend fun warmPrefix(prefix: String) {
+        if (!isReady()) return
+        val file = modelFile ?: return
+        val dir = File(context.cacheDir, SNAPSHOT_DIR)
+        val snapshot = File(dir, snapshotName(file, prefix))
+
+        generationLock.withLock {
+            if (contextPtr == 0L) return
+            val start = System.currentTimeMillis()
+            if (snapshot.exists()) {
+                val restored = nativeLoadState(contextPtr, snapshot.absolutePath)
+                if (restored > 0) {
+                    Log.d(TAG, "Restored $restored prefix tokens from snapshot in ${System.currentTimeMillis() - start}ms")
+                    return
+                }
+                snapshot.delete()
+            }
+
+            val slot = synchronized(inputBuffer) {
+                val length = inputBuffer.encode(prefix)
+                nativePrefill(contextPtr, inputBuffer.buffer(), length)
+            }
+            if (slot < 0) return
+            dir.mkdirs()
+            val tmp = File(dir, snapshot.name + ".tmp")
+            if (nativeSaveState(contextPtr, slot, tmp.absolutePath) && tmp.renameTo(snapshot)) {
+                Log.d(TAG, "Prefilled and saved prefix into slot $slot in ${System.currentTimeMillis() - start}ms")
+            } else {
+                tmp.delete()
+            }
+        }
+
+        // Snapshots for earlier personas of this model will never match again
+        val stem = file.nameWithoutExtension + "-"
+        dir.listFiles()?.forEach { old ->
+            if (old.name.startsWith(stem) && old.name.endsWith(SNAPSHOT_EXT) && old.name != snapshot.name) {
+                old.delete()
+            }
+        }
+    }
+
+    /**
+     * Snapshot file name: model name plus a hash of everything the saved KV
+     * state depends on (model file identity, context size, K/V cache types
+     * and prefix text).
+     */
+    private fun snapshotName(file: File, prefix: String): String {
+        val key = "${file.name}|${file.length()}|${file.lastModified()}|$contextSize|$kvCacheLabel|$prefix"
+        val digest = MessageDigest.getInstance("SHA-256").digest(key.toByteArray(Charsets.UTF_8))
+        val hash = digest.take(8).joinToString("") { "%02x".format(it) }
+        return file.nameWithoutExtension + "-" + hash + SNAPSHOT_EXT
+    }
+
+    override fun isReady(): Boolean {
+        return isLibraryLoaded && modelPtr != 0L && contextPtr != 0L
     }
 
     /**
-     * Recreate the context to clear the KV cache between generations.
+     * Frees the model at once: requests still waiting or running end with
+     * onError. Blocks until the current scheduler step is done, so prefer
+     * [closeIfIdle] where a reply may be in progress.
      */
-    private fun resetContext() {
-        if (contextPtr != 0L) {
-            nativeFreeContext(contextPtr)
+    override fun close() {
+        runBlocking {
+            generationLock.withLock {
+                failAll(CancellationException("Model unloaded"))
+                closeLocked()
+            }
         }
-        contextPtr = nativeCreateContext(modelPtr, 1024)
-        if (contextPtr == 0L) {
-            Log.e(TAG, "Failed to recreate context")
-        } else {
-            Log.d(TAG, "Context reset (KV cache cleared)")
+    }
+
+    // Caller holds generationLock
+    private fun closeLocked() {
+        synchronized(inputBuffer) {
+            if (contextPtr != 0L) {
+                nativeFreeContext(contextPtr)
+                contextPtr = 0
+            }
+            if (draftModelPtr != 0L) {
+                nativeFreeModel(draftModelPtr)
+                draftModelPtr = 0
+            }
+            if (modelPtr != 0L) {
+                nativeFreeModel(modelPtr)
+                modelPtr = 0
+            }
+            tokenCounts.clear()
+            templatePrefixes.clear()
         }
+        modelFile = null
+        contextSpec = null
+        draftPath = null
+        projectorPath = null
+        hasVision = false // freed with the context
+        kvCacheBytes = 0
+        Log.d(TAG, "llama.cpp model unloaded from RAM")
     }
 }
@@ -29,6 +29,7 @@ public class MainActivity extends Activity {
     private PreferencesManager prefs;
     private EncryptedPrefsManager encryptedPrefs;
     private AICoreClient aiClient;
+    private MemoryManager benchmarks;
     private ThemeManager theme;
 
     // UI refs
@@ -38,7 +39,15 @@ public class MainActivity extends Activity {
     private View chatView;
     private TextView statusText;
     private android.widget.ProgressBar statusProgress;
-    private int exchangeCount = 0;
+    // Conversation sent with each request: a summary of compacted turns plus
+    // the turns since ("User: ..." / "Mate: ..."), oldest first
+    private String memorySummary = "";
+    private final ArrayList<String> recentTurns = new ArrayList<>();
+    private GenerationHandle activeGeneration;
+
+    // Context size choices cycled in Advanced settings; 0 is automatic
+    private static final int[] CONTEXT_SIZES = {0, 1024, 2048, 4096, 8192};
+    private static final int BENCHMARK_HISTORY_SHOWN = 5;
 
     // Chat message store (survives theme toggles)
     private static class ChatMsg {
@@ -56,6 +65,8 @@ public class MainActivity extends Activity {
             updateStatusBar();
             if (!aiClient.isModelReady()) {
                 refreshHandler.postDelayed(this, 5000);
+            } else if (aiClient.isWarmingUp()) {
+                refreshHandler.postDelayed(this, 1000);
             } else {
                 autoRefreshRunning = false;
             }
@@ -68,6 +79,7 @@ public class MainActivity extends Activity {
         prefs = new PreferencesManager(this);
         encryptedPrefs = new EncryptedPrefsManager(this);
         aiClient = new AICoreClient(this);
+        benchmarks = new MemoryManager(this);
         buildUI();
     }
 
@@ -118,6 +130,13 @@ public class MainActivity extends Activity {
         stopAutoRefresh();
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // Don't keep the cores busy for a reply nobody will see
+        if (activeGeneration != null) activeGeneration.cancel();
+    }
+
     // ========== HEADER BAR ==========
 
     private View createHeaderBar() {
@@ -401,9 +420,53 @@ public class MainActivity extends Activity {
         });
         card.addView(dlBtn);
 
+        // llama-bench style pp/tg run; results are kept to compare quants and settings
+        TextView benchHistory = new TextView(this);
+        benchHistory.setTextColor(theme.textDim());
+        benchHistory.setTextSize(TypedValue.COMPLEX_UNIT_SP, 11);
+        benchHistory.setPadding(0, dp(4), 0, 0);
+        showBenchmarkHistory(benchHistory);
+        TextView benchBtn = createActionButton("Benchmark this model");
+        benchBtn.setOnClickListener(v -> {
+            benchBtn.setEnabled(false);
+            benchHistory.setText("⏳ Benchmarking " + prefs.getSelectedModel() + "...");
+            aiClient.runBenchmark(new AICoreClient.BenchmarkCallback() {
+                @Override
+                public void onResult(BenchmarkResult result) {
+                    benchBtn.setEnabled(true);
+                    new Thread(() -> {
+                        benchmarks.logBenchmark(result);
+                        runOnUiThread(() -> showBenchmarkHistory(benchHistory));
+                    }).start();
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    benchBtn.setEnabled(true);
+                    benchHistory.setText("❌ " + t.getMessage());
+                }
+            });
+        });
+        card.addView(benchBtn);
+        card.addView(benchHistory);
+
         return card;
     }
 
+    private void showBenchmarkHistory(TextView view) {
+        new Thread(() -> {
+            java.util.List<BenchmarkResult> results = benchmarks.getBenchmarks(BENCHMARK_HISTORY_SHOWN);
+            StringBuilder sb = new StringBuilder();
+            java.text.DateFormat date = java.text.DateFormat.getDateTimeInstance(
+                    java.text.DateFormat.SHORT, java.text.DateFormat.SHORT);
+            for (BenchmarkResult r : results) {
+                if (sb.length() > 0) sb.append("\n\n");
+                sb.append(date.format(new java.util.Date(r.timestamp))).append("\n").append(r.summary());
+            }
+            runOnUiThread(() -> view.setText(sb.length() > 0 ? sb : "No benchmarks yet."));
+        }).start();
+    }
+
     private View createPersonalityCard() {
         LinearLayout card = createCard("🎭  Personality & Mood");
 
@@ -620,6 +683,96 @@ public class MainActivity extends Activity {
         });
         card.addView(freeBtn);
 
+        // Speculative decoding needs a draft model paired in ModelConfig
+        TextView specBtn = createActionButton(speculativeLabel());
+        specBtn.setOnClickListener(v -> {
+            prefs.setSpeculativeDecoding(!prefs.isSpeculativeDecoding());
+            specBtn.setText(speculativeLabel());
+            if (prefs.getSelectedModelConfig().draftModel != null) {
+                aiClient.switchModel();
+                addChatMessage("System", "Reloading " + prefs.getSelectedModel() + "...");
+                startAutoRefresh();
+            }
+        });
+        card.addView(specBtn);
+
+        // Auto sizes the context from free memory; a fixed size overrides it
+        TextView ctxBtn = createActionButton(contextSizeLabel());
+        ctxBtn.setOnClickListener(v -> {
+            int current = prefs.getContextSize();
+            int next = CONTEXT_SIZES[0];
+            for (int i = 0; i < CONTEXT_SIZES.length; i++) {
+                if (CONTEXT_SIZES[i] == current) next = CONTEXT_SIZES[(i + 1) % CONTEXT_SIZES.length];
+            }
+            prefs.setContextSize(next);
+            ctxBtn.setText(contextSizeLabel());
+            if (prefs.getSelectedModelConfig().backend != ModelConfig.Backend.OPENCLAW) {
+                aiClient.switchModel();
+                addChatMessage("System", "Reloading " + prefs.getSelectedModel() + "...");
+                startAutoRefresh();
+            }
+        });
+        card.addView(ctxBtn);
+
+        // Lets the model open apps and search the web with structured calls
+        TextView toolsBtn = createActionButton(toolCallsLabel());
+        toolsBtn.setOnClickListener(v -> {
+            prefs.setToolCallsEnabled(!prefs.isToolCallsEnabled());
+            toolsBtn.setText(toolCallsLabel());
+        });
+        card.addView(toolsBtn);
+
+        // Reads the weights in and runs one token after loading
+        TextView warmBtn = createActionButton(warmupLabel());
+        warmBtn.setOnClickListener(v -> {
+            prefs.setModelWarmup(!prefs.isModelWarmup());
+            warmBtn.setText(warmupLabel());
+        });
+        card.addView(warmBtn);
+
+        // mlock only applies on load, and only when memory allows
+        TextView lockBtn = createActionButton(lockModelLabel());
+        lockBtn.setOnClickListener(v -> {
+            prefs.setLockModelInRam(!prefs.isLockModelInRam());
+            lockBtn.setText(lockModelLabel());
+            if (prefs.getSelectedModelConfig().backend == ModelConfig.Backend.LLAMA_CPP) {
+                aiClient.switchModel();
+                addChatMessage("System", "Reloading " + prefs.getSelectedModel() + "...");
+                startAutoRefresh();
+            }
+        });
+        card.addView(lockBtn);
+
+        // Small model that answers simple requests while the large one sleeps
+        TextView routingBtn = createActionButton(routingLabel());
+        routingBtn.setOnClickListener(v -> {
+            aiClient.setModelRouting(!prefs.isModelRouting());
+            routingBtn.setText(routingLabel());
+        });
+        card.addView(routingBtn);
+
+        // Repeated requests are answered from the cache; its counts are shown here
+        TextView cacheBtn = createActionButton(responseCacheLabel());
+        cacheBtn.setOnClickListener(v -> {
+            prefs.setResponseCache(!prefs.isResponseCache());
+            cacheBtn.setText(responseCacheLabel());
+        });
+        card.addView(cacheBtn);
+
+        TextView similarBtn = createActionButton(similarCacheLabel());
+        similarBtn.setOnClickListener(v -> {
+            prefs.setSimilarCache(!prefs.isSimilarCache());
+            similarBtn.setText(similarCacheLabel());
+        });
+        card.addView(similarBtn);
+
+        TextView clearCacheBtn = createActionButton("Clear Response Cache");
+        clearCacheBtn.setOnClickListener(v -> {
+            aiClient.clearResponseCache();
+            addChatMessage("System", "Response cache cleared.");
+        });
+        card.addView(clearCacheBtn);
+
         TextView sysBtn = createActionButton("System Assistant Settings");
         sysBtn.setOnClickListener(v -> {
             try { startActivity(new Intent(Settings.ACTION_VOICE_INPUT_SETTINGS)); }
@@ -638,6 +791,40 @@ public class MainActivity extends Activity {
         return card;
     }
 
+    private String speculativeLabel() {
+        return "Speculative Decoding: " + (prefs.isSpeculativeDecoding() ? "On" : "Off");
+    }
+
+    private String warmupLabel() {
+        return "Warm Up After Load: " + (prefs.isModelWarmup() ? "On" : "Off");
+    }
+
+    private String lockModelLabel() {
+        return "Lock Model in RAM: " + (prefs.isLockModelInRam() ? "On" : "Off");
+    }
+
+    private String routingLabel() {
+        return "Model Routing: " + (prefs.isModelRouting() ? "On" : "Off");
+    }
+
+    private String responseCacheLabel() {
+        if (!prefs.isResponseCache()) return "Response Cache: Off";
+        return "Response Cache: On · " + aiClient.getCacheStats().summary();
+    }
+
+    private String similarCacheLabel() {
+        return "Match Similar Questions: " + (prefs.isSimilarCache() ? "On" : "Off");
+    }
+
+    private String toolCallsLabel() {
+        return "Tool Calls: " + (prefs.isToolCallsEnabled() ? "On" : "Off");
+    }
+
+    private String contextSizeLabel() {
+        int size = prefs.getContextSize();
+        return "Context Size: " + (size == 0 ? "Auto" : size + " tokens");
+    }
+
     // ========== UI HELPERS ==========
 
     private LinearLayout createCard(String title) {
@@ -780,17 +967,22 @@ public class MainActivity extends Activity {
         addChatMessage("You", query);
         chatInput.setText("");
 
+        // Commands that need no model: open an app or page, search the web
+        IntentMatcher.Intent intent = IntentMatcher.matchConfident(query);
+        if (intent != null && intent.kind != IntentMatcher.Kind.URL && handleIntent(query, intent)) return;
+
         // Web URL handling
-        if (query.startsWith("http://") || query.startsWith("https://")) {
+        if (intent != null && intent.kind == IntentMatcher.Kind.URL) {
+            String url = intent.arg;
             addChatMessage("System", "Fetching website...");
             new Thread(() -> {
-                String text = WebScraper.fetchAndExtractText(query);
+                String text = WebScraper.fetchAndExtractText(url);
                 if (text.startsWith("Error")) {
                     runOnUiThread(() -> addChatMessage("Error", text));
                     return;
                 }
-                String maxText = text.length() > 2500 ? text.substring(0, 2500) : text;
-                aiClient.generateResponse("Summarize: " + maxText, "", new AICoreClient.ResponseCallback() {
+                // The prompt budget trims the page to what the context holds
+                aiClient.generateResponse("Summarize this web page.", text, new AICoreClient.ResponseCallback() {
                     @Override public void onSuccess(String response) {
                         runOnUiThread(() -> addChatMessage("Mate", response));
                     }
@@ -802,22 +994,21 @@ public class MainActivity extends Activity {
             return;
         }
 
-        // Context compaction
-        exchangeCount++;
-        if (exchangeCount >= 5) {
+        // Context compaction, once the turns outgrow their share of the context
+        if (aiClient.shouldCompact(memorySummary, recentTurns)) {
             StringBuilder ctx = new StringBuilder();
-            for (int i = 0; i < chatHistory.getChildCount(); i++) {
-                View v = chatHistory.getChildAt(i);
-                if (v instanceof TextView) ctx.append(((TextView) v).getText()).append("\n");
-            }
+            if (!memorySummary.isEmpty()) ctx.append("Earlier: ").append(memorySummary).append("\n");
+            for (String turn : recentTurns) ctx.append(turn).append("\n");
             addChatMessage("System", "Compacting memory...");
-            aiClient.generateResponse("Summarize: " + ctx, "", new AICoreClient.ResponseCallback() {
+            aiClient.generateResponse("Summarize this conversation in a few sentences.", ctx.toString(),
+                    null, null, null, false, RequestScheduler.Priority.BACKGROUND, new AICoreClient.ResponseCallback() {
                 @Override public void onSuccess(String summary) {
                     runOnUiThread(() -> {
                         chatHistory.removeAllViews();
                         addChatMessage("System", "Memory compacted.");
-                        exchangeCount = 0;
-                        doGenerate(query, summary);
+                        memorySummary = AICoreClient.stripFooter(summary);
+                        recentTurns.clear();
+                        doGenerate(query);
                     });
                 }
                 @Override public void onError(Throwable t) {
@@ -825,26 +1016,84 @@ public class MainActivity extends Activity {
                 }
             });
         } else {
-            doGenerate(query, "");
+            doGenerate(query);
         }
     }
 
-    private void doGenerate(String query, String context) {
+    /**
+     * Carries out a command {@link IntentMatcher} is sure of, without the
+     * model. Returns false (and does nothing) if it can't, e.g. no installed
+     * app matches, so the model gets the request instead.
+     */
+    private boolean handleIntent(String query, IntentMatcher.Intent intent) {
+        long start = System.currentTimeMillis();
+        String reply;
+        switch (intent.kind) {
+            case LAUNCH:
+                if (!ToolExecutor.launchApp(this, intent.arg)) return false;
+                reply = "Opened " + intent.arg + ".";
+                break;
+            case OPEN_URL:
+                if (!ToolExecutor.openUrl(this, intent.arg)) return false;
+                reply = "Opened " + intent.arg + ".";
+                break;
+            case SEARCH:
+                addChatMessage("System", "Searching: " + intent.arg);
+                new Thread(() -> {
+                    String results = ToolExecutor.searchWeb(intent.arg);
+                    long elapsed = System.currentTimeMillis() - start;
+                    runOnUiThread(() -> {
+                        addChatBubble("Mate", results.trim(), String.format("%.1fs", elapsed / 1000.0));
+                        recentTurns.add("User: " + query);
+                        recentTurns.add("Mate: (searched the web for " + intent.arg + ")");
+                    });
+                }).start();
+                return true;
+            default:
+                return false;
+        }
+        addChatBubble("Mate", reply, (System.currentTimeMillis() - start) + "ms");
+        recentTurns.add("User: " + query);
+        recentTurns.add("Mate: " + reply);
+        return true;
+    }
+
+    private void doGenerate(String query) {
         // Show typing indicator
         TextView typingView = new TextView(this);
-        typingView.setText("Mate is thinking...");
+        typingView.setText("Mate is thinking... (tap to stop)");
         typingView.setTextColor(theme.textDim());
         typingView.setTextSize(TypedValue.COMPLEX_UNIT_SP, 13);
         typingView.setPadding(dp(16), dp(8), dp(16), dp(8));
         chatHistory.addView(typingView);
 
         final long startTime = System.currentTimeMillis();
-        aiClient.generateResponse(query, context, new AICoreClient.ResponseCallback() {
+        final GenerationHandle handle = aiClient.generateResponse(query, null, memorySummary,
+                new ArrayList<>(recentTurns), null, true, new AICoreClient.StreamingResponseCallback() {
+            @Override
+            public void onPartial(String partialResponse) {
+                // A tool call streams as raw JSON; keep the indicator until it's handled
+                if (partialResponse.trim().startsWith("{")) return;
+                runOnUiThread(() -> {
+                    typingView.setText(ToolExecutor.stripCommands(partialResponse));
+                    typingView.setTextColor(theme.aiBubbleText());
+                });
+            }
+
+            @Override
+            public void onPrefillProgress(int processedTokens, int totalTokens) {
+                if (processedTokens >= totalTokens) return;
+                runOnUiThread(() -> typingView.setText("Mate is reading... "
+                        + (processedTokens * 100 / totalTokens) + "% (tap to stop)"));
+            }
+
             @Override
             public void onSuccess(String response) {
                 runOnUiThread(() -> {
                     chatHistory.removeView(typingView);
                     long elapsed = System.currentTimeMillis() - startTime;
+                    recentTurns.add("User: " + query);
+                    recentTurns.add("Mate: " + ToolExecutor.stripCommands(AICoreClient.stripFooter(response)));
                     handleToolResponse(response, elapsed);
                 });
             }
@@ -853,10 +1102,16 @@ public class MainActivity extends Activity {
             public void onError(Throwable t) {
                 runOnUiThread(() -> {
                     chatHistory.removeView(typingView);
-                    addChatMessage("Error", t.getMessage());
+                    if (t instanceof java.util.concurrent.CancellationException) {
+                        addChatMessage("System", "Stopped.");
+                    } else {
+                        addChatMessage("Error", t.getMessage());
+                    }
                 });
             }
         });
+        activeGeneration = handle;
+        typingView.setOnClickListener(v -> handle.cancel());
     }
 
     private void handleToolResponse(String response, long elapsedMs) {
@@ -875,7 +1130,7 @@ public class MainActivity extends Activity {
             addChatMessage("System", "Searching: " + searchQuery);
             new Thread(() -> {
                 String results = ToolExecutor.searchWeb(searchQuery);
-                aiClient.generateResponse("Summarize search results:\n" + results, "", new AICoreClient.ResponseCallback() {
+                aiClient.generateResponse("Summarize these search results.", results, new AICoreClient.ResponseCallback() {
                     @Override public void onSuccess(String s) {
                         runOnUiThread(() -> addChatMessage("Mate", ToolExecutor.stripCommands(s)));
                     }
@@ -12,7 +12,9 @@ import java.util.List;
 public class MemoryManager extends SQLiteOpenHelper {
     private static final String TAG = "MemoryManager";
     private static final String DATABASE_NAME = "mate_memory.db";
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 3;
+    // Benchmark runs kept per install, oldest dropped first
+    private static final int MAX_BENCHMARKS = 50;
 
     public MemoryManager(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -28,10 +30,38 @@ public class MemoryManager extends SQLiteOpenHelper {
         
         // Table for price history (Bargain Hunter)
         db.execSQL("CREATE TABLE price_history (id INTEGER PRIMARY KEY AUTOINCREMENT, item_name TEXT, price REAL, currency TEXT, app_source TEXT, timestamp DATETIME DEFAULT CURRENT_TIMESTAMP)");
+
+        createBenchmarks(db);
+        createResponseCache(db);
+    }
+
+    // Table for llama.cpp benchmark runs (see BenchmarkResult)
+    private void createBenchmarks(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE benchmarks (id INTEGER PRIMARY KEY AUTOINCREMENT, timestamp INTEGER, model TEXT, quantization TEXT, kv_cache TEXT, "
+                + "decode_threads INTEGER, prefill_threads INTEGER, pp INTEGER, tg INTEGER, reps INTEGER, "
+                + "pp_us INTEGER, pp_us_sd INTEGER, tg_us INTEGER, tg_us_sd INTEGER, load_ms INTEGER, peak_rss INTEGER, kv_bytes INTEGER)");
+    }
+
+    // Replies kept by ResponseCache, and its lookup counts in a single row
+    private void createResponseCache(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE response_cache (key TEXT PRIMARY KEY, grp TEXT, prompt TEXT, response TEXT, "
+                + "generation_ms INTEGER, embedding BLOB, created INTEGER, last_used INTEGER, hits INTEGER DEFAULT 0)");
+        db.execSQL("CREATE INDEX response_cache_grp ON response_cache (grp)");
+        db.execSQL("CREATE TABLE cache_stats (id INTEGER PRIMARY KEY, hits INTEGER, similar_hits INTEGER, misses INTEGER, saved_ms INTEGER)");
+        db.execSQL("INSERT INTO cache_stats VALUES (0, 0, 0, 0, 0)");
     }
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Versions 2 and 3 only added tables; keep the user's memory
+        if (oldVersion < 3) {
+            if (oldVersion < 2) createBenchmarks(db);
+            createResponseCache(db);
+            return;
+        }
+        db.execSQL("DROP TABLE IF EXISTS response_cache");
+        db.execSQL("DROP TABLE IF EXISTS cache_stats");
+        db.execSQL("DROP TABLE IF EXISTS benchmarks");
         db.execSQL("DROP TABLE IF EXISTS facts");
         db.execSQL("DROP TABLE IF EXISTS conversations");
         db.execSQL("DROP TABLE IF EXISTS price_history");
@@ -67,4 +97,113 @@ public class MemoryManager extends SQLiteOpenHelper {
         db.insert("price_history", null, values);
         Log.d(TAG, "Logged price for " + itemName + ": " + currency + price);
     }
+
+    public void logBenchmark(BenchmarkResult r) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put("timestamp", r.timestamp);
+        values.put("model", r.model);
+        values.put("quantization", r.quantization);
+        values.put("kv_cache", r.kvCache);
+        values.put("decode_threads", r.decodeThreads);
+        values.put("prefill_threads", r.prefillThreads);
+        values.put("pp", r.promptTokens);
+        values.put("tg", r.generatedTokens);
+        values.put("reps", r.repetitions);
+        values.put("pp_us", r.promptMicros);
+        values.put("pp_us_sd", r.promptMicrosStdDev);
+        values.put("tg_us", r.generationMicros);
+        values.put("tg_us_sd", r.generationMicrosStdDev);
+        values.put("load_ms", r.loadTimeMs);
+        values.put("peak_rss", r.peakRssBytes);
+        values.put("kv_bytes", r.kvCacheBytes);
+        db.insert("benchmarks", null, values);
+        db.execSQL("DELETE FROM benchmarks WHERE id NOT IN (SELECT id FROM benchmarks ORDER BY id DESC LIMIT " + MAX_BENCHMARKS + ")");
+    }
+
+    /** Benchmark runs, newest first. */
+    public List<BenchmarkResult> getBenchmarks(int limit) {
+        List<BenchmarkResult> results = new ArrayList<>();
+        SQLiteDatabase db = this.getReadableDatabase();
+        try (Cursor c = db.query("benchmarks", new String[]{"timestamp", "model", "quantization", "kv_cache",
+                        "decode_threads", "prefill_threads", "pp", "tg", "reps", "pp_us", "pp_us_sd",
+                        "tg_us", "tg_us_sd", "load_ms", "peak_rss", "kv_bytes"},
+                null, null, null, null, "id DESC", String.valueOf(limit))) {
+            while (c.moveToNext()) {
+                results.add(new BenchmarkResult(c.getLong(0), c.getString(1), c.getString(2), c.getString(3),
+                        c.getInt(4), c.getInt(5), c.getInt(6), c.getInt(7), c.getInt(8),
+                        c.getLong(9), c.getLong(10), c.getLong(11), c.getLong(12),
+                        c.getLong(13), c.getLong(14), c.getLong(15)));
+            }
+        }
+        return results;
+    }
+
+    /** The cached reply stored under {@code key} since {@code minCreated}, or null. */
+    public ResponseCache.Entry findCachedResponse(String key, long minCreated) {
+        SQLiteDatabase db = this.getReadableDatabase();
+        try (Cursor c = db.query("response_cache", new String[]{"key", "prompt", "response", "generation_ms"},
+                "key=? AND created>=?", new String[]{key, String.valueOf(minCreated)}, null, null, null)) {
+            if (!c.moveToFirst()) return null;
+            return new ResponseCache.Entry(c.getString(0), c.getString(1), c.getString(2), c.getLong(3), null);
+        }
+    }
+
+    /** Cached replies in {@code group} since {@code minCreated}, with their embeddings. */
+    public List<ResponseCache.Entry> findCachedResponses(String group, long minCreated) {
+        List<ResponseCache.Entry> entries = new ArrayList<>();
+        SQLiteDatabase db = this.getReadableDatabase();
+        try (Cursor c = db.query("response_cache", new String[]{"key", "prompt", "response", "generation_ms", "embedding"},
+                "grp=? AND created>=?", new String[]{group, String.valueOf(minCreated)}, null, null, null)) {
+            while (c.moveToNext()) {
+                entries.add(new ResponseCache.Entry(c.getString(0), c.getString(1), c.getString(2), c.getLong(3),
+                        ResponseCache.fromBytes(c.getBlob(4))));
+            }
+        }
+        return entries;
+    }
+
+    public void touchCachedResponse(String key, long now) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.execSQL("UPDATE response_cache SET last_used=?, hits=hits+1 WHERE key=?", new Object[]{now, key});
+    }
+
+    /**
+     * Stores a reply, then drops expired entries and the least recently
+     * used beyond {@code maxEntries}.
+     */
+    public void cacheResponse(ResponseCache.Entry e, String group, long now, long ttlMs, int maxEntries) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put("key", e.key);
+        values.put("grp", group);
+        values.put("prompt", e.prompt);
+        values.put("response", e.response);
+        values.put("generation_ms", e.generationMs);
+        values.put("embedding", e.embedding != null ? ResponseCache.toBytes(e.embedding) : null);
+        values.put("created", now);
+        values.put("last_used", now);
+        db.insertWithOnConflict("response_cache", null, values, SQLiteDatabase.CONFLICT_REPLACE);
+        db.execSQL("DELETE FROM response_cache WHERE created<?", new Object[]{now - ttlMs});
+        db.execSQL("DELETE FROM response_cache WHERE key NOT IN (SELECT key FROM response_cache ORDER BY last_used DESC LIMIT " + maxEntries + ")");
+    }
+
+    public void recordCacheLookup(boolean hit, boolean similar, long savedMs) {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.execSQL("UPDATE cache_stats SET hits=hits+?, similar_hits=similar_hits+?, misses=misses+?, saved_ms=saved_ms+? WHERE id=0",
+                new Object[]{hit ? 1 : 0, similar ? 1 : 0, hit ? 0 : 1, savedMs});
+    }
+
+    public ResponseCache.Stats getCacheStats() {
+        SQLiteDatabase db = this.getReadableDatabase();
+        try (Cursor c = db.rawQuery("SELECT hits, similar_hits, misses, saved_ms FROM cache_stats WHERE id=0", null)) {
+            if (!c.moveToFirst()) return new ResponseCache.Stats(0, 0, 0, 0);
+            return new ResponseCache.Stats(c.getLong(0), c.getLong(1), c.getLong(2), c.getLong(3));
+        }
+    }
+
+    public void clearResponseCache() {
+        SQLiteDatabase db = this.getWritableDatabase();
+        db.delete("response_cache", null, null);
+    }
 }
@@ -12,6 +12,23 @@ public class ModelConfig {
         OPENCLAW    // Remote via OpenAI-compatible API
     }
 
+    /**
+     * Element type of the llama.cpp K/V cache. Quantized caches hold more
+     * context in the same RAM; the context is sized from the per-token cost.
+     */
+    public enum KvCacheType {
+        F16(1),   // llama.cpp default, 2 bytes per value
+        Q8_0(8),  // ~1.06 bytes per value
+        Q4_0(2);  // ~0.56 bytes per value
+
+        /** ggml_type passed to llama.cpp. */
+        public final int ggmlType;
+
+        KvCacheType(int ggmlType) {
+            this.ggmlType = ggmlType;
+        }
+    }
+
     public final String displayName;
     public final String fileName;
     public final String downloadUrl;
@@ -20,10 +37,47 @@ public class ModelConfig {
     public final Backend backend;
     public final boolean hasVision;
     public final String sizeLabel;
+    /** Small same-vocabulary GGUF used for speculative decoding, or null. */
+    public final ModelConfig draftModel;
+    /** Tokens the draft model proposes per verification step. */
+    public final int draftTokens;
+    /** Sampling settings used with this model. */
+    public final GenerationParams generationParams;
+    /** K/V cache type for llama.cpp; falls back to F16 where unsupported. */
+    public final KvCacheType kvCacheType;
+    /** Use llama.cpp flash attention (required for a quantized V cache). */
+    public final boolean flashAttention;
+    /**
+     * Text that ends a llama.cpp reply, matched on the decoded output. Covers
+     * models that don't emit their end-of-generation token and would
+     * otherwise write the next turn themselves. The default for requests
+     * that don't pass their own.
+     */
+    public final String[] stopSequences;
+    /** llama.cpp multimodal projector (mmproj GGUF) for image input, or null. */
+    public final ModelConfig visionProjector;
+
+    /**
+     * ChatML turn markers: Qwen's own template, and the fallback for GGUFs
+     * without a chat template llama.cpp recognises.
+     */
+    static final String[] CHATML_STOPS = {"<|im_end|>", "<|im_start|>"};
 
     public ModelConfig(String displayName, String fileName, String downloadUrl,
                        long minFileSize, String description, Backend backend,
                        boolean hasVision, String sizeLabel) {
+        this(displayName, fileName, downloadUrl, minFileSize, description, backend,
+                hasVision, sizeLabel, null, 0, GenerationParams.DEFAULT,
+                KvCacheType.F16, false, CHATML_STOPS, null);
+    }
+
+    private ModelConfig(String displayName, String fileName, String downloadUrl,
+                        long minFileSize, String description, Backend backend,
+                        boolean hasVision, String sizeLabel,
+                        ModelConfig draftModel, int draftTokens,
+                        GenerationParams generationParams,
+                        KvCacheType kvCacheType, boolean flashAttention,
+                        String[] stopSequences, ModelConfig visionProjector) {
         this.displayName = displayName;
         this.fileName = fileName;
         this.downloadUrl = downloadUrl;
@@ -32,8 +86,96 @@ public class ModelConfig {
         this.backend = backend;
         this.hasVision = hasVision;
         this.sizeLabel = sizeLabel;
+        this.draftModel = draftModel;
+        this.draftTokens = draftTokens;
+        this.generationParams = generationParams;
+        this.kvCacheType = kvCacheType;
+        this.flashAttention = flashAttention;
+        this.stopSequences = stopSequences;
+        this.visionProjector = visionProjector;
+    }
+
+    // The llama.cpp options below default to F16, no draft, ChatML stops and
+    // no projector; each with* method returns a copy with one of them set.
+
+    /** A copy that drafts {@code tokens} per step with {@code draft}. */
+    public ModelConfig withDraft(ModelConfig draft, int tokens) {
+        return new ModelConfig(displayName, fileName, downloadUrl, minFileSize, description, backend,
+                hasVision, sizeLabel, draft, tokens, generationParams,
+                kvCacheType, flashAttention, stopSequences, visionProjector);
+    }
+
+    /** A copy that samples with {@code params}. */
+    public ModelConfig withGenerationParams(GenerationParams params) {
+        return new ModelConfig(displayName, fileName, downloadUrl, minFileSize, description, backend,
+                hasVision, sizeLabel, draftModel, draftTokens, params,
+                kvCacheType, flashAttention, stopSequences, visionProjector);
+    }
+
+    /** A copy with the given K/V cache type and flash attention setting. */
+    public ModelConfig withKvCache(KvCacheType type, boolean flashAttention) {
+        return new ModelConfig(displayName, fileName, downloadUrl, minFileSize, description, backend,
+                hasVision, sizeLabel, draftModel, draftTokens, generationParams,
+                type, flashAttention, stopSequences, visionProjector);
+    }
+
+    /** A copy whose replies end before any of {@code stops}. */
+    public ModelConfig withStopSequences(String... stops) {
+        return new ModelConfig(displayName, fileName, downloadUrl, minFileSize, description, backend,
+                hasVision, sizeLabel, draftModel, draftTokens, generationParams,
+                kvCacheType, flashAttention, stops, visionProjector);
     }
 
+    /** A copy that loads {@code projector} for image input. */
+    public ModelConfig withVisionProjector(ModelConfig projector) {
+        return new ModelConfig(displayName, fileName, downloadUrl, minFileSize, description, backend,
+                hasVision, sizeLabel, draftModel, draftTokens, generationParams,
+                kvCacheType, flashAttention, stopSequences, projector);
+    }
+
+    /**
+     * Draft for the Qwen2 family. Qwen2.5 shares Qwen2-VL's tokenizer, so its
+     * 0.5B instruct model can propose tokens for the 2B to verify.
+     * Not listed in getAvailableModels(); only downloaded as a pairing.
+     */
+    private static final ModelConfig QWEN_DRAFT = new ModelConfig(
+            "Qwen2.5 0.5B (draft)",
+            "qwen2.5-0.5b-instruct-q4_k_m.gguf",
+            "https://huggingface.co/Qwen/Qwen2.5-0.5B-Instruct-GGUF/resolve/main/qwen2.5-0.5b-instruct-q4_k_m.gguf",
+            300000000L,
+            "Speculative draft for Qwen2 models.",
+            Backend.LLAMA_CPP, false, "~0.4GB"
+    );
+
+    /**
+     * Small model kept loaded next to the selected one (see ModelRouter): it
+     * classifies requests and answers commands, tool calls and short replies
+     * so the large model can stay unloaded. The same file as the Qwen2 draft;
+     * not listed in getAvailableModels().
+     */
+    public static final ModelConfig ROUTER = new ModelConfig(
+            "Qwen2.5 0.5B (router)",
+            QWEN_DRAFT.fileName,
+            QWEN_DRAFT.downloadUrl,
+            QWEN_DRAFT.minFileSize,
+            "Answers simple requests without the large model.",
+            Backend.LLAMA_CPP, false, "~0.4GB"
+    ).withGenerationParams(new GenerationParams(0.3f, 40, 0.9f, 64, 1.1f, 42, 128, 15_000))
+            .withKvCache(KvCacheType.Q8_0, true);
+
+    /**
+     * Qwen2-VL's vision encoder and projector. Loaded next to the language
+     * model so screenshots can be passed in; only downloaded as a pairing.
+     */
+    private static final ModelConfig QWEN_VL_PROJECTOR = new ModelConfig(
+            "Qwen2-VL 2B (vision)",
+            "mmproj-Qwen2-VL-2B-Instruct-Q8_0.gguf",
+            "https://huggingface.co/ggml-org/Qwen2-VL-2B-Instruct-GGUF/resolve/main/mmproj-Qwen2-VL-2B-Instruct-Q8_0.gguf",
+            300000000L,
+            "Image encoder for Qwen2-VL.",
+            Backend.LLAMA_CPP, true, "~0.7GB"
+    );
+
     /**
      * Returns formatted display string with vision badge and backend info.
      */
@@ -71,7 +213,9 @@ public class ModelConfig {
                         500000000L,
                         "Alibaba. Chat + vision. Strong OCR and image understanding.",
                         Backend.LLAMA_CPP, true, "~1.0GB"
-                ),
+                ).withDraft(QWEN_DRAFT, 4)
+                        .withKvCache(KvCacheType.Q8_0, true)
+                        .withVisionProjector(QWEN_VL_PROJECTOR),
                 new ModelConfig(
                         "Phi-3.5 Mini",
                         "Phi-3.5-mini-instruct-Q4_K_M.gguf",
@@ -79,7 +223,9 @@ public class ModelConfig {
                         1500000000L,
                         "Microsoft. Best reasoning at this size. Text-only.",
                         Backend.LLAMA_CPP, false, "~2.3GB"
-                ),
+                ).withKvCache(KvCacheType.Q8_0, true)
+                        // Its own turn markers, plus ChatML for the fallback prompt
+                        .withStopSequences("<|im_end|>", "<|im_start|>", "<|end|>", "<|user|>", "<|endoftext|>"),
                 new ModelConfig(
                         "Gemma 2 2B",
                         "gemma-2-2b-it-Q4_K_M.gguf",
@@ -87,7 +233,8 @@ public class ModelConfig {
                         1000000000L,
                         "Google. Compact, fast, great text quality. Text-only.",
                         Backend.LLAMA_CPP, false, "~1.6GB"
-                )
+                ).withKvCache(KvCacheType.Q8_0, true)
+                        .withStopSequences("<|im_end|>", "<|im_start|>", "<end_of_turn>", "<start_of_turn>")
         };
     }
 
@@ -0,0 +1,152 @@
+package com.abettergemini.assistant;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Local models kept loaded within a RAM budget, least recently used first
+ * out. Pinned models (the router) and the model in use are never evicted.
+ * The pool only does the
+ * bookkeeping: models it evicts are handed back to the caller to close, so
+ * it works for any model type and can be tested without native code.
+ */
+public class ModelPool<T> {
+
+    private static final class Entry<T> {
+        final T model;
+        final long bytes;
+        final boolean pinned;
+
+        Entry(T model, long bytes, boolean pinned) {
+            this.model = model;
+            this.bytes = bytes;
+            this.pinned = pinned;
+        }
+    }
+
+    /** Share of total RAM the pool may use at most. */
+    static final double MAX_TOTAL_SHARE = 0.4;
+
+    private final long budgetBytes;
+    // Access order: iteration starts at the least recently used
+    private final LinkedHashMap<String, Entry<T>> entries = new LinkedHashMap<>(4, 0.75f, true);
+    private String inUse;
+    private int hits;
+    private int misses;
+
+    public ModelPool(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Budget for the pool from ActivityManager.MemoryInfo: what is free above
+     * the low-memory threshold, but never more than {@link #MAX_TOTAL_SHARE}
+     * of the device's RAM.
+     */
+    public static long budgetFor(long totalMem, long availMem, long threshold) {
+        return Math.max(0, Math.min((long) (totalMem * MAX_TOTAL_SHARE), availMem - threshold));
+    }
+
+    /** The model requests go to now (may be null); kept while it is in use. */
+    public synchronized void setInUse(String key) {
+        inUse = key;
+    }
+
+    /**
+     * The model loaded as {@code key}, marked most recently used, or null.
+     * Counts a pool hit or miss.
+     */
+    public synchronized T get(String key) {
+        Entry<T> entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.model;
+    }
+
+    /**
+     * Adds a loaded model taking {@code bytes} of RAM, then evicts the least
+     * recently used unpinned models until the pool fits its budget again.
+     * Returns the evicted models, which the caller must close. The model just
+     * added is never evicted, even if it alone is over budget.
+     */
+    public synchronized List<T> put(String key, T model, long bytes, boolean pinned) {
+        entries.put(key, new Entry<>(model, bytes, pinned));
+        return evictUntil(budgetBytes, key);
+    }
+
+    /**
+     * Evicts least recently used unpinned models until {@code bytes} more
+     * fit in the budget, so a model that size can be loaded without both
+     * being resident at once. Returns the evicted models to close.
+     */
+    public synchronized List<T> makeRoom(long bytes) {
+        return evictUntil(budgetBytes - bytes, null);
+    }
+
+    private List<T> evictUntil(long limit, String keep) {
+        List<T> evicted = new ArrayList<>();
+        Iterator<Map.Entry<String, Entry<T>>> it = entries.entrySet().iterator();
+        while (usedBytes() > limit && it.hasNext()) {
+            Map.Entry<String, Entry<T>> e = it.next();
+            if (e.getValue().pinned || e.getKey().equals(keep) || e.getKey().equals(inUse)) continue;
+            evicted.add(e.getValue().model);
+            it.remove();
+        }
+        return evicted;
+    }
+
+    /** Drops {@code key} from the pool, returning its model to close, or null. */
+    public synchronized T remove(String key) {
+        Entry<T> entry = entries.remove(key);
+        return entry != null ? entry.model : null;
+    }
+
+    /**
+     * Drops every model that is neither pinned nor in use, e.g. under memory
+     * pressure. Returns them to close.
+     */
+    public synchronized List<T> evictUnused() {
+        return evictUntil(Long.MIN_VALUE, null);
+    }
+
+    /** Drops every model, pinned ones included. Returns them to close. */
+    public synchronized List<T> clear() {
+        List<T> all = new ArrayList<>();
+        for (Entry<T> e : entries.values()) all.add(e.model);
+        entries.clear();
+        return all;
+    }
+
+    public synchronized long usedBytes() {
+        long used = 0;
+        for (Entry<T> e : entries.values()) used += e.bytes;
+        return used;
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /** Share of lookups that found their model already loaded, 0 before any. */
+    public synchronized double hitRate() {
+        int total = hits + misses;
+        return total > 0 ? (double) hits / total : 0;
+    }
+
+    /** One line for the status bar, e.g. "pool 2 · 1400/2800MB · hits 7/8". */
+    public synchronized String summary() {
+        return String.format(Locale.US, "pool %d · %d/%dMB · hits %d/%d", entries.size(),
+                usedBytes() / (1024 * 1024), budgetBytes / (1024 * 1024), hits, hits + misses);
+    }
+}
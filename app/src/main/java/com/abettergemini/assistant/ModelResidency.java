@@ -0,0 +1,80 @@
+package com.abettergemini.assistant;
+
+import android.content.ComponentCallbacks2;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.Collection;
+
+/**
+ * How much of a local model stays in memory as the system asks for memory
+ * back through onTrimMemory, and how much of it actually is resident.
+ * Dropping the context first keeps the expensive part (the weights, mmapped
+ * from the GGUF) so the next request only recreates the K/V cache.
+ */
+public final class ModelResidency {
+
+    public enum Tier {
+        /** Weights, context and K/V cache all loaded. */
+        FULL,
+        /** Context and K/V cache freed; weights stay mapped. */
+        WEIGHTS,
+        /** Model freed; reloaded and warmed up on next use. */
+        NONE
+    }
+
+    private ModelResidency() {}
+
+    /**
+     * The tier to drop to for an onTrimMemory level. On API 34 only
+     * UI_HIDDEN and BACKGROUND are still delivered; the rest come from older
+     * code paths and are mapped by severity.
+     */
+    public static Tier forTrimLevel(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            return Tier.NONE;
+        }
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            return Tier.WEIGHTS;
+        }
+        // RUNNING_MODERATE, or only the UI went away: stay ready for the next assist
+        return Tier.FULL;
+    }
+
+    /**
+     * Resident bytes of the mappings of any of {@code paths}, read from
+     * /proc/self/smaps: how much of an mmapped model is actually in RAM.
+     */
+    public static long mappedResidentBytes(BufferedReader smaps, Collection<String> paths) throws IOException {
+        long total = 0;
+        boolean counting = false;
+        String line;
+        while ((line = smaps.readLine()) != null) {
+            if (isMappingHeader(line)) {
+                int path = line.indexOf('/');
+                counting = path >= 0 && paths.contains(line.substring(path).trim());
+            } else if (counting && line.startsWith("Rss:")) {
+                total += parseKb(line) * 1024;
+            }
+        }
+        return total;
+    }
+
+    // "7f2c000000-7f2d000000 r--p 00000000 fd:05 1234   /path", as opposed to "Rss:  12 kB"
+    private static boolean isMappingHeader(String line) {
+        int dash = line.indexOf('-');
+        int space = line.indexOf(' ');
+        return dash > 0 && space > dash && Character.digit(line.charAt(0), 16) >= 0;
+    }
+
+    private static long parseKb(String line) {
+        long kb = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c >= '0' && c <= '9') kb = kb * 10 + (c - '0');
+        }
+        return kb;
+    }
+}
@@ -0,0 +1,152 @@
+package com.abettergemini.assistant;
+
+import java.util.Locale;
+
+/**
+ * Decides which local model answers a request: the small router model that
+ * stays loaded ({@link ModelConfig#ROUTER}) or the selected large model.
+ * Clear cases are decided from the request itself by {@link #preRoute};
+ * the rest are classified by the router model with {@link #CLASSIFY_GRAMMAR}.
+ * Counts its decisions so the hit rate of the router can be shown.
+ */
+public class ModelRouter {
+
+    public enum Route {
+        /** Small always-resident model: commands, tool calls, short replies. */
+        ROUTER,
+        /** Selected large model, loaded on demand. */
+        MAIN
+    }
+
+    /** Where one request went and why. */
+    public static final class Decision {
+        public final Route route;
+        public final String reason;
+        /** Whether the router model classified it, rather than the heuristics. */
+        public final boolean classified;
+
+        Decision(Route route, String reason, boolean classified) {
+            this.route = route;
+            this.reason = reason;
+            this.classified = classified;
+        }
+
+        @Override
+        public String toString() {
+            return route + " (" + reason + (classified ? ", classified" : "") + ")";
+        }
+    }
+
+    /** Requests up to this long can be commands or small talk. */
+    static final int SHORT_QUERY_CHARS = 80;
+    /** Requests longer than this always need the large model. */
+    static final int LONG_QUERY_CHARS = 300;
+
+    /** The router model answers with exactly one of two words. */
+    public static final String CLASSIFY_GRAMMAR = "root ::= \"simple\" | \"complex\"";
+    public static final int CLASSIFY_MAX_TOKENS = 3;
+    public static final String CLASSIFY_INSTRUCTIONS =
+            "Classify the request to a phone assistant. Answer \"simple\" if it is a device command "
+                    + "(timer, alarm, call, message, open an app, settings), a greeting, or a question "
+                    + "answered in one or two sentences. Answer \"complex\" if it needs reasoning, "
+                    + "writing, summarizing, translating, or reading the screen. Answer with one word.";
+
+    // Device commands the tool calls cover
+    private static final String[] COMMANDS = {
+            "set a timer", "set timer", "set an alarm", "set alarm", "wake me", "remind me",
+            "call ", "text ", "message ", "open ", "launch ", "turn on", "turn off",
+            "play ", "pause", "stop ", "volume", "flashlight", "navigate to", "directions to"
+    };
+    private static final String[] SMALL_TALK = {
+            "hi", "hey", "hello", "thanks", "thank you", "ok", "okay", "good morning", "good night",
+            "what time", "what day", "what's the date", "what is the date"
+    };
+    private static final String[] HEAVY = {
+            "summarize", "summarise", "explain", "translate", "write", "draft", "compare",
+            "analyze", "analyse", "rewrite", "code", "essay", "plan", "why"
+    };
+    // Requests about what is on screen need the large model's context
+    private static final String[] DEICTIC = {"this", "screen", "here", "above", "page", "article"};
+
+    private int routerRoutes;
+    private int mainRoutes;
+    private int classifiedRoutes;
+
+    /**
+     * The route decided from the request alone, or null when it isn't clear
+     * and the router model should classify it. Images always need the large
+     * model; so do long requests, writing and reasoning tasks, and questions
+     * about the screen.
+     */
+    public static Decision preRoute(String query, boolean hasImage, boolean hasScreen, int historyTurns) {
+        if (hasImage) return new Decision(Route.MAIN, "image", false);
+        String q = query.trim().toLowerCase(Locale.ROOT);
+        if (q.length() > LONG_QUERY_CHARS) return new Decision(Route.MAIN, "long request", false);
+        if (containsAny(q, HEAVY)) {
+            return new Decision(Route.MAIN, "writing or reasoning", false);
+        }
+        if (hasScreen && containsAny(q, DEICTIC)) return new Decision(Route.MAIN, "about the screen", false);
+        if (q.length() <= SHORT_QUERY_CHARS) {
+            if (startsWithAny(q, COMMANDS)) return new Decision(Route.ROUTER, "command", false);
+            if (historyTurns == 0 && startsWithAny(q, SMALL_TALK)) {
+                return new Decision(Route.ROUTER, "small talk", false);
+            }
+        }
+        return null;
+    }
+
+    /** The route for the router model's answer to {@link #CLASSIFY_INSTRUCTIONS}. */
+    public static Decision fromLabel(String label) {
+        if (label != null && label.trim().toLowerCase(Locale.ROOT).startsWith("simple")) {
+            return new Decision(Route.ROUTER, "simple", true);
+        }
+        // Unsure or failed: the large model is always right to ask
+        return new Decision(Route.MAIN, label == null ? "classifier failed" : "complex", true);
+    }
+
+    /** Counts {@code decision} in the routing stats and returns it. */
+    public synchronized Decision record(Decision decision) {
+        if (decision.route == Route.ROUTER) routerRoutes++;
+        else mainRoutes++;
+        if (decision.classified) classifiedRoutes++;
+        return decision;
+    }
+
+    /** Share of requests answered by the router model, 0 before any. */
+    public synchronized double routerHitRate() {
+        int total = routerRoutes + mainRoutes;
+        return total > 0 ? (double) routerRoutes / total : 0;
+    }
+
+    /** One line for the status bar, e.g. "router 12/20 (60%), 5 classified". */
+    public synchronized String summary() {
+        int total = routerRoutes + mainRoutes;
+        if (total == 0) return "";
+        return String.format(Locale.US, "router %d/%d (%.0f%%), %d classified",
+                routerRoutes, total, routerHitRate() * 100, classifiedRoutes);
+    }
+
+    private static boolean startsWithAny(String q, String[] prefixes) {
+        for (String p : prefixes) {
+            if (q.startsWith(p) && (q.length() == p.length() || p.endsWith(" ")
+                    || !Character.isLetter(q.charAt(p.length())))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean containsAny(String q, String[] words) {
+        for (String word : words) {
+            // Whole words only: "this" but not "thistle"
+            for (int at = q.indexOf(word); at >= 0; at = q.indexOf(word, at + 1)) {
+                int end = at + word.length();
+                if ((at == 0 || !Character.isLetter(q.charAt(at - 1)))
+                        && (end == q.length() || !Character.isLetter(q.charAt(end)))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
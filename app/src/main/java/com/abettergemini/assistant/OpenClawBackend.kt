@@ -10,6 +10,7 @@ import java.io.BufferedReader
 import java.io.InputStreamReader
 import java.io.OutputStreamWriter
 import java.net.URL
+import java.util.concurrent.CancellationException
 import javax.net.ssl.HttpsURLConnection
 
 /**
@@ -28,23 +29,48 @@ class OpenClawBackend(
 
     private val scope = CoroutineScope(Dispatchers.IO)
 
-    override fun generateResponse(prompt: String, callback: InferenceBackend.ResponseCallback) {
+    override fun generateResponse(prompt: String, callback: InferenceBackend.ResponseCallback): GenerationHandle {
+        return generateResponse(prompt, false, callback)
+    }
+
+    /**
+     * With [toolCalls] the request carries [ToolCall.JSON_SCHEMA] as its
+     * response format, so every reply is a JSON object: calls are returned
+     * as they are and plain answers unwrapped. The stream is closed as soon
+     * as the object is complete. JSON replies aren't streamed to onPartial.
+     */
+    override fun generateResponse(prompt: String, toolCalls: Boolean, callback: InferenceBackend.ResponseCallback): GenerationHandle {
+        val handle = GenerationHandle()
         scope.launch {
             try {
                 val startTime = System.currentTimeMillis()
-                val response = callChatCompletions(prompt)
+                val response = callChatCompletions(prompt, toolCalls, handle) { text ->
+                    launch(Dispatchers.Main) {
+                        if (!handle.isCancelled) callback.onPartial(text)
+                    }
+                }
                 val elapsed = System.currentTimeMillis() - startTime
 
                 launch(Dispatchers.Main) {
-                    callback.onSuccess(response, elapsed)
+                    if (handle.isCancelled) {
+                        callback.onError(CancellationException("Generation cancelled"))
+                    } else {
+                        callback.onSuccess(response, elapsed)
+                    }
                 }
             } catch (e: Exception) {
-                Log.e(TAG, "OpenClaw generation error", e)
                 launch(Dispatchers.Main) {
-                    callback.onError(e)
+                    if (handle.isCancelled) {
+                        // The aborted connection surfaces as an IOException
+                        callback.onError(CancellationException("Generation cancelled"))
+                    } else {
+                        Log.e(TAG, "OpenClaw generation error", e)
+                        callback.onError(e)
+                    }
                 }
             }
         }
+        return handle
     }
 
     override fun isReady(): Boolean {
@@ -61,8 +87,13 @@ class OpenClawBackend(
     /**
      * Call the /v1/chat/completions endpoint.
      * The prompt is expected to already be in the user's message format.
+     * Requests a server-sent event stream and reports the accumulated text
+     * through [onPartial]; servers that ignore `stream` return plain JSON.
+     * Cancelling [handle] disconnects the in-flight request. Servers that
+     * reject the tool call schema are asked again without it.
      */
-    private fun callChatCompletions(prompt: String): String {
+    private fun callChatCompletions(prompt: String, toolCalls: Boolean, handle: GenerationHandle,
+                                    onPartial: (String) -> Unit): String {
         val baseUrl = encryptedPrefs.getOpenClawUrl().trimEnd('/')
         val apiKey = encryptedPrefs.getOpenClawApiKey()
         var model = encryptedPrefs.getOpenClawModel()
@@ -110,12 +141,23 @@ class OpenClawBackend(
         requestBody.put("messages", messagesArray)
         requestBody.put("max_tokens", 1024)
         requestBody.put("temperature", 0.7)
+        requestBody.put("stream", true)
+        if (toolCalls) {
+            requestBody.put("response_format", JSONObject()
+                .put("type", "json_schema")
+                .put("json_schema", JSONObject()
+                    .put("name", "tool_call")
+                    .put("strict", true)
+                    .put("schema", JSONObject(ToolCall.JSON_SCHEMA))))
+        }
 
         // Make HTTPS request
         val url = URL(endpoint)
         val connection = url.openConnection() as HttpsURLConnection
+        handle.setOnCancel { connection.disconnect() }
 
         try {
+            if (handle.isCancelled) throw CancellationException("Generation cancelled")
             connection.requestMethod = "POST"
             connection.setRequestProperty("Content-Type", "application/json")
             connection.setRequestProperty("Authorization", "Bearer $apiKey")
@@ -137,9 +179,20 @@ class OpenClawBackend(
                 } else {
                     "No error body"
                 }
+                if (toolCalls && responseCode == 400) {
+                    Log.w(TAG, "Server rejected response_format, retrying without it: $errorBody")
+                    connection.disconnect()
+                    return callChatCompletions(prompt, false, handle, onPartial)
+                }
                 throw Exception("OpenClaw API error $responseCode: $errorBody")
             }
 
+            val contentType = connection.contentType ?: ""
+            if (contentType.startsWith("text/event-stream")) {
+                val text = readEventStream(connection, handle, if (toolCalls) null else onPartial)
+                return if (toolCalls) ToolCall.unwrapReply(text) else text
+            }
+
             // Read response
             val responseBody = BufferedReader(
                 InputStreamReader(connection.inputStream, "UTF-8")
@@ -150,15 +203,51 @@ class OpenClawBackend(
             val choices = jsonResponse.getJSONArray("choices")
             if (choices.length() > 0) {
                 val message = choices.getJSONObject(0).getJSONObject("message")
-                return message.getString("content").trim()
+                val content = message.getString("content").trim()
+                return if (toolCalls) ToolCall.unwrapReply(content) else content
             }
 
             return "No response from OpenClaw"
         } finally {
+            handle.setOnCancel(null)
             connection.disconnect()
         }
     }
 
+    /**
+     * Read an OpenAI-style SSE stream of `data: {...}` chunks until `[DONE]`,
+     * appending each `choices[0].delta.content` to the response. Without
+     * [onPartial] (JSON replies) reading stops once the object is complete.
+     */
+    private fun readEventStream(connection: HttpsURLConnection, handle: GenerationHandle, onPartial: ((String) -> Unit)?): String {
+        val result = StringBuilder()
+        BufferedReader(InputStreamReader(connection.inputStream, "UTF-8")).use { reader ->
+            while (!handle.isCancelled) {
+                val line = reader.readLine() ?: break
+                if (!line.startsWith("data:")) continue
+                val data = line.substring(5).trim()
+                if (data == "[DONE]") break
+                if (data.isEmpty()) continue
+
+                val choices = JSONObject(data).optJSONArray("choices") ?: continue
+                if (choices.length() == 0) continue
+                val delta = choices.getJSONObject(0).optJSONObject("delta") ?: continue
+                if (delta.isNull("content")) continue
+                val piece = delta.optString("content", "")
+                if (piece.isNotEmpty()) {
+                    result.append(piece)
+                    if (onPartial != null) {
+                        onPartial(result.toString())
+                    } else if (ToolCall.isCompleteObject(result)) {
+                        break
+                    }
+                }
+            }
+        }
+        if (result.isEmpty()) return "No response from OpenClaw"
+        return result.toString().trim()
+    }
+
     /**
      * Test the connection by calling /v1/models endpoint.
      * Returns the list of available model names, or throws on failure.
@@ -18,6 +18,16 @@ public class PreferencesManager {
     private static final String KEY_SELECTED_MODEL = "selected_model";
     private static final String KEY_MOOD = "mood";
     private static final String KEY_DARK_MODE = "dark_mode";
+    private static final String KEY_SPECULATIVE_DECODING = "speculative_decoding";
+    private static final String KEY_DECODE_THREADS = "decode_threads";
+    private static final String KEY_PREFILL_THREADS = "prefill_threads";
+    private static final String KEY_CONTEXT_SIZE = "context_size";
+    private static final String KEY_TOOL_CALLS = "structured_tool_calls";
+    private static final String KEY_MODEL_WARMUP = "model_warmup";
+    private static final String KEY_LOCK_MODEL = "lock_model_in_ram";
+    private static final String KEY_MODEL_ROUTING = "model_routing";
+    private static final String KEY_RESPONSE_CACHE = "response_cache";
+    private static final String KEY_SIMILAR_CACHE = "response_cache_similar";
 
     private final SharedPreferences prefs;
     private final EncryptedPrefsManager encryptedPrefs;
@@ -127,6 +137,129 @@ public class PreferencesManager {
         prefs.edit().putBoolean(KEY_DARK_MODE, value).apply();
     }
 
+    public boolean isSpeculativeDecoding() {
+        return prefs.getBoolean(KEY_SPECULATIVE_DECODING, true);
+    }
+
+    public void setSpeculativeDecoding(boolean value) {
+        prefs.edit().putBoolean(KEY_SPECULATIVE_DECODING, value).apply();
+    }
+
+    /**
+     * llama.cpp thread counts calibrated for this device; 0 until calibrated.
+     */
+    public int getDecodeThreads() {
+        return prefs.getInt(KEY_DECODE_THREADS, 0);
+    }
+
+    public int getPrefillThreads() {
+        return prefs.getInt(KEY_PREFILL_THREADS, 0);
+    }
+
+    public void setInferenceThreads(int decodeThreads, int prefillThreads) {
+        prefs.edit()
+                .putInt(KEY_DECODE_THREADS, decodeThreads)
+                .putInt(KEY_PREFILL_THREADS, prefillThreads)
+                .apply();
+    }
+
+    /**
+     * Context length in tokens chosen by the user; 0 means size it from free memory.
+     */
+    public int getContextSize() {
+        return prefs.getInt(KEY_CONTEXT_SIZE, 0);
+    }
+
+    public void setContextSize(int tokens) {
+        prefs.edit().putInt(KEY_CONTEXT_SIZE, tokens).apply();
+    }
+
+    /**
+     * Whether chat replies may be structured tool calls, constrained to the
+     * ToolCall format by a grammar (llama.cpp) or JSON schema (remote).
+     */
+    public boolean isToolCallsEnabled() {
+        return prefs.getBoolean(KEY_TOOL_CALLS, true);
+    }
+
+    public void setToolCallsEnabled(boolean value) {
+        prefs.edit().putBoolean(KEY_TOOL_CALLS, value).apply();
+    }
+
+    /**
+     * Whether a llama.cpp model is read into the page cache and run once
+     * right after loading, so the first reply doesn't wait on flash.
+     */
+    public boolean isModelWarmup() {
+        return prefs.getBoolean(KEY_MODEL_WARMUP, true);
+    }
+
+    public void setModelWarmup(boolean value) {
+        prefs.edit().putBoolean(KEY_MODEL_WARMUP, value).apply();
+    }
+
+    /**
+     * Whether to mlock llama.cpp weights so they can't be paged out; only
+     * done when free memory (and the process's lock limit) allows.
+     */
+    public boolean isLockModelInRam() {
+        return prefs.getBoolean(KEY_LOCK_MODEL, false);
+    }
+
+    public void setLockModelInRam(boolean value) {
+        prefs.edit().putBoolean(KEY_LOCK_MODEL, value).apply();
+    }
+
+    /**
+     * Whether a small router model stays loaded next to a llama.cpp model to
+     * answer simple requests, so the large one is only used when needed.
+     */
+    public boolean isModelRouting() {
+        return prefs.getBoolean(KEY_MODEL_ROUTING, true);
+    }
+
+    public void setModelRouting(boolean value) {
+        prefs.edit().putBoolean(KEY_MODEL_ROUTING, value).apply();
+    }
+
+    /** Whether repeated requests are answered from ResponseCache. */
+    public boolean isResponseCache() {
+        return prefs.getBoolean(KEY_RESPONSE_CACHE, true);
+    }
+
+    public void setResponseCache(boolean value) {
+        prefs.edit().putBoolean(KEY_RESPONSE_CACHE, value).apply();
+    }
+
+    /** Whether rephrasings of a cached question are answered from the cache too. */
+    public boolean isSimilarCache() {
+        return prefs.getBoolean(KEY_SIMILAR_CACHE, false);
+    }
+
+    public void setSimilarCache(boolean value) {
+        prefs.edit().putBoolean(KEY_SIMILAR_CACHE, value).apply();
+    }
+
+    /**
+     * Listen for changes to any stored setting (persona, mood, model...).
+     * SharedPreferences holds listeners weakly, so the caller must keep a reference.
+     */
+    public void registerChangeListener(SharedPreferences.OnSharedPreferenceChangeListener listener) {
+        prefs.registerOnSharedPreferenceChangeListener(listener);
+    }
+
+    public void unregisterChangeListener(SharedPreferences.OnSharedPreferenceChangeListener listener) {
+        prefs.unregisterOnSharedPreferenceChangeListener(listener);
+    }
+
+    /**
+     * Whether a change to {@code key} (null when everything was cleared)
+     * can change the system prompt, including its tool instructions.
+     */
+    public static boolean affectsSystemPrompt(String key) {
+        return key == null || KEY_MATE_PERSONALITY.equals(key) || KEY_MOOD.equals(key) || KEY_TOOL_CALLS.equals(key);
+    }
+
     public String generateSystemPrompt() {
         StringBuilder sb = new StringBuilder();
         sb.append("You are Mate, a helpful AI assistant. Be concise.");
@@ -0,0 +1,164 @@
+package com.abettergemini.assistant;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Splits a model's context between the parts of a prompt so it never
+ * overflows and nothing is prefilled only to be cut off. The generation
+ * reserve, system prompt and query come first; memory and history get
+ * capped shares of the rest, and screen context takes whatever is left.
+ * Every section is trimmed at token granularity.
+ */
+public class PromptBudget {
+
+    /** Counts and trims text in the loaded model's tokens. */
+    public interface Tokenizer {
+        int countTokens(String text);
+
+        /** The first (or, with keepEnd, the last) maxTokens tokens of text. */
+        String keepTokens(String text, int maxTokens, boolean keepEnd);
+    }
+
+    /** Share of the flexible budget memory (the compacted summary) may take. */
+    static final double MEMORY_SHARE = 0.15;
+    /** Share of the flexible budget recent conversation turns may take. */
+    static final double HISTORY_SHARE = 0.35;
+    /** Chat template markers around each section. */
+    static final int SECTION_OVERHEAD_TOKENS = 8;
+
+    private final int contextTokens;
+    private final int generationReserve;
+
+    public PromptBudget(int contextTokens, int generationReserve) {
+        this.contextTokens = contextTokens;
+        this.generationReserve = generationReserve;
+    }
+
+    /** Prompt sections after trimming, with their token counts. */
+    public static class Allocation {
+        public final String system;
+        public final String memory;
+        public final String screen;
+        /** Oldest first, like the input. */
+        public final List<String> history;
+        public final String query;
+        public final int promptTokens;
+        /** Turns left out (oldest first) because history was over its share. */
+        public final int droppedTurns;
+
+        Allocation(String system, String memory, String screen, List<String> history,
+                   String query, int promptTokens, int droppedTurns) {
+            this.system = system;
+            this.memory = memory;
+            this.screen = screen;
+            this.history = history;
+            this.query = query;
+            this.promptTokens = promptTokens;
+            this.droppedTurns = droppedTurns;
+        }
+    }
+
+    /**
+     * Trims the sections to fit. Null or empty sections cost nothing.
+     */
+    public Allocation allocate(Tokenizer tokenizer, String system, String memory, String screen,
+                               List<String> history, String query) {
+        int available = contextTokens - generationReserve - 5 * SECTION_OVERHEAD_TOKENS;
+        int used = 0;
+
+        // The system prompt is short in practice; never let it take over half
+        Section sys = Section.fit(tokenizer, system, available / 2);
+        available -= sys.tokens;
+        used += sys.tokens;
+
+        Section q = Section.fit(tokenizer, query, available / 2);
+        available -= q.tokens;
+        used += q.tokens;
+
+        Section mem = Section.fit(tokenizer, memory, (int) (available * MEMORY_SHARE));
+        used += mem.tokens;
+
+        // Newest turns first; a single turn too long for the share keeps its end
+        int historyCap = (int) (available * HISTORY_SHARE);
+        List<String> kept = new ArrayList<>();
+        int historyTokens = 0;
+        int dropped = 0;
+        int count = history == null ? 0 : history.size();
+        for (int i = count - 1; i >= 0; i--) {
+            String turn = history.get(i);
+            int tokens = tokenizer.countTokens(turn);
+            if (historyTokens + tokens <= historyCap) {
+                kept.add(turn);
+                historyTokens += tokens;
+            } else if (kept.isEmpty() && historyCap > 0) {
+                kept.add(tokenizer.keepTokens(turn, historyCap, true));
+                historyTokens = historyCap;
+                dropped = i;
+                break;
+            } else {
+                dropped = i + 1;
+                break;
+            }
+        }
+        Collections.reverse(kept);
+        used += historyTokens;
+
+        Section scr = Section.fit(tokenizer, screen, available - mem.tokens - historyTokens);
+        used += scr.tokens;
+
+        return new Allocation(sys.text, mem.text, scr.text, kept, q.text, used, dropped);
+    }
+
+    private static class Section {
+        final String text;
+        final int tokens;
+
+        Section(String text, int tokens) {
+            this.text = text;
+            this.tokens = tokens;
+        }
+
+        /** Keeps the start of text, up to maxTokens. */
+        static Section fit(Tokenizer tokenizer, String text, int maxTokens) {
+            if (text == null || text.isEmpty() || maxTokens <= 0) return new Section("", 0);
+            int tokens = tokenizer.countTokens(text);
+            if (tokens <= maxTokens) return new Section(text, tokens);
+            return new Section(tokenizer.keepTokens(text, maxTokens, false), maxTokens);
+        }
+    }
+
+    /**
+     * Stand-in for backends without a tokenizer on the device. Assumes one
+     * token per 3 UTF-8 bytes, which overestimates English and roughly
+     * matches CJK, so estimates err towards shorter prompts.
+     */
+    public static class EstimatingTokenizer implements Tokenizer {
+        static final int BYTES_PER_TOKEN = 3;
+
+        @Override
+        public int countTokens(String text) {
+            return (text.getBytes(StandardCharsets.UTF_8).length + BYTES_PER_TOKEN - 1) / BYTES_PER_TOKEN;
+        }
+
+        @Override
+        public String keepTokens(String text, int maxTokens, boolean keepEnd) {
+            int budget = maxTokens * BYTES_PER_TOKEN;
+            int bytes = 0;
+            int n = text.length();
+            for (int i = 0; i < n; ) {
+                int index = keepEnd ? n - 1 - i : i;
+                int cp = keepEnd ? text.codePointBefore(index + 1) : text.codePointAt(index);
+                int size = cp < 0x80 ? 1 : cp < 0x800 ? 2 : cp < 0x10000 ? 3 : 4;
+                if (bytes + size > budget) {
+                    return keepEnd ? text.substring(n - i) : text.substring(0, i);
+                }
+                bytes += size;
+                i += Character.charCount(cp);
+            }
+            return text;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.abettergemini.assistant;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Requests waiting for one inference engine, taken in priority order (a
+ * voice session before chat, chat before background work like compaction)
+ * and first come, first served within a priority. A request identical to
+ * one already queued or running joins it rather than generating again.
+ * Records how long each request waited to start. Only the bookkeeping, so
+ * it can be tested without an engine: EngineScheduler runs the consumer.
+ *
+ * @param <T> what runs the request
+ * @param <W> who is waiting for its result
+ */
+public class RequestScheduler<T, W> {
+
+    public enum Priority {
+        /** The assistant overlay, opened by voice or gesture; the user is watching. */
+        VOICE,
+        /** A chat message. */
+        CHAT,
+        /** Work the user didn't ask for directly, e.g. compacting memory. */
+        BACKGROUND
+    }
+
+    /** A queued or running request and everyone waiting for it. */
+    public static final class Ticket<T, W> {
+        public final String key;
+        public final T task;
+        private final long seq;
+        private final long enqueuedMs;
+        private Priority priority;
+        private long startedMs = -1;
+        private final List<W> waiters = new ArrayList<>();
+
+        Ticket(String key, T task, Priority priority, long seq, long enqueuedMs) {
+            this.key = key;
+            this.task = task;
+            this.priority = priority;
+            this.seq = seq;
+            this.enqueuedMs = enqueuedMs;
+        }
+
+        public synchronized Priority getPriority() {
+            return priority;
+        }
+
+        public synchronized boolean isStarted() {
+            return startedMs >= 0;
+        }
+
+        /** Time from submission until the request started, -1 while queued. */
+        public synchronized long waitMs() {
+            return startedMs >= 0 ? startedMs - enqueuedMs : -1;
+        }
+    }
+
+    private final List<Ticket<T, W>> queued = new ArrayList<>();
+    // Queued and running tickets a duplicate can join, by key
+    private final Map<String, Ticket<T, W>> byKey = new HashMap<>();
+    private int running;
+    private long nextSeq;
+    private final int[] started = new int[Priority.values().length];
+    private final long[] totalWaitMs = new long[Priority.values().length];
+    private final long[] maxWaitMs = new long[Priority.values().length];
+    private int joined;
+
+    /**
+     * Queues {@code task} for {@code waiter}, or adds the waiter to the
+     * request already queued or running under the same non-null
+     * {@code key}; a queued request then takes the higher of the two
+     * priorities. Returns the ticket the waiter is on.
+     */
+    public synchronized Ticket<T, W> submit(String key, Priority priority, T task, W waiter, long nowMs) {
+        Ticket<T, W> ticket = key != null ? byKey.get(key) : null;
+        if (ticket != null) {
+            joined++;
+            synchronized (ticket) {
+                ticket.waiters.add(waiter);
+                if (!ticket.isStarted() && priority.compareTo(ticket.priority) < 0) ticket.priority = priority;
+            }
+            return ticket;
+        }
+        ticket = new Ticket<>(key, task, priority, nextSeq++, nowMs);
+        ticket.waiters.add(waiter);
+        queued.add(ticket);
+        if (key != null) byKey.put(key, ticket);
+        return ticket;
+    }
+
+    /**
+     * Takes the next request to run, marking it started, or null if none
+     * is queued. Its wait counts toward the stats of its priority.
+     */
+    public synchronized Ticket<T, W> poll(long nowMs) {
+        Ticket<T, W> next = null;
+        for (Ticket<T, W> t : queued) {
+            if (next == null || t.getPriority().compareTo(next.getPriority()) < 0
+                    || (t.getPriority() == next.getPriority() && t.seq < next.seq)) {
+                next = t;
+            }
+        }
+        if (next == null) return null;
+        queued.remove(next);
+        running++;
+        synchronized (next) {
+            next.startedMs = nowMs;
+        }
+        int p = next.getPriority().ordinal();
+        long wait = next.waitMs();
+        started[p]++;
+        totalWaitMs[p] += wait;
+        maxWaitMs[p] = Math.max(maxWaitMs[p], wait);
+        return next;
+    }
+
+    /** Who is waiting for {@code ticket} now. */
+    public synchronized List<W> waiters(Ticket<T, W> ticket) {
+        synchronized (ticket) {
+            return new ArrayList<>(ticket.waiters);
+        }
+    }
+
+    /**
+     * Ends a running request: duplicates no longer join it. Returns its
+     * waiters, to hand the result to.
+     */
+    public synchronized List<W> finish(Ticket<T, W> ticket) {
+        if (ticket.key != null && byKey.get(ticket.key) == ticket) byKey.remove(ticket.key);
+        if (ticket.isStarted()) running--;
+        List<W> out = waiters(ticket);
+        synchronized (ticket) {
+            ticket.waiters.clear();
+        }
+        return out;
+    }
+
+    /**
+     * Removes {@code waiter} from {@code ticket}; a queued request nobody
+     * waits for any more is dropped. Returns false if the waiter had already
+     * left or the request already finished.
+     */
+    public synchronized boolean leave(Ticket<T, W> ticket, W waiter) {
+        boolean empty;
+        synchronized (ticket) {
+            if (!ticket.waiters.remove(waiter)) return false;
+            empty = ticket.waiters.isEmpty();
+        }
+        if (empty && !ticket.isStarted()) {
+            queued.remove(ticket);
+            if (ticket.key != null && byKey.get(ticket.key) == ticket) byKey.remove(ticket.key);
+        }
+        return true;
+    }
+
+    public synchronized int queuedCount() {
+        return queued.size();
+    }
+
+    public synchronized int runningCount() {
+        return running;
+    }
+
+    /** Mean wait of the requests of {@code priority} started so far, in ms. */
+    public synchronized long averageWaitMs(Priority priority) {
+        int p = priority.ordinal();
+        return started[p] > 0 ? totalWaitMs[p] / started[p] : 0;
+    }
+
+    public synchronized long maxWaitMs(Priority priority) {
+        return maxWaitMs[priority.ordinal()];
+    }
+
+    /** Requests that joined an identical one instead of generating. */
+    public synchronized int joinedCount() {
+        return joined;
+    }
+
+    /** e.g. "1 queued, 2 running · chat 3 avg 420ms max 900ms · 1 joined". */
+    public synchronized String summary() {
+        StringBuilder sb = new StringBuilder(String.format(Locale.US, "%d queued, %d running", queued.size(), running));
+        for (Priority priority : Priority.values()) {
+            int p = priority.ordinal();
+            if (started[p] == 0) continue;
+            sb.append(String.format(Locale.US, " · %s %d avg %dms max %dms", priority.name().toLowerCase(Locale.ROOT),
+                    started[p], totalWaitMs[p] / started[p], maxWaitMs[p]));
+        }
+        if (joined > 0) sb.append(" · ").append(joined).append(" joined");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,320 @@
+package com.abettergemini.assistant;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Replies kept in SQLite (see MemoryManager) so repeated requests, like the
+ * overlay's "Analyze this screen." over an unchanged screen, are answered
+ * without generating again. Entries are keyed by the model that answered,
+ * persona, normalized prompt and a hash of everything else the reply
+ * depends on (context, whether tool calls were on); they expire after
+ * {@link #TTL_MS} and the least recently used go beyond
+ * {@link #MAX_ENTRIES}. Questions whose answer changes with the day
+ * ("weather today", "latest news") are never cached.
+ *
+ * <p>The optional similarity tier also matches rephrasings of a cached
+ * question in the same context: close hashed word and trigram vectors,
+ * and the same words in the same order once question phrasing ("what is",
+ * "please") is dropped. Only long words may differ, by a single typo, so
+ * "whats the capitol of france" finds "what is the capital of France"
+ * while "what is a cat" doesn't find "what is a car" and "convert cm to
+ * in" doesn't find "convert in to cm".
+ */
+public class ResponseCache {
+    public static final long TTL_MS = 6L * 60 * 60 * 1000;
+    public static final int MAX_ENTRIES = 200;
+    /** Cosine similarity a rephrasing needs to be compared word by word. */
+    public static final double SIMILARITY_THRESHOLD = 0.6;
+    static final int EMBEDDING_DIMS = 256;
+
+    // Shorter words must match exactly: one letter turns cat into car
+    static final int TYPO_MIN_LENGTH = 7;
+    // Words of prompts whose answer goes stale within hours
+    private static final String[] TIME_SENSITIVE = {
+            "today", "today's", "tonight", "tomorrow", "yesterday", "now", "currently", "current", "latest",
+            "recent", "news", "weather", "forecast", "time", "date", "score", "scores", "price", "prices",
+            "stock", "stocks", "week", "weekend"
+    };
+    // Question phrasing a rephrasing may add, drop or contract
+    private static final String[] FILLER = {
+            "a", "an", "the", "is", "are", "what", "what's", "whats", "me", "please", "tell",
+            "can", "could", "would", "you", "hey", "so", "just"
+    };
+
+    /** A stored reply, as read back for a lookup. */
+    public static final class Entry {
+        public final String key;
+        public final String prompt;
+        public final String response;
+        public final long generationMs;
+        public final float[] embedding;
+
+        public Entry(String key, String prompt, String response, long generationMs, float[] embedding) {
+            this.key = key;
+            this.prompt = prompt;
+            this.response = response;
+            this.generationMs = generationMs;
+            this.embedding = embedding;
+        }
+    }
+
+    /** A reply found in the cache. */
+    public static final class Hit {
+        public final String response;
+        /** How long the reply originally took to generate. */
+        public final long generationMs;
+        /** 1 for an exact match, else the similarity of the rephrasing. */
+        public final double similarity;
+
+        Hit(String response, long generationMs, double similarity) {
+            this.response = response;
+            this.generationMs = generationMs;
+            this.similarity = similarity;
+        }
+
+        public boolean isExact() {
+            return similarity >= 1;
+        }
+    }
+
+    /** Lookups since install and the generation time hits saved. */
+    public static final class Stats {
+        public final long hits;
+        public final long similarHits;
+        public final long misses;
+        public final long savedMs;
+
+        public Stats(long hits, long similarHits, long misses, long savedMs) {
+            this.hits = hits;
+            this.similarHits = similarHits;
+            this.misses = misses;
+            this.savedMs = savedMs;
+        }
+
+        public double hitRate() {
+            long total = hits + misses;
+            return total > 0 ? (double) hits / total : 0;
+        }
+
+        /** e.g. "12/40 hits (30%), 3 similar, saved 48s". */
+        public String summary() {
+            return String.format(Locale.US, "%d/%d hits (%.0f%%), %d similar, saved %ds",
+                    hits, hits + misses, hitRate() * 100, similarHits, savedMs / 1000);
+        }
+    }
+
+    private final MemoryManager db;
+
+    public ResponseCache(MemoryManager db) {
+        this.db = db;
+    }
+
+    /**
+     * The cached reply for {@code prompt} from the first of {@code models}
+     * that has one, or null: the selected model, then a router model that
+     * may have answered in its place. With {@code similar} a rephrasing of
+     * a cached prompt in the same context counts too. Counts the lookup in
+     * the stats. Reads the database: call off the main thread.
+     */
+    public Hit lookup(List<String> models, String persona, String prompt, String contextHash, boolean similar) {
+        long now = System.currentTimeMillis();
+        String normalized = normalize(prompt);
+        Hit hit = null;
+        String usedKey = null;
+        for (String model : models) {
+            Entry exact = db.findCachedResponse(key(model, persona, normalized, contextHash), now - TTL_MS);
+            if (exact != null) {
+                hit = new Hit(exact.response, exact.generationMs, 1);
+                usedKey = exact.key;
+                break;
+            }
+        }
+        if (hit == null && similar) {
+            float[] embedding = embed(normalized);
+            Entry best = null;
+            double bestSimilarity = SIMILARITY_THRESHOLD;
+            for (String model : models) {
+                for (Entry e : db.findCachedResponses(group(model, persona, contextHash), now - TTL_MS)) {
+                    if (e.embedding == null || !sameMeaning(normalized, e.prompt)) continue;
+                    double s = cosine(embedding, e.embedding);
+                    if (s >= bestSimilarity) {
+                        bestSimilarity = s;
+                        best = e;
+                    }
+                }
+            }
+            if (best != null) {
+                hit = new Hit(best.response, best.generationMs, Math.min(bestSimilarity, 0.999));
+                usedKey = best.key;
+            }
+        }
+        if (hit != null) {
+            db.touchCachedResponse(usedKey, now);
+            db.recordCacheLookup(true, !hit.isExact(), hit.generationMs);
+        } else {
+            db.recordCacheLookup(false, false, 0);
+        }
+        return hit;
+    }
+
+    /** Keeps {@code response}, which {@code model} took {@code generationMs} to generate. */
+    public void store(String model, String persona, String prompt, String contextHash,
+                      String response, long generationMs) {
+        String normalized = normalize(prompt);
+        db.cacheResponse(new Entry(key(model, persona, normalized, contextHash), normalized, response,
+                        generationMs, embed(normalized)), group(model, persona, contextHash),
+                System.currentTimeMillis(), TTL_MS, MAX_ENTRIES);
+    }
+
+    public Stats stats() {
+        return db.getCacheStats();
+    }
+
+    public void clear() {
+        db.clearResponseCache();
+    }
+
+    /** Whether replies to {@code prompt} may be cached: not if they depend on when it's asked. */
+    public static boolean isCacheable(String prompt) {
+        for (String word : normalize(prompt).split("[^\\p{L}\\p{N}']+")) {
+            for (String t : TIME_SENSITIVE) {
+                if (t.equals(word)) return false;
+            }
+        }
+        return true;
+    }
+
+    /** Lowercased, whitespace collapsed, trailing punctuation dropped. */
+    static String normalize(String prompt) {
+        String s = prompt.trim().toLowerCase(Locale.ROOT).replaceAll("\\s+", " ");
+        int end = s.length();
+        while (end > 0 && ".!?".indexOf(s.charAt(end - 1)) >= 0) end--;
+        return s.substring(0, end).trim();
+    }
+
+    /** Hex SHA-256 of {@code parts}, e.g. a persona or screen context. */
+    public static String hash(String... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String part : parts) {
+                if (part != null) digest.update(part.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String key(String model, String persona, String normalizedPrompt, String contextHash) {
+        return hash(model, persona, normalizedPrompt, contextHash);
+    }
+
+    // Entries that a rephrasing may match: same model, persona and context
+    static String group(String model, String persona, String contextHash) {
+        return hash(model, persona, contextHash);
+    }
+
+    /**
+     * Unit vector of hashed word unigrams and character trigrams. Cheap
+     * enough to run on every lookup, and close for rewordings and typos.
+     */
+    static float[] embed(String normalized) {
+        float[] v = new float[EMBEDDING_DIMS];
+        for (String word : normalized.split("[^\\p{L}\\p{N}']+")) {
+            if (word.isEmpty()) continue;
+            v[Math.floorMod(word.hashCode(), EMBEDDING_DIMS)] += 2;
+            String padded = " " + word + " ";
+            for (int i = 0; i + 3 <= padded.length(); i++) {
+                v[Math.floorMod(padded.substring(i, i + 3).hashCode() * 31 + 7, EMBEDDING_DIMS)] += 1;
+            }
+        }
+        double norm = 0;
+        for (float x : v) norm += x * x;
+        if (norm > 0) {
+            float inv = (float) (1 / Math.sqrt(norm));
+            for (int i = 0; i < v.length; i++) v[i] *= inv;
+        }
+        return v;
+    }
+
+    static double cosine(float[] a, float[] b) {
+        if (a.length != b.length) return 0;
+        double dot = 0;
+        for (int i = 0; i < a.length; i++) dot += a[i] * b[i];
+        return dot; // both are unit vectors
+    }
+
+    /**
+     * Whether two prompts can share a reply: the same words in the same
+     * order apart from {@link #FILLER}, where words of at least
+     * {@link #TYPO_MIN_LENGTH} letters may be one edit apart.
+     */
+    static boolean sameMeaning(String a, String b) {
+        List<String> x = contentWords(a);
+        List<String> y = contentWords(b);
+        if (x.size() != y.size()) return false;
+        for (int i = 0; i < x.size(); i++) {
+            String u = x.get(i);
+            String v = y.get(i);
+            if (u.equals(v)) continue;
+            if (u.length() < TYPO_MIN_LENGTH || v.length() < TYPO_MIN_LENGTH || editDistance(u, v) > 1) return false;
+        }
+        return true;
+    }
+
+    private static List<String> contentWords(String normalized) {
+        List<String> out = new ArrayList<>();
+        for (String word : normalized.split("[^\\p{L}\\p{N}']+")) {
+            if (!word.isEmpty() && !isFiller(word)) out.add(word);
+        }
+        return out;
+    }
+
+    private static boolean isFiller(String word) {
+        for (String f : FILLER) {
+            if (f.equals(word)) return true;
+        }
+        return false;
+    }
+
+    static int editDistance(String a, String b) {
+        int[] prev = new int[b.length() + 1];
+        int[] cur = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) prev[j] = j;
+        for (int i = 1; i <= a.length(); i++) {
+            cur[0] = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int sub = prev[j - 1] + (a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1);
+                cur[j] = Math.min(sub, Math.min(prev[j], cur[j - 1]) + 1);
+            }
+            int[] t = prev;
+            prev = cur;
+            cur = t;
+        }
+        return prev[b.length()];
+    }
+
+    static byte[] toBytes(float[] v) {
+        ByteBuffer buffer = ByteBuffer.allocate(v.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+        for (float x : v) buffer.putFloat(x);
+        return buffer.array();
+    }
+
+    static float[] fromBytes(byte[] bytes) {
+        if (bytes == null) return null;
+        ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        float[] v = new float[bytes.length / 4];
+        for (int i = 0; i < v.length; i++) v[i] = buffer.getFloat();
+        return v;
+    }
+}
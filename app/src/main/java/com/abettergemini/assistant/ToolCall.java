@@ -0,0 +1,159 @@
+package com.abettergemini.assistant;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A tool call in the compact structured format the model is asked for:
+ * {@code {"tool":"launch","arg":"Spotify"}} or
+ * {@code {"tool":"search","arg":"weather in Oslo"}}. llama.cpp enforces it
+ * with {@link #GRAMMAR} and remote backends with {@link #JSON_SCHEMA}, so a
+ * small model can't wander off into prose halfway through a call. The older
+ * [LAUNCH:...] / [SEARCH:...] tags are still understood.
+ */
+public final class ToolCall {
+    public static final String LAUNCH = "launch";
+    public static final String SEARCH = "search";
+    /** Plain answers under {@link #JSON_SCHEMA}, where every reply is JSON. */
+    public static final String REPLY = "reply";
+
+    /**
+     * GBNF for llama.cpp: either one call and nothing after it, or a normal
+     * answer that never contains '{', so a call can't start mid-reply.
+     */
+    public static final String GRAMMAR =
+            "root  ::= [ \\n]* (call | reply)\n"
+            + "call  ::= \"{\\\"tool\\\":\\\"\" name \"\\\",\\\"arg\\\":\\\"\" arg \"\\\"}\"\n"
+            + "name  ::= \"" + LAUNCH + "\" | \"" + SEARCH + "\"\n"
+            + "arg   ::= [^\"\\\\\\x00-\\x1F]{1,100}\n"
+            + "reply ::= [^{ \\n] [^{]*\n";
+
+    /**
+     * JSON schema for OpenAI-compatible {@code response_format}. Servers
+     * that honour it can only answer with JSON, so plain replies come back
+     * as {@code {"tool":"reply","arg":"..."}} and are unwrapped by
+     * {@link #unwrapReply}.
+     */
+    public static final String JSON_SCHEMA =
+            "{\"type\":\"object\",\"properties\":{"
+            + "\"tool\":{\"type\":\"string\",\"enum\":[\"" + LAUNCH + "\",\"" + SEARCH + "\",\"" + REPLY + "\"]},"
+            + "\"arg\":{\"type\":\"string\"}},"
+            + "\"required\":[\"tool\",\"arg\"],\"additionalProperties\":false}";
+
+    /** Appended to the system prompt so the model knows the format. */
+    public static final String INSTRUCTIONS =
+            "To open an app, reply with only {\"tool\":\"" + LAUNCH + "\",\"arg\":\"<app name>\"}. "
+            + "To look something up online, reply with only {\"tool\":\"" + SEARCH + "\",\"arg\":\"<query>\"}. "
+            + "Otherwise answer normally.";
+
+    private static final Pattern JSON_PATTERN = Pattern.compile(
+            "\\{\\s*\"tool\"\\s*:\\s*\"(\\w+)\"\\s*,\\s*\"arg\"\\s*:\\s*\"((?:[^\"\\\\]|\\\\.)*)\"\\s*\\}");
+    private static final Pattern LAUNCH_TAG = Pattern.compile("\\[LAUNCH:(.+?)\\]", Pattern.CASE_INSENSITIVE);
+    private static final Pattern SEARCH_TAG = Pattern.compile("\\[SEARCH:(.+?)\\]", Pattern.CASE_INSENSITIVE);
+
+    public final String tool;
+    public final String arg;
+
+    ToolCall(String tool, String arg) {
+        this.tool = tool;
+        this.arg = arg;
+    }
+
+    /**
+     * The first launch or search call in the response, structured or tagged,
+     * or null if there is none.
+     */
+    public static ToolCall find(String response) {
+        Matcher json = JSON_PATTERN.matcher(response);
+        while (json.find()) {
+            String tool = json.group(1);
+            if (LAUNCH.equals(tool) || SEARCH.equals(tool)) {
+                return new ToolCall(tool, unescape(json.group(2)).trim());
+            }
+        }
+        Matcher launch = LAUNCH_TAG.matcher(response);
+        if (launch.find()) return new ToolCall(LAUNCH, launch.group(1).trim());
+        Matcher search = SEARCH_TAG.matcher(response);
+        if (search.find()) return new ToolCall(SEARCH, search.group(1).trim());
+        return null;
+    }
+
+    /** The response without any calls, for display. */
+    public static String strip(String response) {
+        String cleaned = JSON_PATTERN.matcher(response).replaceAll("");
+        cleaned = LAUNCH_TAG.matcher(cleaned).replaceAll("");
+        cleaned = SEARCH_TAG.matcher(cleaned).replaceAll("");
+        return cleaned.trim();
+    }
+
+    /**
+     * If the response is a {@link #REPLY} object (a JSON-only backend's
+     * plain answer) its text, otherwise the response unchanged.
+     */
+    public static String unwrapReply(String response) {
+        Matcher json = JSON_PATTERN.matcher(response.trim());
+        if (json.matches() && REPLY.equals(json.group(1))) {
+            return unescape(json.group(2));
+        }
+        return response;
+    }
+
+    /**
+     * Whether text starts with a JSON object that is already closed, so a
+     * streamed call can be cut off without waiting for the end of the stream.
+     */
+    public static boolean isCompleteObject(CharSequence text) {
+        int i = 0;
+        int n = text.length();
+        while (i < n && Character.isWhitespace(text.charAt(i))) i++;
+        if (i == n || text.charAt(i) != '{') return false;
+        int depth = 0;
+        boolean inString = false;
+        for (; i < n; i++) {
+            char c = text.charAt(i);
+            if (inString) {
+                if (c == '\\') i++;
+                else if (c == '"') inString = false;
+            } else if (c == '"') {
+                inString = true;
+            } else if (c == '{') {
+                depth++;
+            } else if (c == '}' && --depth == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String unescape(String s) {
+        if (s.indexOf('\\') < 0) return s;
+        StringBuilder out = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c != '\\' || i + 1 == s.length()) {
+                out.append(c);
+                continue;
+            }
+            char e = s.charAt(++i);
+            switch (e) {
+                case 'n': out.append('\n'); break;
+                case 't': out.append('\t'); break;
+                case 'r': out.append('\r'); break;
+                case 'u':
+                    if (i + 4 < s.length()) {
+                        try {
+                            out.append((char) Integer.parseInt(s.substring(i + 1, i + 5), 16));
+                            i += 4;
+                            break;
+                        } catch (NumberFormatException ignored) {
+                            // fall through to the literal character
+                        }
+                    }
+                    out.append(e);
+                    break;
+                default: out.append(e);
+            }
+        }
+        return out.toString();
+    }
+}
@@ -4,6 +4,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
+import android.net.Uri;
 import android.util.Log;
 
 import org.jsoup.Jsoup;
@@ -15,46 +16,40 @@ import java.io.IOException;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class ToolExecutor {
     private static final String TAG = "ToolExecutor";
-    private static final Pattern LAUNCH_PATTERN = Pattern.compile("\\[LAUNCH:(.+?)\\]", Pattern.CASE_INSENSITIVE);
-    private static final Pattern SEARCH_PATTERN = Pattern.compile("\\[SEARCH:(.+?)\\]", Pattern.CASE_INSENSITIVE);
 
     /**
-     * Check if the LLM response contains a LAUNCH command and execute it.
+     * Check if the LLM response contains a launch call and execute it.
      * Returns true if an app was launched.
      */
     public static boolean handleLaunch(Context context, String response) {
-        Matcher matcher = LAUNCH_PATTERN.matcher(response);
-        if (matcher.find()) {
-            String appName = matcher.group(1).trim();
-            return launchApp(context, appName);
+        ToolCall call = ToolCall.find(response);
+        if (call != null && ToolCall.LAUNCH.equals(call.tool)) {
+            return launchApp(context, call.arg);
         }
         return false;
     }
 
     /**
-     * Check if the LLM response contains a SEARCH command.
-     * Returns the search query, or null if no command found.
+     * Check if the LLM response contains a search call.
+     * Returns the search query, or null if no call found.
      */
     public static String extractSearchQuery(String response) {
-        Matcher matcher = SEARCH_PATTERN.matcher(response);
-        if (matcher.find()) {
-            return matcher.group(1).trim();
+        ToolCall call = ToolCall.find(response);
+        if (call != null && ToolCall.SEARCH.equals(call.tool)) {
+            return call.arg;
         }
         return null;
     }
 
     /**
-     * Strip all [LAUNCH:...] and [SEARCH:...] tags from the response for clean display.
+     * Strip all tool calls ({"tool":...} objects and [LAUNCH:...]/[SEARCH:...]
+     * tags) from the response for clean display.
      */
     public static String stripCommands(String response) {
-        String cleaned = LAUNCH_PATTERN.matcher(response).replaceAll("");
-        cleaned = SEARCH_PATTERN.matcher(cleaned).replaceAll("");
-        return cleaned.trim();
+        return ToolCall.strip(response);
     }
 
     /**
@@ -97,6 +92,22 @@ public class ToolExecutor {
         return false;
     }
 
+    /**
+     * Open a web page in the default browser. Returns false if no app can.
+     */
+    public static boolean openUrl(Context context, String url) {
+        Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse(url));
+        intent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        try {
+            context.startActivity(intent);
+            Log.d(TAG, "Opened: " + url);
+            return true;
+        } catch (android.content.ActivityNotFoundException e) {
+            Log.w(TAG, "No app to open " + url);
+            return false;
+        }
+    }
+
     /**
      * Search DuckDuckGo's static HTML endpoint and return the top results as text.
      * This runs a network request and MUST be called off the main thread.
@@ -0,0 +1,80 @@
+package com.abettergemini.assistant;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Standard UTF-8 text in a direct ByteBuffer that native code reads and
+ * writes in place. JNI's String functions use modified UTF-8, which breaks
+ * characters outside the BMP (emoji) and copies every prompt twice; this
+ * buffer and its decoder are reused instead. Not thread-safe.
+ */
+public class Utf8Buffer {
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final boolean growable;
+    private ByteBuffer buffer;
+    private CharBuffer chars = CharBuffer.allocate(256);
+
+    /**
+     * @param capacity initial size in bytes
+     * @param growable whether {@link #encode} may replace the buffer with a
+     *                 larger one; output buffers handed to native code must not
+     */
+    public Utf8Buffer(int capacity, boolean growable) {
+        this.buffer = ByteBuffer.allocateDirect(capacity);
+        this.growable = growable;
+    }
+
+    /** The current direct buffer. Replaced when an encode needs more room. */
+    public ByteBuffer buffer() {
+        return buffer;
+    }
+
+    /**
+     * Make the buffer hold at least {@code bytes}, replacing it (contents
+     * dropped) if needed. Used before native code writes into it.
+     */
+    public ByteBuffer ensureCapacity(int bytes) {
+        if (bytes > buffer.capacity()) {
+            if (!growable) throw new IllegalStateException("Text does not fit a fixed Utf8Buffer");
+            buffer = ByteBuffer.allocateDirect(Math.max(bytes, buffer.capacity() * 2));
+        }
+        return buffer;
+    }
+
+    /**
+     * Encode {@code text} at the start of the buffer and return its length in
+     * bytes. Unpaired surrogates become '?'. String.getBytes plus one bulk
+     * put beats a CharsetEncoder writing into the direct buffer (see
+     * Utf8BufferBenchmark); only the short-lived byte[] is allocated.
+     */
+    public int encode(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ensureCapacity(bytes.length);
+        buffer.clear();
+        buffer.put(bytes);
+        return bytes.length;
+    }
+
+    /**
+     * Decode the first {@code length} bytes and append them to {@code out}.
+     * Native code only hands over complete characters; a truncated sequence
+     * at the very end of a response becomes U+FFFD.
+     */
+    public void decodeTo(int length, StringBuilder out) {
+        if (length > chars.capacity()) chars = CharBuffer.allocate(Math.max(length, chars.capacity() * 2));
+        buffer.clear();
+        buffer.limit(length);
+        chars.clear();
+        decoder.reset();
+        decoder.decode(buffer, chars, true);
+        decoder.flush(chars);
+        chars.flip();
+        out.append(chars);
+    }
+}
@@ -0,0 +1,25 @@
+package com.abettergemini.assistant;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class BenchmarkResultTest {
+
+    @Test
+    public void testQuantizationFromFileName() {
+        assertEquals("Q4_K_M", BenchmarkResult.quantizationOf("Qwen2-VL-2B-Instruct-Q4_K_M.gguf"));
+        assertEquals("Q8_0", BenchmarkResult.quantizationOf("mmproj-Qwen2-VL-2B-Instruct-Q8_0.gguf"));
+        assertEquals("Q4_K_M", BenchmarkResult.quantizationOf("qwen2.5-0.5b-instruct-q4_k_m.gguf"));
+        assertEquals("", BenchmarkResult.quantizationOf("model.gguf"));
+    }
+
+    @Test
+    public void testRates() {
+        BenchmarkResult r = new BenchmarkResult(0, "m", "Q4_0", "F16", 4, 4, 512, 64, 3,
+                2_000_000, 100_000, 4_000_000, 0, 900, 0, 0);
+        assertEquals(256.0, r.promptTokensPerSecond(), 1e-9);
+        assertEquals(16.0, r.generationTokensPerSecond(), 1e-9);
+        assertEquals(12.8, BenchmarkResult.rateStdDev(256.0, 2_000_000, 100_000), 1e-9);
+        assertTrue(r.summary().contains("pp512 256.0 ± 12.8 t/s"));
+    }
+}
@@ -0,0 +1,25 @@
+package com.abettergemini.assistant;
+
+import org.junit.Test;
+import java.util.Arrays;
+import static org.junit.Assert.*;
+
+public class ChatMessageTest {
+
+    @Test
+    public void testChatMlLayout() {
+        String prompt = ChatMessage.toChatMl(Arrays.asList(
+                new ChatMessage(ChatMessage.SYSTEM, "Be brief."),
+                new ChatMessage(ChatMessage.USER, "Hi")), true);
+        assertEquals("<|im_start|>system\nBe brief.<|im_end|>\n"
+                + "<|im_start|>user\nHi<|im_end|>\n"
+                + "<|im_start|>assistant\n", prompt);
+    }
+
+    @Test
+    public void testChatMlWithoutAssistantTurn() {
+        String prompt = ChatMessage.toChatMl(Arrays.asList(
+                new ChatMessage(ChatMessage.SYSTEM, "Be brief.")), false);
+        assertFalse(prompt.contains("assistant"));
+    }
+}
@@ -0,0 +1,36 @@
+package com.abettergemini.assistant;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ContextSizerTest {
+    private static final long MB = 1024L * 1024;
+    private static final long GB = 1024 * MB;
+
+    @Test
+    public void testLargeDeviceCappedByTrainedContext() {
+        // 8 GB free, 2.3 GB model, 192 KB/token (Phi-3.5 Mini with q8_0)
+        int tokens = ContextSizer.contextTokens(8 * GB, 500 * MB, 2300 * MB, 192 * 1024, 4096, 0);
+        assertEquals(4096, tokens);
+    }
+
+    @Test
+    public void testSmallDeviceScalesDown() {
+        // 3 GB free: (3072 - 300 - 1600 - 512) MB / 2 = 330 MB for the cache
+        int tokens = ContextSizer.contextTokens(3 * GB, 300 * MB, 1600 * MB, 192 * 1024, 131072, 0);
+        assertEquals(1536, tokens);
+        assertEquals(0, tokens % ContextSizer.STEP);
+    }
+
+    @Test
+    public void testNoHeadroomStillGetsMinimum() {
+        int tokens = ContextSizer.contextTokens(1 * GB, 300 * MB, 2300 * MB, 192 * 1024, 4096, 0);
+        assertEquals(ContextSizer.MIN_CONTEXT, tokens);
+    }
+
+    @Test
+    public void testOverrideWinsUpToTrainedContext() {
+        assertEquals(2048, ContextSizer.contextTokens(1 * GB, 300 * MB, 2300 * MB, 192 * 1024, 4096, 2048));
+        assertEquals(4096, ContextSizer.contextTokens(8 * GB, 300 * MB, 2300 * MB, 192 * 1024, 4096, 8192));
+    }
+}
@@ -0,0 +1,63 @@
+package com.abettergemini.assistant;
+
+import org.junit.Test;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.*;
+
+public class GenerationHandleTest {
+
+    @Test
+    public void testCancelRunsAbortAction() {
+        GenerationHandle handle = new GenerationHandle();
+        AtomicInteger aborts = new AtomicInteger();
+        handle.setOnCancel(aborts::incrementAndGet);
+
+        assertFalse(handle.isCancelled());
+        handle.cancel();
+        assertTrue(handle.isCancelled());
+        assertEquals(1, aborts.get());
+
+        // Second cancel is a no-op
+        handle.cancel();
+        assertEquals(1, aborts.get());
+    }
+
+    @Test
+    public void testActionSetAfterCancelRunsImmediately() {
+        GenerationHandle handle = new GenerationHandle();
+        handle.cancel();
+
+        AtomicInteger aborts = new AtomicInteger();
+        handle.setOnCancel(aborts::incrementAndGet);
+        assertEquals("Late action should still abort the work", 1, aborts.get());
+    }
+
+    @Test
+    public void testCancelBeforeHandOffEndsWithError() {
+        GenerationHandle handle = new GenerationHandle();
+        List<Throwable> errors = new ArrayList<>();
+        assertFalse(handle.endIfCancelled(errors::add));
+        assertTrue(errors.isEmpty());
+
+        // Cancelled while the next stage was being picked: nothing to abort yet
+        handle.cancel();
+        assertTrue(handle.endIfCancelled(errors::add));
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0) instanceof CancellationException);
+    }
+
+    @Test
+    public void testClearedActionIsNotRun() {
+        GenerationHandle handle = new GenerationHandle();
+        AtomicInteger aborts = new AtomicInteger();
+        handle.setOnCancel(aborts::incrementAndGet);
+        handle.setOnCancel(null);
+
+        handle.cancel();
+        assertTrue(handle.isCancelled());
+        assertEquals(0, aborts.get());
+    }
+}
@@ -0,0 +1,27 @@
+package com.abettergemini.assistant;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class GenerationStatsTest {
+
+    @Test
+    public void testTokensPerSecondExcludesFirstToken() {
+        // 41 tokens: the first at 500ms, the other 40 over the next 2s
+        GenerationStats stats = new GenerationStats(100, 80, 41, 500, 2500, 0, 0);
+        assertEquals(20.0, stats.getTokensPerSecond(), 0.001);
+        assertEquals(0.0, stats.getAcceptanceRate(), 0.001);
+    }
+
+    @Test
+    public void testAcceptanceRate() {
+        GenerationStats stats = new GenerationStats(100, 0, 50, 400, 2400, 40, 30);
+        assertEquals(0.75, stats.getAcceptanceRate(), 0.001);
+    }
+
+    @Test
+    public void testEmptyGenerationHasNoSpeed() {
+        GenerationStats stats = new GenerationStats(10, 0, 1, 300, 300, 0, 0);
+        assertEquals(0.0, stats.getTokensPerSecond(), 0.001);
+    }
+}
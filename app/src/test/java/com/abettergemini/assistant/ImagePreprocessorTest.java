@@ -0,0 +1,42 @@
+package com.abettergemini.assistant;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class ImagePreprocessorTest {
+
+    private static int[] gradient(int width, int height, int offset) {
+        int[] argb = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int v = Math.min(255, Math.max(0, 255 - x * 255 / width + offset));
+                argb[y * width + x] = 0xFF000000 | (v << 16) | (v << 8) | v;
+            }
+        }
+        return argb;
+    }
+
+    @Test
+    public void testHashIgnoresSmallChanges() {
+        long a = ImagePreprocessor.differenceHash(gradient(90, 80, 0), 90, 80);
+        long b = ImagePreprocessor.differenceHash(gradient(90, 80, 3), 90, 80);
+        assertEquals(a, b);
+        assertNotEquals(0L, a);
+        int[] flipped = gradient(90, 80, 0);
+        for (int i = 0; i < flipped.length; i++) flipped[i] ^= 0x00FFFFFF;
+        assertNotEquals(a, ImagePreprocessor.differenceHash(flipped, 90, 80));
+    }
+
+    @Test
+    public void testArgbToRgb() {
+        ByteBuffer out = ByteBuffer.allocateDirect(6);
+        ImagePreprocessor.argbToRgb(new int[]{0xFF102030, 0x80FFFFFF}, 2, out);
+        assertEquals(6, out.remaining());
+        assertEquals(0x10, out.get(0));
+        assertEquals(0x30, out.get(2));
+        assertEquals((byte) 0xFF, out.get(5));
+    }
+}
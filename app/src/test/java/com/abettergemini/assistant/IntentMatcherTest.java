@@ -0,0 +1,36 @@
+package com.abettergemini.assistant;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class IntentMatcherTest {
+
+    @Test
+    public void testConfidentCommands() {
+        IntentMatcher.Intent launch = IntentMatcher.matchConfident("Open Spotify");
+        assertEquals(IntentMatcher.Kind.LAUNCH, launch.kind);
+        assertEquals("Spotify", launch.arg);
+        assertEquals("Google Maps", IntentMatcher.matchConfident("please launch the Google Maps app").arg);
+
+        IntentMatcher.Intent search = IntentMatcher.matchConfident("search for Cheap flights to Oslo.");
+        assertEquals(IntentMatcher.Kind.SEARCH, search.kind);
+        assertEquals("Cheap flights to Oslo", search.arg);
+
+        assertEquals(IntentMatcher.Kind.URL, IntentMatcher.matchConfident("https://example.com/a?b=1").kind);
+        IntentMatcher.Intent page = IntentMatcher.matchConfident("go to Wikipedia.org");
+        assertEquals(IntentMatcher.Kind.OPEN_URL, page.kind);
+        assertEquals("https://Wikipedia.org", page.arg);
+    }
+
+    @Test
+    public void testFallsBackToModel() {
+        assertNull(IntentMatcher.match("What's the weather like?"));
+        assertNull(IntentMatcher.matchConfident("open it"));
+        assertNull(IntentMatcher.matchConfident("start a timer for ten minutes"));
+        assertNull(IntentMatcher.matchConfident("open the file I sent you yesterday please"));
+        assertNull(IntentMatcher.matchConfident("search my photos for dogs"));
+        assertNull(IntentMatcher.matchConfident("node.js"));
+        assertEquals(IntentMatcher.Kind.LAUNCH, IntentMatcher.match("open it").kind);
+    }
+}
@@ -0,0 +1,39 @@
+package com.abettergemini.assistant;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ModelConfigTest {
+
+    @Test
+    public void testWithMethodsCopyOneSetting() {
+        ModelConfig base = new ModelConfig("Test", "test.gguf", "", 0L, "", ModelConfig.Backend.LLAMA_CPP,
+                false, "~1GB");
+        assertEquals(ModelConfig.KvCacheType.F16, base.kvCacheType);
+        assertArrayEquals(ModelConfig.CHATML_STOPS, base.stopSequences);
+        assertNull(base.draftModel);
+
+        ModelConfig tuned = base.withKvCache(ModelConfig.KvCacheType.Q4_0, true).withStopSequences("<end>");
+        assertEquals(ModelConfig.KvCacheType.Q4_0, tuned.kvCacheType);
+        assertTrue(tuned.flashAttention);
+        assertArrayEquals(new String[]{"<end>"}, tuned.stopSequences);
+        assertEquals("test.gguf", tuned.fileName);
+        // The original is left as it was
+        assertEquals(ModelConfig.KvCacheType.F16, base.kvCacheType);
+        assertArrayEquals(ModelConfig.CHATML_STOPS, base.stopSequences);
+    }
+
+    @Test
+    public void testModelTableKeepsItsOptions() {
+        ModelConfig qwen = ModelConfig.findByName("Qwen2-VL 2B");
+        assertNotNull(qwen.draftModel);
+        assertEquals(4, qwen.draftTokens);
+        assertNotNull(qwen.visionProjector);
+        assertEquals(ModelConfig.KvCacheType.Q8_0, qwen.kvCacheType);
+        assertArrayEquals(ModelConfig.CHATML_STOPS, qwen.stopSequences);
+
+        assertEquals(128, ModelConfig.ROUTER.generationParams.getMaxTokens());
+        assertTrue(ModelConfig.ROUTER.flashAttention);
+    }
+}
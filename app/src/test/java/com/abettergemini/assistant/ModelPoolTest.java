@@ -0,0 +1,39 @@
+package com.abettergemini.assistant;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class ModelPoolTest {
+
+    @Test
+    public void testEvictsLeastRecentlyUsedButNotPinnedOrInUse() {
+        ModelPool<String> pool = new ModelPool<>(1000);
+        assertTrue(pool.put("router", "router", 300, true).isEmpty());
+        assertTrue(pool.put("a", "a", 300, false).isEmpty());
+        assertTrue(pool.put("b", "b", 300, false).isEmpty());
+        pool.get("a"); // b is now least recently used
+        assertEquals(Collections.singletonList("b"), pool.put("c", "c", 300, false));
+        pool.setInUse("a");
+        assertEquals(Collections.singletonList("c"), pool.makeRoom(400));
+        // Only the router and the model in use are left, even over budget
+        assertTrue(pool.put("d", "d", 900, false).isEmpty());
+        assertEquals(Collections.singletonList("d"), pool.evictUnused());
+        assertEquals(600, pool.usedBytes());
+        assertEquals(Arrays.asList("router", "a"), pool.clear());
+    }
+
+    @Test
+    public void testHitRateAndBudget() {
+        ModelPool<String> pool = new ModelPool<>(ModelPool.budgetFor(8000, 5000, 500));
+        assertEquals(3200, pool.getBudgetBytes());
+        assertEquals(0, ModelPool.budgetFor(8000, 400, 500));
+        assertNull(pool.get("a"));
+        pool.put("a", "a", 100, false);
+        assertEquals("a", pool.get("a"));
+        assertEquals(0.5, pool.hitRate(), 1e-9);
+    }
+}
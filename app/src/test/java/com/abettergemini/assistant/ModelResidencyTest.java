@@ -0,0 +1,40 @@
+package com.abettergemini.assistant;
+
+import android.content.ComponentCallbacks2;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class ModelResidencyTest {
+
+    @Test
+    public void testTierForTrimLevel() {
+        assertEquals(ModelResidency.Tier.FULL, ModelResidency.forTrimLevel(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN));
+        assertEquals(ModelResidency.Tier.FULL, ModelResidency.forTrimLevel(ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE));
+        assertEquals(ModelResidency.Tier.WEIGHTS, ModelResidency.forTrimLevel(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND));
+        assertEquals(ModelResidency.Tier.WEIGHTS, ModelResidency.forTrimLevel(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW));
+        assertEquals(ModelResidency.Tier.NONE, ModelResidency.forTrimLevel(ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL));
+        assertEquals(ModelResidency.Tier.NONE, ModelResidency.forTrimLevel(ComponentCallbacks2.TRIM_MEMORY_COMPLETE));
+    }
+
+    @Test
+    public void testMappedResidentBytes() throws Exception {
+        String smaps = "7f00000000-7f10000000 r--s 00000000 fd:05 42      /data/m.gguf\n"
+                + "Size:             262144 kB\n"
+                + "Rss:               1000 kB\n"
+                + "7f10000000-7f10001000 rw-p 00000000 00:00 0 \n"
+                + "Rss:                  4 kB\n"
+                + "7f20000000-7f20100000 r--s 10000000 fd:05 42      /data/m.gguf\n"
+                + "Rss:                 24 kB\n"
+                + "7f30000000-7f30100000 r--s 00000000 fd:05 43      /data/other.gguf\n"
+                + "Rss:                512 kB\n";
+        long bytes = ModelResidency.mappedResidentBytes(new BufferedReader(new StringReader(smaps)),
+                Collections.singleton("/data/m.gguf"));
+        assertEquals(1024 * 1024, bytes);
+    }
+}
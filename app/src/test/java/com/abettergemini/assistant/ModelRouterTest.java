@@ -0,0 +1,34 @@
+package com.abettergemini.assistant;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ModelRouterTest {
+
+    @Test
+    public void testPreRoute() {
+        assertEquals(ModelRouter.Route.ROUTER, ModelRouter.preRoute("Set a timer for 5 minutes", false, false, 0).route);
+        assertEquals(ModelRouter.Route.ROUTER, ModelRouter.preRoute("hello!", false, false, 0).route);
+        assertEquals(ModelRouter.Route.MAIN, ModelRouter.preRoute("Set a timer", true, false, 0).route);
+        assertEquals(ModelRouter.Route.MAIN, ModelRouter.preRoute("Summarize this article", false, false, 0).route);
+        assertEquals(ModelRouter.Route.MAIN, ModelRouter.preRoute("What does this mean?", false, true, 0).route);
+        // Whole words only, and unclear requests are left to the classifier
+        assertNull(ModelRouter.preRoute("Who wrote Hamlet?", false, false, 0));
+        assertNull(ModelRouter.preRoute("hiking trails near me", false, false, 0));
+        assertNull(ModelRouter.preRoute("hello again, what about tomorrow?", false, false, 3));
+    }
+
+    @Test
+    public void testLabelsAndStats() {
+        ModelRouter router = new ModelRouter();
+        assertEquals("", router.summary());
+        router.record(ModelRouter.fromLabel("simple"));
+        router.record(ModelRouter.fromLabel("complex"));
+        router.record(ModelRouter.fromLabel(null));
+        router.record(ModelRouter.preRoute("turn on the flashlight", false, false, 0));
+        assertEquals(0.5, router.routerHitRate(), 1e-9);
+        assertEquals("router 2/4 (50%), 3 classified", router.summary());
+        assertEquals("classifier failed", ModelRouter.fromLabel(null).reason);
+    }
+}
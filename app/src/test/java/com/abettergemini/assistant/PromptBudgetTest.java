@@ -0,0 +1,69 @@
+package com.abettergemini.assistant;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class PromptBudgetTest {
+
+    /** One token per word, so budgets are easy to reason about. */
+    private static class WordTokenizer implements PromptBudget.Tokenizer {
+        @Override
+        public int countTokens(String text) {
+            return text.trim().isEmpty() ? 0 : text.trim().split("\\s+").length;
+        }
+
+        @Override
+        public String keepTokens(String text, int maxTokens, boolean keepEnd) {
+            String[] words = text.trim().split("\\s+");
+            int from = keepEnd ? words.length - maxTokens : 0;
+            return String.join(" ", Arrays.copyOfRange(words, from, from + maxTokens));
+        }
+    }
+
+    private static String words(int n, String word) {
+        return String.join(" ", Collections.nCopies(n, word));
+    }
+
+    @Test
+    public void testSmallPromptIsUntouched() {
+        PromptBudget budget = new PromptBudget(1024, 256);
+        PromptBudget.Allocation a = budget.allocate(new WordTokenizer(), "be nice", "user likes tea",
+                "screen text", Arrays.asList("You: hi", "Mate: hello"), "what now");
+        assertEquals("screen text", a.screen);
+        assertEquals(2, a.history.size());
+        assertEquals(0, a.droppedTurns);
+        assertEquals(2 + 3 + 2 + 4 + 2, a.promptTokens);
+    }
+
+    @Test
+    public void testScreenContextTrimmedToFit() {
+        PromptBudget budget = new PromptBudget(1024, 256);
+        PromptBudget.Allocation a = budget.allocate(new WordTokenizer(), "sys", null,
+                words(5000, "w"), null, "summarize");
+        int limit = 1024 - 256 - 5 * PromptBudget.SECTION_OVERHEAD_TOKENS;
+        assertTrue(a.promptTokens <= limit);
+        assertEquals(limit - 2, new WordTokenizer().countTokens(a.screen));
+    }
+
+    @Test
+    public void testOldestTurnsDroppedFirst() {
+        PromptBudget budget = new PromptBudget(600, 200);
+        // 360 flexible tokens: history may take 126
+        PromptBudget.Allocation a = budget.allocate(new WordTokenizer(), "", null, null,
+                Arrays.asList(words(60, "old"), words(60, "mid"), words(60, "new")), "q");
+        assertEquals(Arrays.asList(words(60, "mid"), words(60, "new")), a.history);
+        assertEquals(1, a.droppedTurns);
+    }
+
+    @Test
+    public void testEstimatingTokenizerKeepsWholeCharacters() {
+        PromptBudget.EstimatingTokenizer t = new PromptBudget.EstimatingTokenizer();
+        assertEquals(2, t.countTokens("hello"));
+        // Each emoji is 4 bytes; 2 tokens = 6 bytes fit one of them
+        assertEquals("😀", t.keepTokens("😀😀😀", 2, false));
+        assertEquals("end", t.keepTokens("the very end", 1, true));
+    }
+}
@@ -0,0 +1,65 @@
+package com.abettergemini.assistant;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class RequestSchedulerTest {
+
+    @Test
+    public void testPriorityOrderAndWaits() {
+        RequestScheduler<String, String> scheduler = new RequestScheduler<>();
+        scheduler.submit(null, RequestScheduler.Priority.BACKGROUND, "compact", "a", 0);
+        scheduler.submit(null, RequestScheduler.Priority.CHAT, "chat1", "b", 10);
+        scheduler.submit(null, RequestScheduler.Priority.CHAT, "chat2", "c", 20);
+        scheduler.submit(null, RequestScheduler.Priority.VOICE, "voice", "d", 30);
+
+        assertEquals("voice", scheduler.poll(100).task);
+        assertEquals("chat1", scheduler.poll(200).task);
+        assertEquals("chat2", scheduler.poll(300).task);
+        RequestScheduler.Ticket<String, String> last = scheduler.poll(400);
+        assertEquals("compact", last.task);
+        assertEquals(400, last.waitMs());
+        assertNull(scheduler.poll(500));
+
+        assertEquals(70, scheduler.averageWaitMs(RequestScheduler.Priority.VOICE));
+        assertEquals(235, scheduler.averageWaitMs(RequestScheduler.Priority.CHAT));
+        assertEquals(280, scheduler.maxWaitMs(RequestScheduler.Priority.CHAT));
+        assertEquals(4, scheduler.runningCount());
+        scheduler.finish(last);
+        assertEquals(3, scheduler.runningCount());
+    }
+
+    @Test
+    public void testDuplicatesJoinAndCancel() {
+        RequestScheduler<String, String> scheduler = new RequestScheduler<>();
+        RequestScheduler.Ticket<String, String> first =
+                scheduler.submit("k", RequestScheduler.Priority.BACKGROUND, "task", "a", 0);
+        scheduler.submit(null, RequestScheduler.Priority.CHAT, "other", "x", 0);
+        // Joins the queued request and raises it to its own priority
+        assertSame(first, scheduler.submit("k", RequestScheduler.Priority.VOICE, "dup", "b", 5));
+        assertEquals(1, scheduler.joinedCount());
+        assertEquals(2, scheduler.queuedCount());
+        assertSame(first, scheduler.poll(10));
+
+        // Running requests are joined too, until they finish
+        assertSame(first, scheduler.submit("k", RequestScheduler.Priority.CHAT, "dup", "c", 20));
+        assertTrue(scheduler.leave(first, "a"));
+        assertFalse(scheduler.leave(first, "a"));
+        assertEquals(Arrays.asList("b", "c"), scheduler.finish(first));
+        assertNotSame(first, scheduler.submit("k", RequestScheduler.Priority.CHAT, "again", "d", 30));
+
+        // A queued request nobody waits for is dropped
+        RequestScheduler.Ticket<String, String> other = scheduler.poll(40);
+        assertEquals("other", other.task);
+        RequestScheduler.Ticket<String, String> again = scheduler.poll(50);
+        assertEquals("again", again.task);
+        RequestScheduler.Ticket<String, String> lone =
+                scheduler.submit(null, RequestScheduler.Priority.CHAT, "lone", "e", 60);
+        assertTrue(scheduler.leave(lone, "e"));
+        assertEquals(0, scheduler.queuedCount());
+        assertNull(scheduler.poll(70));
+    }
+}
@@ -0,0 +1,58 @@
+package com.abettergemini.assistant;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ResponseCacheTest {
+
+    @Test
+    public void testKeysIgnoreFormattingOnly() {
+        assertEquals("what's the capital of france", ResponseCache.normalize("  What's the   capital of France?? "));
+        String a = ResponseCache.key("Qwen2-VL 2B", "p", ResponseCache.normalize("Analyze this screen."), "c");
+        String b = ResponseCache.key("Qwen2-VL 2B", "p", ResponseCache.normalize("analyze this screen"), "c");
+        assertEquals(a, b);
+        assertNotEquals(a, ResponseCache.key("Gemma 2 2B", "p", ResponseCache.normalize("analyze this screen"), "c"));
+        assertNotEquals(a, ResponseCache.key("Qwen2-VL 2B", "p", ResponseCache.normalize("analyze this screen"), "d"));
+        // Parts are delimited, so they can't run into each other
+        assertNotEquals(ResponseCache.hash("ab", "c"), ResponseCache.hash("a", "bc"));
+
+        assertTrue(ResponseCache.isCacheable("Analyze this screen."));
+        assertFalse(ResponseCache.isCacheable("What's the weather like?"));
+        assertFalse(ResponseCache.isCacheable("any news today"));
+    }
+
+    @Test
+    public void testSimilarity() {
+        String q = "what is the capital of france";
+        String rephrased = "whats the capitol of france";
+        String other = "what is the capital of germany";
+        float[] qv = ResponseCache.embed(q);
+        assertTrue(ResponseCache.cosine(qv, ResponseCache.embed(rephrased)) >= ResponseCache.SIMILARITY_THRESHOLD);
+        assertTrue(ResponseCache.cosine(qv, ResponseCache.embed("how do i bake sourdough bread")) < 0.5);
+        assertArrayEquals(qv, ResponseCache.fromBytes(ResponseCache.toBytes(qv)), 0f);
+
+        // Close vectors aren't enough: the content words must match too
+        assertTrue(ResponseCache.sameMeaning(q, rephrased));
+        assertFalse(ResponseCache.sameMeaning(q, other));
+        assertTrue(ResponseCache.sameMeaning("please set a timer for 5 minutes", "set a timer for 5 minutes"));
+        assertFalse(ResponseCache.sameMeaning("set a timer for 5 minutes", "set a timer for 6 minutes"));
+        assertFalse(ResponseCache.sameMeaning("turn on wifi", "turn off wifi"));
+    }
+
+    @Test
+    public void testSimilarWordsStayApart() {
+        // Short words that are one letter apart are different words
+        String[][] pairs = {
+                {"what is a cat", "what is a car"},
+                {"weather in uk", "weather in us"},
+                {"define sheep", "define sleep"},
+                {"call mom", "call tom"},
+                // Same words, different order
+                {"convert cm to in", "convert in to cm"},
+        };
+        for (String[] pair : pairs) {
+            assertFalse(pair[0] + " / " + pair[1], ResponseCache.sameMeaning(pair[0], pair[1]));
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package com.abettergemini.assistant;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ToolCallTest {
+
+    @Test
+    public void testFindsStructuredCall() {
+        ToolCall call = ToolCall.find("{\"tool\":\"search\",\"arg\":\"weather in \\\"Oslo\\\"\"}");
+        assertNotNull(call);
+        assertEquals(ToolCall.SEARCH, call.tool);
+        assertEquals("weather in \"Oslo\"", call.arg);
+    }
+
+    @Test
+    public void testFindsLegacyTag() {
+        ToolCall call = ToolCall.find("Opening it now [LAUNCH: Spotify]");
+        assertNotNull(call);
+        assertEquals(ToolCall.LAUNCH, call.tool);
+        assertEquals("Spotify", call.arg);
+        assertEquals("Opening it now", ToolCall.strip("Opening it now [LAUNCH: Spotify]"));
+        assertNull(ToolCall.find("{\"tool\":\"reply\",\"arg\":\"hi\"}"));
+    }
+
+    @Test
+    public void testUnwrapsReply() {
+        assertEquals("Hi\nthere", ToolCall.unwrapReply(" {\"tool\":\"reply\",\"arg\":\"Hi\\nthere\"} "));
+        assertEquals("plain text", ToolCall.unwrapReply("plain text"));
+    }
+
+    @Test
+    public void testCompleteObject() {
+        assertFalse(ToolCall.isCompleteObject("{\"tool\":\"launch\",\"arg\":\"a}"));
+        assertTrue(ToolCall.isCompleteObject("\n{\"tool\":\"launch\",\"arg\":\"a}\"}"));
+        assertFalse(ToolCall.isCompleteObject("Sure } thing"));
+    }
+}
@@ -0,0 +1,54 @@
+package com.abettergemini.assistant;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+public class Utf8BufferTest {
+
+    @Test
+    public void testEncodeIsStandardUtf8() {
+        // Emoji are 4-byte sequences, which modified UTF-8 would split into surrogates
+        String text = "Price 5€ 👍🏽 总计";
+        Utf8Buffer buffer = new Utf8Buffer(8, true);
+        int length = buffer.encode(text);
+
+        byte[] expected = text.getBytes(StandardCharsets.UTF_8);
+        assertEquals(expected.length, length);
+        byte[] actual = new byte[length];
+        ByteBuffer view = buffer.buffer().duplicate();
+        view.position(0);
+        view.get(actual);
+        assertArrayEquals(expected, actual);
+        assertTrue(buffer.buffer().isDirect());
+    }
+
+    @Test
+    public void testDecodeAppendsChunks() {
+        Utf8Buffer buffer = new Utf8Buffer(64, false);
+        StringBuilder out = new StringBuilder("Hi ");
+        for (String chunk : new String[] {"😀", " and ", "ü"}) {
+            byte[] bytes = chunk.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer target = buffer.buffer();
+            target.clear();
+            target.put(bytes);
+            buffer.decodeTo(bytes.length, out);
+        }
+        assertEquals("Hi 😀 and ü", out.toString());
+    }
+
+    @Test
+    public void testGrowsOnlyWhenAllowed() {
+        Utf8Buffer growable = new Utf8Buffer(4, true);
+        assertEquals(12, growable.encode("hello, world"));
+
+        Utf8Buffer fixed = new Utf8Buffer(4, false);
+        try {
+            fixed.encode("hello, world");
+            fail("fixed buffer should not grow");
+        } catch (IllegalStateException expected) {
+        }
+    }
+}